@@ -29,10 +29,13 @@ public final class AppConstants {
     public static final PiPipeconfId PIPECONF_ID = new PiPipeconfId("org.onosproject.pipelines.sdvn");
 
     public static final int DEFAULT_FLOW_RULE_PRIORITY = 10;
-    public static final int INITIAL_SETUP_DELAY = 2; // Seconds.
-    public static final int CLEAN_UP_DELAY = 2000; // milliseconds
-    public static final int DEFAULT_CLEAN_UP_RETRY_TIMES = 10;
+    public static final int CLEAN_UP_TIMEOUT = 20000; // milliseconds
 
     public static final int CPU_PORT_ID = 200;
-    public static final int CPU_CLONE_SESSION_ID = 99;
+    // Clone session of a device is CPU_CLONE_SESSION_BASE + its switch ID,
+    // above the multicast group IDs so that group keys never collide.
+    public static final int CPU_CLONE_SESSION_BASE = 256;
+    // Largest switch ID, from switch_id_t in main.p4.
+    public static final int MAX_SWITCH_ID = 255;
+    public static final int DEFAULT_BROADCAST_GROUP_ID = 255;
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.onlab.metrics.MetricsComponent;
+import org.onlab.metrics.MetricsFeature;
+import org.onlab.metrics.MetricsService;
+import org.onosproject.net.DeviceId;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Metrics of the L2 bridging pipeline, from the moment an event is handed to
+ * the per-device executor to the moment the resulting flow rules are
+ * confirmed by the device. Timers and executor queue depth gauges are
+ * registered per device, as "{deviceId}.{stage}" and "{deviceId}.queueDepth".
+ */
+public final class BridgingMetrics {
+
+    private static final String COMPONENT_NAME = "sdvn";
+    private static final String FEATURE_NAME = "bridging";
+
+    private static final String QUEUE_WAIT = "queueWait";
+    private static final String RULE_BUILD = "ruleBuild";
+    private static final String INSTALL_CONFIRMATION = "installConfirmation";
+    private static final String QUEUE_DEPTH = "queueDepth";
+    private static final ImmutableList<String> STAGES =
+            ImmutableList.of(QUEUE_WAIT, RULE_BUILD, INSTALL_CONFIRMATION);
+
+    private final MetricsService metricsService;
+    private final MetricsComponent component;
+    private final MetricsFeature feature;
+
+    private final Map<String, Timer> timers = Maps.newConcurrentMap();
+    private final Set<String> gauges = Sets.newConcurrentHashSet();
+    private volatile MainComponent mainComponent;
+
+    /**
+     * Creates the metrics of the bridging pipeline.
+     *
+     * @param metricsService metrics service
+     */
+    public BridgingMetrics(MetricsService metricsService) {
+        this.metricsService = metricsService;
+        this.component = metricsService.registerComponent(COMPONENT_NAME);
+        this.feature = component.registerFeature(FEATURE_NAME);
+    }
+
+    /**
+     * Enables the gauges reporting the number of tasks waiting in the
+     * executor for each device, registered with the first task of the
+     * device.
+     *
+     * @param mainComponent main component owning the executor
+     */
+    public void registerQueueDepthGauges(MainComponent mainComponent) {
+        this.mainComponent = mainComponent;
+    }
+
+    /**
+     * Records the time a task for the given device waited in the executor.
+     *
+     * @param deviceId device ID
+     * @param nanos    wait time in nanoseconds
+     */
+    public void recordQueueWait(DeviceId deviceId, long nanos) {
+        registerQueueDepthGauge(deviceId);
+        timer(deviceId, QUEUE_WAIT).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the time spent computing the flow rules to write on the given
+     * device.
+     *
+     * @param deviceId device ID
+     * @param nanos    build time in nanoseconds
+     */
+    public void recordRuleBuild(DeviceId deviceId, long nanos) {
+        timer(deviceId, RULE_BUILD).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the time between submitting flow rule operations for the given
+     * device and their confirmation.
+     *
+     * @param deviceId device ID
+     * @param nanos    confirmation time in nanoseconds
+     */
+    public void recordInstallConfirmation(DeviceId deviceId, long nanos) {
+        timer(deviceId, INSTALL_CONFIRMATION).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Removes the metrics of the given device, e.g. once removed.
+     *
+     * @param deviceId device ID
+     */
+    public void unregister(DeviceId deviceId) {
+        for (String stage : STAGES) {
+            final String name = deviceId + "." + stage;
+            if (timers.remove(name) != null) {
+                metricsService.removeMetric(component, feature, name);
+            }
+        }
+        final String name = deviceId + "." + QUEUE_DEPTH;
+        if (gauges.remove(name)) {
+            metricsService.removeMetric(component, feature, name);
+        }
+    }
+
+    /**
+     * Removes all metrics registered by this instance.
+     */
+    public void unregister() {
+        timers.keySet().forEach(name -> metricsService.removeMetric(component, feature, name));
+        gauges.forEach(name -> metricsService.removeMetric(component, feature, name));
+        timers.clear();
+        gauges.clear();
+    }
+
+    private void registerQueueDepthGauge(DeviceId deviceId) {
+        final MainComponent executorOwner = mainComponent;
+        final String name = deviceId + "." + QUEUE_DEPTH;
+        if (executorOwner != null && gauges.add(name)) {
+            metricsService.registerMetric(component, feature, name,
+                    (Gauge<Integer>) () -> executorOwner.getQueueDepth(deviceId));
+        }
+    }
+
+    private Timer timer(DeviceId deviceId, String stage) {
+        return timers.computeIfAbsent(
+                deviceId + "." + stage,
+                name -> metricsService.createTimer(component, feature, name));
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.onlab.util.KryoNamespace;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import static org.onosproject.sdvn.AppConstants.CPU_CLONE_SESSION_BASE;
+import static org.onosproject.sdvn.AppConstants.MAX_SWITCH_ID;
+import org.onosproject.store.serializers.KryoNamespaces;
+import org.onosproject.store.service.ConsistentMap;
+import org.onosproject.store.service.MapEvent;
+import org.onosproject.store.service.MapEventListener;
+import org.onosproject.store.service.Serializer;
+import org.onosproject.store.service.StorageService;
+import org.onosproject.store.service.Versioned;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * Registry of the identity of each device in the P4 pipeline: a compact
+ * switch ID, fitting the 8-bit switch_id_t of main.p4, and the clone session
+ * used to send packets to the CPU. Hence at most {@link AppConstants#MAX_SWITCH_ID}
+ * devices have an identity at a time.
+ * <p>
+ * Identities are assigned once per device, when the device is added, and are
+ * consistent across the cluster. They are recycled when the device is
+ * removed. Lookups are served from a local cache kept up to date with the
+ * cluster-wide assignments.
+ */
+@Component(
+        immediate = true,
+        service = DeviceIdentityRegistry.class
+)
+public class DeviceIdentityRegistry {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final Serializer SERIALIZER = Serializer.using(
+            KryoNamespace.newBuilder().register(KryoNamespaces.API).build());
+
+    // Switch ID assigned to each device.
+    private ConsistentMap<DeviceId, Integer> assignments;
+    // Device owning each switch ID, used to reserve IDs atomically.
+    private ConsistentMap<Integer, DeviceId> reservations;
+
+    // Local copy of the assignments, read on the hot paths.
+    private final Map<DeviceId, DeviceIdentity> identities = Maps.newConcurrentMap();
+
+    private final MapEventListener<DeviceId, Integer> assignmentListener =
+            new InternalAssignmentListener();
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private StorageService storageService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Activate
+    protected void activate() {
+        assignments = storageService.<DeviceId, Integer>consistentMapBuilder()
+                .withName("sdvn-switch-ids")
+                .withSerializer(SERIALIZER)
+                .build();
+        reservations = storageService.<Integer, DeviceId>consistentMapBuilder()
+                .withName("sdvn-switch-id-reservations")
+                .withSerializer(SERIALIZER)
+                .build();
+
+        assignments.addListener(assignmentListener);
+        assignments.entrySet().forEach(e -> cache(e.getKey(), e.getValue().value()));
+
+        deviceService.addListener(deviceListener);
+        for (Device device : deviceService.getDevices()) {
+            allocate(device.id());
+        }
+
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        deviceService.removeListener(deviceListener);
+        assignments.removeListener(assignmentListener);
+        identities.clear();
+
+        log.info("Stopped");
+    }
+
+    /**
+     * Returns the switch ID of the given device, assigning one if the device
+     * has none yet.
+     *
+     * @param deviceId device ID
+     * @return switch ID, between 1 and {@link AppConstants#MAX_SWITCH_ID}
+     * @throws IllegalStateException if all switch IDs are in use
+     */
+    public int switchId(DeviceId deviceId) {
+        return identity(deviceId).switchId;
+    }
+
+    /**
+     * Returns the clone session used to send packets of the given device to
+     * the CPU, assigning a switch ID if the device has none yet.
+     *
+     * @param deviceId device ID
+     * @return clone session ID
+     * @throws IllegalStateException if all switch IDs are in use
+     */
+    public int cloneSessionId(DeviceId deviceId) {
+        return identity(deviceId).cloneSessionId;
+    }
+
+    /**
+     * Returns the device with the given switch ID.
+     *
+     * @param switchId switch ID
+     * @return device ID, null if the switch ID is not assigned
+     */
+    public DeviceId deviceId(int switchId) {
+        final Versioned<DeviceId> owner = reservations.get(switchId);
+        return owner == null ? null : owner.value();
+    }
+
+    private DeviceIdentity identity(DeviceId deviceId) {
+        final DeviceIdentity identity = identities.get(deviceId);
+        return identity != null ? identity : allocate(deviceId);
+    }
+
+    /**
+     * Assigns the lowest free switch ID to the given device, unless it has
+     * one already.
+     *
+     * @param deviceId device ID
+     * @return identity of the device
+     * @throws IllegalStateException if all switch IDs are in use
+     */
+    private DeviceIdentity allocate(DeviceId deviceId) {
+        final Versioned<Integer> assigned = assignments.get(deviceId);
+        if (assigned != null) {
+            return cache(deviceId, assigned.value());
+        }
+        // Read once, the reservation below settles races with other instances.
+        final Set<Integer> reserved = ImmutableSet.copyOf(reservations.keySet());
+        for (int switchId = 1; switchId <= MAX_SWITCH_ID; switchId++) {
+            if (reserved.contains(switchId) ||
+                    reservations.putIfAbsent(switchId, deviceId) != null) {
+                continue;
+            }
+            final Versioned<Integer> concurrent = assignments.putIfAbsent(deviceId, switchId);
+            if (concurrent != null) {
+                // Another instance assigned an ID to the same device first.
+                reservations.remove(switchId, deviceId);
+                return cache(deviceId, concurrent.value());
+            }
+            log.info("Assigned switch ID {} to {}", switchId, deviceId);
+            return cache(deviceId, switchId);
+        }
+        throw new IllegalStateException(
+                "No switch ID left for " + deviceId + ", all " + MAX_SWITCH_ID + " in use");
+    }
+
+    /**
+     * Releases the switch ID of the given device, so that it can be assigned
+     * to another device.
+     *
+     * @param deviceId device ID
+     */
+    private void release(DeviceId deviceId) {
+        final Versioned<Integer> assigned = assignments.remove(deviceId);
+        if (assigned != null) {
+            reservations.remove(assigned.value(), deviceId);
+            log.info("Released switch ID {} of {}", assigned.value(), deviceId);
+        }
+        identities.remove(deviceId);
+    }
+
+    private DeviceIdentity cache(DeviceId deviceId, int switchId) {
+        final DeviceIdentity identity = identities.get(deviceId);
+        if (identity != null && identity.switchId == switchId) {
+            return identity;
+        }
+        final DeviceIdentity newIdentity = new DeviceIdentity(switchId);
+        identities.put(deviceId, newIdentity);
+        return newIdentity;
+    }
+
+    /**
+     * Keeps the local cache in sync with the assignments made by the other
+     * instances of the cluster.
+     */
+    private class InternalAssignmentListener implements MapEventListener<DeviceId, Integer> {
+
+        @Override
+        public void event(MapEvent<DeviceId, Integer> event) {
+            switch (event.type()) {
+                case INSERT:
+                case UPDATE:
+                    cache(event.key(), event.newValue().value());
+                    break;
+                case REMOVE:
+                    identities.remove(event.key());
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Listener of device events, assigning IDs to new devices and recycling
+     * those of removed devices.
+     */
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            return event.type() == DeviceEvent.Type.DEVICE_ADDED ||
+                    event.type() == DeviceEvent.Type.DEVICE_REMOVED;
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            final DeviceId deviceId = event.subject().id();
+            try {
+                if (event.type() == DeviceEvent.Type.DEVICE_ADDED) {
+                    allocate(deviceId);
+                } else {
+                    release(deviceId);
+                }
+            } catch (IllegalStateException e) {
+                log.error(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Identity of a device, immutable.
+     */
+    private static final class DeviceIdentity {
+        private final int switchId;
+        private final int cloneSessionId;
+
+        private DeviceIdentity(int switchId) {
+            this.switchId = switchId;
+            this.cloneSessionId = CPU_CLONE_SESSION_BASE + switchId;
+        }
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Dictionary;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.onlab.packet.MacAddress;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onlab.util.Tools;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.config.NetworkConfigService;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.host.HostService;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiCounterId;
+import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.onosproject.p4runtime.api.P4RuntimeController;
+import static org.onosproject.sdvn.OsgiPropertyConstants.DIRECTED_FORWARDING_ENABLED;
+import static org.onosproject.sdvn.OsgiPropertyConstants.DIRECTED_FORWARDING_ENABLED_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.NEIGHBOR_TIMEOUT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.NEIGHBOR_TIMEOUT_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.ROUTE_UPDATE_INTERVAL;
+import static org.onosproject.sdvn.OsgiPropertyConstants.ROUTE_UPDATE_INTERVAL_DEFAULT;
+import org.onosproject.sdvn.common.PiCounterReader;
+import org.onosproject.sdvn.common.Utils;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+
+/**
+ * App component that directs the packets sent to known remote hosts to a
+ * single neighbor, instead of letting every switch in range relay them.
+ * <p>
+ * Every update interval, the neighbor_counter of each switch tells which
+ * neighbors it heard, i.e. which switches can reach it over the air. Links
+ * not heard for the neighbor timeout are forgotten. For each host known to
+ * the host service, the shortest paths to its switch are computed over those
+ * links, and each switch mastered by this instance is given, in its
+ * next_hop_table, the neighbor that is the next hop towards the host. Routes
+ * follow the neighbors read at the previous interval. Packets to hosts
+ * without a route are relayed by all the switches, as before.
+ */
+@Component(
+        immediate = true,
+        property = {
+                DIRECTED_FORWARDING_ENABLED + ":Boolean=" + DIRECTED_FORWARDING_ENABLED_DEFAULT,
+                ROUTE_UPDATE_INTERVAL + ":Integer=" + ROUTE_UPDATE_INTERVAL_DEFAULT,
+                NEIGHBOR_TIMEOUT + ":Integer=" + NEIGHBOR_TIMEOUT_DEFAULT,
+        }
+)
+public class DirectedForwardingComponent {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    // From the P4Info file
+    private static final String NEXT_HOP_TABLE = "IngressPipeImpl.next_hop_table";
+    private static final PiTableId NEXT_HOP_TABLE_ID = PiTableId.of(NEXT_HOP_TABLE);
+    private static final PiActionId SET_NEXT_HOP = PiActionId.of("IngressPipeImpl.set_next_hop");
+    private static final PiActionParamId NEXT_HOP = PiActionParamId.of("next_hop");
+    private static final PiMatchFieldId ETH_DST = PiMatchFieldId.of("hdr.ethernet.dst_addr");
+    private static final PiCounterId NEIGHBOR_COUNTER =
+            PiCounterId.of("IngressPipeImpl.neighbor_counter");
+
+    /** Enable the forwarding of unicast packets through a single next hop. */
+    private boolean directedForwardingEnabled = DIRECTED_FORWARDING_ENABLED_DEFAULT;
+
+    /** Interval in seconds at which the next hops are computed. */
+    private int routeUpdateInterval = ROUTE_UPDATE_INTERVAL_DEFAULT;
+
+    /** Time in seconds after which a neighbor not heard is dropped. */
+    private volatile int neighborTimeout = NEIGHBOR_TIMEOUT_DEFAULT;
+
+    // Neighbor counter values at the previous reading, by device.
+    private final Map<DeviceId, Map<Long, Long>> lastCounts = Maps.newConcurrentMap();
+    // Time each neighbor was last heard, by device and switch ID of the
+    // neighbor.
+    private final Map<DeviceId, Map<Integer, Long>> lastHeard = Maps.newConcurrentMap();
+
+    private ApplicationId appId;
+    private PiCounterReader counterReader;
+    private ScheduledFuture<?> updateTask;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private HostService hostService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PiPipeconfService pipeconfService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private P4RuntimeController p4RuntimeController;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private NetworkConfigService configService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService compCfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceIdentityRegistry deviceIdentityRegistry;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Activate
+    protected void activate(ComponentContext context) {
+        appId = mainComponent.getAppId();
+        counterReader = new PiCounterReader(p4RuntimeController, pipeconfService, configService);
+
+        compCfgService.registerProperties(getClass());
+        modified(context);
+
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        compCfgService.unregisterProperties(getClass(), false);
+        cancelUpdateTask();
+        lastCounts.clear();
+        lastHeard.clear();
+
+        log.info("Stopped");
+    }
+
+    @Modified
+    protected synchronized void modified(ComponentContext context) {
+        Dictionary<?, ?> properties = context.getProperties();
+
+        Boolean newEnabled = Tools.isPropertyEnabled(properties, DIRECTED_FORWARDING_ENABLED);
+        int newUpdateInterval = Tools.getIntegerProperty(
+                properties, ROUTE_UPDATE_INTERVAL, ROUTE_UPDATE_INTERVAL_DEFAULT);
+        int newNeighborTimeout = Tools.getIntegerProperty(
+                properties, NEIGHBOR_TIMEOUT, NEIGHBOR_TIMEOUT_DEFAULT);
+
+        if (newEnabled != null) {
+            directedForwardingEnabled = newEnabled;
+        }
+        if (newUpdateInterval > 0) {
+            routeUpdateInterval = newUpdateInterval;
+        } else {
+            log.warn("Invalid {} {}, using {}", ROUTE_UPDATE_INTERVAL,
+                     newUpdateInterval, routeUpdateInterval);
+        }
+        if (newNeighborTimeout > 0) {
+            neighborTimeout = newNeighborTimeout;
+        } else {
+            log.warn("Invalid {} {}, using {}", NEIGHBOR_TIMEOUT,
+                     newNeighborTimeout, neighborTimeout);
+        }
+
+        cancelUpdateTask();
+        if (directedForwardingEnabled) {
+            updateTask = SharedScheduledExecutors.getSingleThreadExecutor().scheduleAtFixedRate(
+                    this::updateAllDevices, routeUpdateInterval, routeUpdateInterval,
+                    TimeUnit.SECONDS);
+        } else {
+            // Packets to remote hosts are relayed by all the switches again.
+            // Also removes the entries kept by a warm restart of the app.
+            lastCounts.clear();
+            lastHeard.clear();
+            for (Device device : deviceService.getAvailableDevices()) {
+                final DeviceId deviceId = device.id();
+                if (mastershipService.isLocalMaster(deviceId)) {
+                    mainComponent.execute(deviceId, () -> reconcileRoutes(
+                            deviceId, Collections.emptyMap()));
+                }
+            }
+        }
+
+        log.info("Directed forwarding {}, update interval {}s, neighbor timeout {}s",
+                 directedForwardingEnabled ? "enabled" : "disabled", routeUpdateInterval,
+                 neighborTimeout);
+    }
+
+    private void cancelUpdateTask() {
+        if (updateTask != null) {
+            updateTask.cancel(false);
+            updateTask = null;
+        }
+    }
+
+    /**
+     * Computes the routes of all the devices from the neighbors heard so
+     * far, dispatches their installation on the devices mastered by this
+     * instance, and the reading of the neighbors of all the devices, to the
+     * executor stripe of each device.
+     */
+    private void updateAllDevices() {
+        final Map<DeviceId, Integer> switchIds = Maps.newHashMap();
+        for (Device device : deviceService.getAvailableDevices()) {
+            try {
+                switchIds.put(device.id(), deviceIdentityRegistry.switchId(device.id()));
+            } catch (IllegalStateException e) {
+                log.warn("Not routing through {}: {}", device.id(), e.getMessage());
+            }
+        }
+        // Forget devices that went away.
+        lastCounts.keySet().retainAll(switchIds.keySet());
+        lastHeard.keySet().retainAll(switchIds.keySet());
+
+        final Map<Integer, Set<Integer>> heard = heardNeighbors(
+                switchIds, System.currentTimeMillis());
+        final Map<Integer, Map<Integer, Integer>> nextHops = Maps.newHashMap();
+        final Map<MacAddress, Integer> hostSwitches = Maps.newHashMap();
+        for (Host host : hostService.getHosts()) {
+            final Integer switchId = switchIds.get(host.location().deviceId());
+            if (switchId != null) {
+                hostSwitches.put(host.mac(), switchId);
+                nextHops.computeIfAbsent(switchId, d -> nextHopsTo(d, heard));
+            }
+        }
+
+        switchIds.forEach((deviceId, switchId) -> {
+            final boolean isMaster = mastershipService.isLocalMaster(deviceId);
+            mainComponent.execute(deviceId, () -> {
+                readNeighbors(deviceId, switchId);
+                if (isMaster) {
+                    reconcileRoutes(deviceId, routesOf(switchId, hostSwitches, nextHops));
+                }
+            });
+        });
+    }
+
+    /**
+     * Reads the neighbor_counter of the given device and records the time at
+     * which the neighbors whose count increased since the previous reading
+     * were heard.
+     *
+     * @param deviceId device ID
+     * @param switchId switch ID of the device
+     */
+    private void readNeighbors(DeviceId deviceId, int switchId) {
+        final Map<Long, Long> counts;
+        try {
+            counts = counterReader.readPackets(deviceId, NEIGHBOR_COUNTER);
+        } catch (RuntimeException e) {
+            log.debug("Unable to read neighbor counter of {}: {}", deviceId, e.getMessage());
+            return;
+        }
+        final Map<Long, Long> previous = lastCounts.put(deviceId, counts);
+        if (previous == null) {
+            // First reading, nothing to compare with yet.
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final Map<Integer, Long> heardTimes = lastHeard.computeIfAbsent(
+                deviceId, d -> Maps.newConcurrentMap());
+        counts.forEach((sender, packets) -> {
+            if (sender != 0 && sender != switchId &&
+                    packets > previous.getOrDefault(sender, 0L)) {
+                heardTimes.put(sender.intValue(), now);
+            }
+        });
+    }
+
+    /**
+     * Returns the switches heard by each switch within the neighbor timeout.
+     *
+     * @param switchIds switch ID of each available device
+     * @param now       current time in milliseconds
+     * @return switch IDs of the neighbors heard, by switch ID
+     */
+    private Map<Integer, Set<Integer>> heardNeighbors(Map<DeviceId, Integer> switchIds,
+                                                      long now) {
+        final long timeoutMillis = TimeUnit.SECONDS.toMillis(neighborTimeout);
+        final Set<Integer> available = ImmutableSet.copyOf(switchIds.values());
+        final Map<Integer, Set<Integer>> heard = Maps.newHashMap();
+        lastHeard.forEach((deviceId, heardTimes) -> {
+            final Integer switchId = switchIds.get(deviceId);
+            if (switchId == null) {
+                return;
+            }
+            final Set<Integer> neighbors = Sets.newHashSet();
+            heardTimes.forEach((neighbor, time) -> {
+                if (now - time < timeoutMillis && available.contains(neighbor)) {
+                    neighbors.add(neighbor);
+                }
+            });
+            heard.put(switchId, neighbors);
+        });
+        return heard;
+    }
+
+    /**
+     * Returns, for each switch that can reach the given destination switch,
+     * the neighbor that is the next hop on a shortest path to it. Switches
+     * reach the switches that heard them. Among equally short paths, the
+     * next hop with the lowest switch ID is preferred.
+     *
+     * @param destination switch ID of the destination
+     * @param heard       switch IDs of the neighbors heard, by switch ID
+     * @return next hop switch ID, by switch ID, without the destination
+     */
+    static Map<Integer, Integer> nextHopsTo(int destination,
+                                            Map<Integer, Set<Integer>> heard) {
+        final Map<Integer, Integer> nextHops = Maps.newHashMap();
+        final Set<Integer> visited = Sets.newHashSet(destination);
+        final Deque<Integer> queue = Queues.newArrayDeque();
+        queue.add(destination);
+        while (!queue.isEmpty()) {
+            final int hop = queue.poll();
+            heard.getOrDefault(hop, Collections.emptySet()).stream()
+                    .sorted()
+                    .filter(visited::add)
+                    .forEach(neighbor -> {
+                        nextHops.put(neighbor, hop);
+                        queue.add(neighbor);
+                    });
+        }
+        return nextHops;
+    }
+
+    /**
+     * Returns the next hop of each remote host that the given switch has a
+     * route to.
+     *
+     * @param switchId     switch ID
+     * @param hostSwitches switch ID of the location of each host
+     * @param nextHops     next hops towards each switch, by switch ID
+     * @return next hop switch ID, by host MAC address
+     */
+    private static Map<MacAddress, Integer> routesOf(
+            int switchId, Map<MacAddress, Integer> hostSwitches,
+            Map<Integer, Map<Integer, Integer>> nextHops) {
+        final ImmutableMap.Builder<MacAddress, Integer> routes = ImmutableMap.builder();
+        hostSwitches.forEach((mac, hostSwitch) -> {
+            final Integer nextHop = nextHops.get(hostSwitch).get(switchId);
+            if (nextHop != null) {
+                routes.put(mac, nextHop);
+            }
+        });
+        return routes.build();
+    }
+
+    /**
+     * Compares the given routes with the next_hop_table entries of the given
+     * device, and writes only the entries that need to be added, modified or
+     * removed.
+     *
+     * @param deviceId device ID
+     * @param routes   next hop switch ID, by host MAC address
+     */
+    private void reconcileRoutes(DeviceId deviceId, Map<MacAddress, Integer> routes) {
+        final Map<FlowId, FlowRule> toAdd = Maps.newHashMap();
+        routes.forEach((mac, nextHop) -> {
+            final FlowRule rule = buildNextHopFlowRule(deviceId, mac, nextHop);
+            toAdd.put(rule.id(), rule);
+        });
+
+        final FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        int changed = 0;
+        for (FlowEntry entry : flowRuleService.getFlowEntries(deviceId)) {
+            if (entry.appId() != appId.id() || !NEXT_HOP_TABLE_ID.equals(entry.table()) ||
+                    entry.state() == FlowEntry.FlowEntryState.PENDING_REMOVE ||
+                    entry.state() == FlowEntry.FlowEntryState.REMOVED) {
+                continue;
+            }
+            final FlowRule desired = toAdd.remove(entry.id());
+            if (desired == null) {
+                ops.remove(entry);
+                changed++;
+            } else if (!desired.treatment().equals(entry.treatment())) {
+                ops.modify(desired);
+                changed++;
+            }
+        }
+        toAdd.values().forEach(ops::add);
+
+        if (changed == 0 && toAdd.isEmpty()) {
+            return;
+        }
+        log.info("Updating routes on {}: {} to add, {} to modify or remove",
+                 deviceId, toAdd.size(), changed);
+        flowRuleService.apply(ops.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onError(FlowRuleOperations failed) {
+                log.warn("Unable to update some routes on {}", deviceId);
+            }
+        }));
+    }
+
+    /**
+     * Builds the flow rule naming the next hop of the packets sent to the
+     * given host.
+     *
+     * @param deviceId device ID where to install the rule
+     * @param hostMac  host MAC address
+     * @param nextHop  switch ID of the next hop
+     * @return next hop flow rule
+     */
+    private FlowRule buildNextHopFlowRule(DeviceId deviceId, MacAddress hostMac, int nextHop) {
+        final PiCriterion hostMacCriterion = PiCriterion.builder()
+                .matchExact(ETH_DST, hostMac.toBytes())
+                .build();
+
+        final PiAction setNextHopAction = PiAction.builder()
+                .withId(SET_NEXT_HOP)
+                .withParameter(new PiActionParam(NEXT_HOP, nextHop))
+                .build();
+
+        return Utils.buildFlowRule(
+                deviceId, appId, NEXT_HOP_TABLE,
+                hostMacCriterion, setNextHopAction);
+    }
+}
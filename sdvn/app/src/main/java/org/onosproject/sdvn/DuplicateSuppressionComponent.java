@@ -0,0 +1,315 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.Dictionary;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.onlab.metrics.MetricsComponent;
+import org.onlab.metrics.MetricsFeature;
+import org.onlab.metrics.MetricsService;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onlab.util.Tools;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.config.NetworkConfigService;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiCounterId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogEvent;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogListener;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogService;
+import org.onosproject.p4runtime.api.P4RuntimeController;
+import static org.onosproject.sdvn.OsgiPropertyConstants.DEDUP_EXPIRY;
+import static org.onosproject.sdvn.OsgiPropertyConstants.DEDUP_EXPIRY_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.DEDUP_TABLE_SIZE;
+import static org.onosproject.sdvn.OsgiPropertyConstants.DEDUP_TABLE_SIZE_DEFAULT;
+import org.onosproject.sdvn.common.PiCounterReader;
+import org.onosproject.sdvn.common.Utils;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * App component that configures the duplicate suppression of main.p4, which
+ * stops the switches from rebroadcasting packets they already relayed.
+ * <p>
+ * The number of seen-set entries used on each switch and their expiry time
+ * can be changed at runtime. The packets dropped as duplicates and relayed
+ * are exposed as "{deviceId}.hits" and "{deviceId}.misses" gauges of the
+ * "sdvn"/"dedup" metrics.
+ */
+@Component(
+        immediate = true,
+        property = {
+                DEDUP_TABLE_SIZE + ":Integer=" + DEDUP_TABLE_SIZE_DEFAULT,
+                DEDUP_EXPIRY + ":Integer=" + DEDUP_EXPIRY_DEFAULT,
+        }
+)
+public class DuplicateSuppressionComponent {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    // From the P4Info file
+    private static final String DEDUP_CONFIG_TABLE = "IngressPipeImpl.dedup_config_table";
+    private static final PiActionId SET_DEDUP_CONFIG =
+            PiActionId.of("IngressPipeImpl.set_dedup_config");
+    private static final PiCounterId DEDUP_COUNTER =
+            PiCounterId.of("IngressPipeImpl.dedup_counter");
+    private static final long DEDUP_COUNTER_HIT = 0;
+    private static final long DEDUP_COUNTER_MISS = 1;
+    // DEDUP_MAX_ENTRIES in main.p4
+    private static final int DEDUP_MAX_ENTRIES = 65536;
+
+    private static final String METRICS_COMPONENT = "sdvn";
+    private static final String METRICS_FEATURE = "dedup";
+    private static final int COUNTER_POLL_INTERVAL = 10; // seconds
+
+    private volatile int dedupTableSize = DEDUP_TABLE_SIZE_DEFAULT;
+    private volatile int dedupExpiry = DEDUP_EXPIRY_DEFAULT;
+
+    // Counter values at the last poll, by device and counter index.
+    private final Map<DeviceId, Map<Long, Long>> counters = Maps.newConcurrentMap();
+    private final Set<String> gauges = Sets.newConcurrentHashSet();
+
+    private final PiPipeconfWatchdogListener pipelineListener = new InternalPipelineListener();
+
+    private ApplicationId appId;
+    private PiCounterReader counterReader;
+    private MetricsComponent metricsComponent;
+    private MetricsFeature metricsFeature;
+    private ScheduledFuture<?> pollTask;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PiPipeconfService pipeconfService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PiPipeconfWatchdogService pipeconfWatchdogService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private P4RuntimeController p4RuntimeController;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private NetworkConfigService configService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsService metricsService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService compCfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceIdentityRegistry deviceIdentityRegistry;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Activate
+    protected void activate(ComponentContext context) {
+        appId = mainComponent.getAppId();
+        counterReader = new PiCounterReader(p4RuntimeController, pipeconfService, configService);
+        metricsComponent = metricsService.registerComponent(METRICS_COMPONENT);
+        metricsFeature = metricsComponent.registerFeature(METRICS_FEATURE);
+
+        pipeconfWatchdogService.addListener(pipelineListener);
+
+        compCfgService.registerProperties(getClass());
+        modified(context);
+        configureAllDevices();
+
+        pollTask = SharedScheduledExecutors.getSingleThreadExecutor().scheduleAtFixedRate(
+                this::pollCounters, COUNTER_POLL_INTERVAL, COUNTER_POLL_INTERVAL, TimeUnit.SECONDS);
+
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        pipeconfWatchdogService.removeListener(pipelineListener);
+        compCfgService.unregisterProperties(getClass(), false);
+        if (pollTask != null) {
+            pollTask.cancel(false);
+            pollTask = null;
+        }
+        counters.clear();
+        gauges.forEach(name -> metricsService.removeMetric(
+                metricsComponent, metricsFeature, name));
+        gauges.clear();
+
+        log.info("Stopped");
+    }
+
+    @Modified
+    protected void modified(ComponentContext context) {
+        Dictionary<?, ?> properties = context.getProperties();
+
+        final int newTableSize = Tools.getIntegerProperty(
+                properties, DEDUP_TABLE_SIZE, DEDUP_TABLE_SIZE_DEFAULT);
+        final int newExpiry = Tools.getIntegerProperty(
+                properties, DEDUP_EXPIRY, DEDUP_EXPIRY_DEFAULT);
+
+        if (newTableSize <= 0 || newTableSize > DEDUP_MAX_ENTRIES) {
+            log.warn("Invalid {} {}, must be between 1 and {}, using {}",
+                     DEDUP_TABLE_SIZE, newTableSize, DEDUP_MAX_ENTRIES, dedupTableSize);
+        } else if (newTableSize != dedupTableSize) {
+            dedupTableSize = newTableSize;
+            log.info("Configured {} = {}", DEDUP_TABLE_SIZE, dedupTableSize);
+            configureAllDevices();
+        }
+
+        if (newExpiry <= 0) {
+            log.warn("Invalid {} {}, using {}", DEDUP_EXPIRY, newExpiry, dedupExpiry);
+        } else if (newExpiry != dedupExpiry) {
+            dedupExpiry = newExpiry;
+            log.info("Configured {} = {}", DEDUP_EXPIRY, dedupExpiry);
+            configureAllDevices();
+        }
+    }
+
+    private void configureAllDevices() {
+        if (appId == null) {
+            return;
+        }
+        for (Device device : deviceService.getAvailableDevices()) {
+            if (mastershipService.isLocalMaster(device.id())) {
+                mainComponent.execute(device.id(), () -> configureDevice(device.id()));
+            }
+        }
+    }
+
+    /**
+     * Writes the default action of the dedup_config_table of the given
+     * device, replacing the one previously written. Until it is first
+     * written, the switch ID of the device is 0 and main.p4 neither relays
+     * nor sends packets on the uplinks.
+     *
+     * @param deviceId device ID
+     */
+    private void configureDevice(DeviceId deviceId) {
+        if (!deviceService.isAvailable(deviceId) ||
+                !mastershipService.isLocalMaster(deviceId)) {
+            return;
+        }
+        registerGauges(deviceId);
+
+        final PiAction configAction = PiAction.builder()
+                .withId(SET_DEDUP_CONFIG)
+                .withParameter(new PiActionParam(
+                        PiActionParamId.of("switch_id_value"),
+                        deviceIdentityRegistry.switchId(deviceId)))
+                .withParameter(new PiActionParam(
+                        PiActionParamId.of("size"), dedupTableSize))
+                .withParameter(new PiActionParam(
+                        PiActionParamId.of("expiry"),
+                        TimeUnit.MILLISECONDS.toMicros(dedupExpiry)))
+                .build();
+        final FlowRule rule = Utils.buildFlowRuleDefaultAction(
+                deviceId, appId, DEDUP_CONFIG_TABLE, configAction);
+        flowRuleService.applyFlowRules(rule);
+
+        log.info("Configured duplicate suppression on {}: {} entries, {} ms expiry",
+                 deviceId, dedupTableSize, dedupExpiry);
+    }
+
+    /**
+     * Reads the dedup_counter of each device mastered by this instance.
+     */
+    private void pollCounters() {
+        for (Device device : deviceService.getAvailableDevices()) {
+            final DeviceId deviceId = device.id();
+            if (!mastershipService.isLocalMaster(deviceId)) {
+                counters.remove(deviceId);
+                continue;
+            }
+            mainComponent.execute(deviceId, () -> {
+                try {
+                    counters.put(deviceId, counterReader.readPackets(deviceId, DEDUP_COUNTER));
+                } catch (RuntimeException e) {
+                    log.debug("Unable to read dedup counter of {}: {}",
+                              deviceId, e.getMessage());
+                }
+            });
+        }
+    }
+
+    private long counterValue(DeviceId deviceId, long index) {
+        final Map<Long, Long> values = counters.get(deviceId);
+        return values == null ? 0 : values.getOrDefault(index, 0L);
+    }
+
+    private void registerGauges(DeviceId deviceId) {
+        final String hits = deviceId + ".hits";
+        if (gauges.add(hits)) {
+            metricsService.registerMetric(metricsComponent, metricsFeature, hits,
+                    (Gauge<Long>) () -> counterValue(deviceId, DEDUP_COUNTER_HIT));
+        }
+        final String misses = deviceId + ".misses";
+        if (gauges.add(misses)) {
+            metricsService.registerMetric(metricsComponent, metricsFeature, misses,
+                    (Gauge<Long>) () -> counterValue(deviceId, DEDUP_COUNTER_MISS));
+        }
+    }
+
+    /**
+     * Listener of pipeline readiness events, the configuration can be written
+     * only once the pipeline of the device is ready.
+     */
+    private class InternalPipelineListener implements PiPipeconfWatchdogListener {
+
+        @Override
+        public boolean isRelevant(PiPipeconfWatchdogEvent event) {
+            return event.type() == PiPipeconfWatchdogEvent.Type.PIPELINE_READY &&
+                    mastershipService.isLocalMaster(event.subject());
+        }
+
+        @Override
+        public void event(PiPipeconfWatchdogEvent event) {
+            mainComponent.execute(event.subject(), () -> configureDevice(event.subject()));
+        }
+    }
+}
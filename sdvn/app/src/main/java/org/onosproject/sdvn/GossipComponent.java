@@ -0,0 +1,349 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.Dictionary;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.onlab.metrics.MetricsComponent;
+import org.onlab.metrics.MetricsFeature;
+import org.onlab.metrics.MetricsService;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onlab.util.Tools;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.config.NetworkConfigService;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiCounterId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.onosproject.p4runtime.api.P4RuntimeController;
+import static org.onosproject.sdvn.OsgiPropertyConstants.GOSSIP_ENABLED;
+import static org.onosproject.sdvn.OsgiPropertyConstants.GOSSIP_ENABLED_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.GOSSIP_FANOUT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.GOSSIP_FANOUT_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.GOSSIP_TUNE_INTERVAL;
+import static org.onosproject.sdvn.OsgiPropertyConstants.GOSSIP_TUNE_INTERVAL_DEFAULT;
+import org.onosproject.sdvn.common.PiCounterReader;
+import org.onosproject.sdvn.common.Utils;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * App component that tunes the probabilistic rebroadcast of main.p4, to curb
+ * broadcast storms in dense areas.
+ * <p>
+ * Every tune interval, the neighbors heard by each switch since the previous
+ * interval are counted from its neighbor_counter, and the switch is set to
+ * relay packets with probability fanout / neighbors, so that on average
+ * fanout neighbors relay each broadcast. Switches with at most fanout
+ * neighbors relay everything. The neighbors and the relay probability (in
+ * per mille) are exposed as "{deviceId}.neighbors" and
+ * "{deviceId}.probability" gauges of the "sdvn"/"gossip" metrics.
+ */
+@Component(
+        immediate = true,
+        property = {
+                GOSSIP_ENABLED + ":Boolean=" + GOSSIP_ENABLED_DEFAULT,
+                GOSSIP_FANOUT + ":Integer=" + GOSSIP_FANOUT_DEFAULT,
+                GOSSIP_TUNE_INTERVAL + ":Integer=" + GOSSIP_TUNE_INTERVAL_DEFAULT,
+        }
+)
+public class GossipComponent {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    // From the P4Info file
+    private static final String GOSSIP_CONFIG_TABLE = "IngressPipeImpl.gossip_config_table";
+    private static final PiTableId GOSSIP_CONFIG_TABLE_ID = PiTableId.of(GOSSIP_CONFIG_TABLE);
+    private static final PiActionId SET_GOSSIP_PROBABILITY =
+            PiActionId.of("IngressPipeImpl.set_gossip_probability");
+    private static final PiActionParamId THRESHOLD = PiActionParamId.of("threshold");
+    private static final PiCounterId NEIGHBOR_COUNTER =
+            PiCounterId.of("IngressPipeImpl.neighbor_counter");
+    // GOSSIP_RANGE in main.p4, a threshold equal to it relays every packet.
+    static final long GOSSIP_RANGE = 65536;
+
+    private static final String METRICS_COMPONENT = "sdvn";
+    private static final String METRICS_FEATURE = "gossip";
+
+    private boolean gossipEnabled = GOSSIP_ENABLED_DEFAULT;
+    private volatile int gossipFanout = GOSSIP_FANOUT_DEFAULT;
+    private int gossipTuneInterval = GOSSIP_TUNE_INTERVAL_DEFAULT;
+
+    // Neighbor counter values at the previous tuning, by device.
+    private final Map<DeviceId, Map<Long, Long>> lastCounts = Maps.newConcurrentMap();
+    // Neighbors and threshold found at the last tuning, by device.
+    private final Map<DeviceId, Integer> neighbors = Maps.newConcurrentMap();
+    private final Map<DeviceId, Long> thresholds = Maps.newConcurrentMap();
+    private final Set<String> gauges = Sets.newConcurrentHashSet();
+
+    private ApplicationId appId;
+    private PiCounterReader counterReader;
+    private MetricsComponent metricsComponent;
+    private MetricsFeature metricsFeature;
+    private ScheduledFuture<?> tuneTask;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PiPipeconfService pipeconfService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private P4RuntimeController p4RuntimeController;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private NetworkConfigService configService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsService metricsService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService compCfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceIdentityRegistry deviceIdentityRegistry;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Activate
+    protected void activate(ComponentContext context) {
+        appId = mainComponent.getAppId();
+        counterReader = new PiCounterReader(p4RuntimeController, pipeconfService, configService);
+        metricsComponent = metricsService.registerComponent(METRICS_COMPONENT);
+        metricsFeature = metricsComponent.registerFeature(METRICS_FEATURE);
+
+        compCfgService.registerProperties(getClass());
+        modified(context);
+
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        compCfgService.unregisterProperties(getClass(), false);
+        cancelTuneTask();
+        lastCounts.clear();
+        neighbors.clear();
+        thresholds.clear();
+        gauges.forEach(name -> metricsService.removeMetric(
+                metricsComponent, metricsFeature, name));
+        gauges.clear();
+
+        log.info("Stopped");
+    }
+
+    @Modified
+    protected synchronized void modified(ComponentContext context) {
+        Dictionary<?, ?> properties = context.getProperties();
+
+        Boolean newEnabled = Tools.isPropertyEnabled(properties, GOSSIP_ENABLED);
+        int newFanout = Tools.getIntegerProperty(
+                properties, GOSSIP_FANOUT, GOSSIP_FANOUT_DEFAULT);
+        int newTuneInterval = Tools.getIntegerProperty(
+                properties, GOSSIP_TUNE_INTERVAL, GOSSIP_TUNE_INTERVAL_DEFAULT);
+
+        if (newEnabled != null) {
+            gossipEnabled = newEnabled;
+        }
+        if (newFanout > 0) {
+            gossipFanout = newFanout;
+        } else {
+            log.warn("Invalid {} {}, using {}", GOSSIP_FANOUT, newFanout, gossipFanout);
+        }
+        if (newTuneInterval > 0) {
+            gossipTuneInterval = newTuneInterval;
+        } else {
+            log.warn("Invalid {} {}, using {}", GOSSIP_TUNE_INTERVAL,
+                     newTuneInterval, gossipTuneInterval);
+        }
+
+        cancelTuneTask();
+        if (gossipEnabled) {
+            tuneTask = SharedScheduledExecutors.getSingleThreadExecutor().scheduleAtFixedRate(
+                    this::tuneAllDevices, gossipTuneInterval, gossipTuneInterval,
+                    TimeUnit.SECONDS);
+        } else {
+            lastCounts.clear();
+            neighbors.clear();
+            resetThresholds();
+        }
+
+        log.info("Probabilistic rebroadcast {}, fanout {}, tune interval {}s",
+                 gossipEnabled ? "enabled" : "disabled", gossipFanout, gossipTuneInterval);
+    }
+
+    private void cancelTuneTask() {
+        if (tuneTask != null) {
+            tuneTask.cancel(false);
+            tuneTask = null;
+        }
+    }
+
+    /**
+     * Makes the devices tuned before relay every packet again, including the
+     * ones tuned by a previous activation of the app and kept by a warm
+     * restart.
+     */
+    private void resetThresholds() {
+        forEachLocalDevice(deviceId -> {
+            if (thresholds.containsKey(deviceId) || hasThreshold(deviceId)) {
+                writeThreshold(deviceId, GOSSIP_RANGE);
+            }
+        });
+    }
+
+    private boolean hasThreshold(DeviceId deviceId) {
+        for (FlowEntry entry : flowRuleService.getFlowEntries(deviceId)) {
+            if (entry.appId() == appId.id() &&
+                    GOSSIP_CONFIG_TABLE_ID.equals(entry.table())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void tuneAllDevices() {
+        forEachLocalDevice(this::tuneDevice);
+    }
+
+    private void forEachLocalDevice(Consumer<DeviceId> task) {
+        for (Device device : deviceService.getAvailableDevices()) {
+            final DeviceId deviceId = device.id();
+            if (mastershipService.isLocalMaster(deviceId)) {
+                mainComponent.execute(deviceId, () -> task.accept(deviceId));
+            } else {
+                lastCounts.remove(deviceId);
+            }
+        }
+    }
+
+    /**
+     * Counts the neighbors heard by the given device since the previous
+     * tuning and writes the resulting relay probability, if changed.
+     *
+     * @param deviceId device ID
+     */
+    private void tuneDevice(DeviceId deviceId) {
+        final Map<Long, Long> counts;
+        try {
+            counts = counterReader.readPackets(deviceId, NEIGHBOR_COUNTER);
+        } catch (RuntimeException e) {
+            log.debug("Unable to read neighbor counter of {}: {}", deviceId, e.getMessage());
+            return;
+        }
+        final Map<Long, Long> previous = lastCounts.put(deviceId, counts);
+        if (previous == null) {
+            // First reading, nothing to compare with yet.
+            return;
+        }
+        final long ownId = deviceIdentityRegistry.switchId(deviceId);
+        int heard = 0;
+        for (Map.Entry<Long, Long> e : counts.entrySet()) {
+            if (e.getKey() != ownId &&
+                    e.getValue() > previous.getOrDefault(e.getKey(), 0L)) {
+                heard++;
+            }
+        }
+        neighbors.put(deviceId, heard);
+        registerGauges(deviceId);
+
+        final long threshold = relayThreshold(heard, gossipFanout);
+        if (!Long.valueOf(threshold).equals(thresholds.get(deviceId))) {
+            log.info("{} heard {} neighbors, relaying with probability {}",
+                     deviceId, heard, (double) threshold / GOSSIP_RANGE);
+            writeThreshold(deviceId, threshold);
+        }
+    }
+
+    /**
+     * Returns the relay threshold of a switch with the given number of
+     * neighbors, for a relay probability of fanout / neighbors.
+     *
+     * @param heard  neighbors heard by the switch
+     * @param fanout neighbors expected to relay each broadcast
+     * @return relay threshold, GOSSIP_RANGE to relay every packet
+     */
+    static long relayThreshold(int heard, int fanout) {
+        return heard <= fanout ? GOSSIP_RANGE : GOSSIP_RANGE * fanout / heard;
+    }
+
+    /**
+     * Writes the default action of the gossip_config_table of the given
+     * device.
+     *
+     * @param deviceId  device ID
+     * @param threshold relay threshold, GOSSIP_RANGE to relay every packet
+     */
+    private void writeThreshold(DeviceId deviceId, long threshold) {
+        final PiAction action = PiAction.builder()
+                .withId(SET_GOSSIP_PROBABILITY)
+                .withParameter(new PiActionParam(THRESHOLD, threshold))
+                .build();
+        final FlowRule rule = Utils.buildFlowRuleDefaultAction(
+                deviceId, appId, GOSSIP_CONFIG_TABLE, action);
+        flowRuleService.applyFlowRules(rule);
+        thresholds.put(deviceId, threshold);
+    }
+
+    private void registerGauges(DeviceId deviceId) {
+        final String neighborsName = deviceId + ".neighbors";
+        if (gauges.add(neighborsName)) {
+            metricsService.registerMetric(metricsComponent, metricsFeature, neighborsName,
+                    (Gauge<Integer>) () -> neighbors.getOrDefault(deviceId, 0));
+        }
+        final String probability = deviceId + ".probability";
+        if (gauges.add(probability)) {
+            metricsService.registerMetric(metricsComponent, metricsFeature, probability,
+                    (Gauge<Long>) () -> thresholds.getOrDefault(deviceId, GOSSIP_RANGE)
+                            * 1000 / GOSSIP_RANGE);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.onlab.packet.MacAddress;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onlab.util.Tools;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.PiInstruction;
+import org.onosproject.net.host.HostAdminService;
+import org.onosproject.net.host.HostService;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiExactFieldMatch;
+import org.onosproject.net.pi.runtime.PiFieldMatch;
+import org.onosproject.net.pi.runtime.PiTableAction;
+import static org.onosproject.sdvn.OsgiPropertyConstants.HOST_AGING_ENABLED;
+import static org.onosproject.sdvn.OsgiPropertyConstants.HOST_AGING_ENABLED_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.HOST_AGING_POLL_INTERVAL;
+import static org.onosproject.sdvn.OsgiPropertyConstants.HOST_AGING_POLL_INTERVAL_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.HOST_IDLE_TIMEOUT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.HOST_IDLE_TIMEOUT_DEFAULT;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * App component that evicts learned hosts whose L2 unicast entry has not
+ * matched any packet for a configurable idle time. Hosts known to the host
+ * service are removed from it, MACs learned by the data plane only are
+ * forgotten by the L2 bridging component.
+ * <p>
+ * Activity is derived from the l2_exact_table_counter direct counters. Those
+ * are not read entry by entry: ONOS reads the table entries of a device
+ * together with their direct counters in a single P4Runtime read, as part of
+ * the periodic flow stats poll, and this component only looks at the
+ * resulting flow entries of each device once per aging interval.
+ */
+@Component(
+        immediate = true,
+        property = {
+                HOST_AGING_ENABLED + ":Boolean=" + HOST_AGING_ENABLED_DEFAULT,
+                HOST_AGING_POLL_INTERVAL + ":Integer=" + HOST_AGING_POLL_INTERVAL_DEFAULT,
+                HOST_IDLE_TIMEOUT + ":Integer=" + HOST_IDLE_TIMEOUT_DEFAULT,
+        }
+)
+public class HostAgingComponent {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    // From the P4Info file
+    private static final PiTableId L2_EXACT_TABLE =
+            PiTableId.of("IngressPipeImpl.l2_exact_table");
+    private static final PiActionId SET_EGRESS_PORT =
+            PiActionId.of("IngressPipeImpl.set_egress_port");
+    private static final PiMatchFieldId ETH_DST =
+            PiMatchFieldId.of("hdr.ethernet.dst_addr");
+
+    /** Enable the eviction of idle hosts. */
+    private boolean hostAgingEnabled = HOST_AGING_ENABLED_DEFAULT;
+
+    /** Interval in seconds at which the unicast entries are checked. */
+    private int hostAgingPollInterval = HOST_AGING_POLL_INTERVAL_DEFAULT;
+
+    /** Time in seconds without matched packets after which a host is evicted. */
+    private volatile int hostIdleTimeout = HOST_IDLE_TIMEOUT_DEFAULT;
+
+    // Last packet count seen for each unicast entry, by device.
+    private final Map<DeviceId, Map<FlowId, EntryActivity>> activity =
+            Maps.newConcurrentMap();
+
+    private ScheduledFuture<?> pollTask;
+    private ApplicationId appId;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private HostService hostService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private HostAdminService hostAdminService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService compCfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private L2BridgingComponent l2BridgingComponent;
+
+    @Activate
+    protected void activate(ComponentContext context) {
+        appId = mainComponent.getAppId();
+
+        compCfgService.registerProperties(getClass());
+        modified(context);
+
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        compCfgService.unregisterProperties(getClass(), false);
+        cancelPollTask();
+        activity.clear();
+
+        log.info("Stopped");
+    }
+
+    @Modified
+    protected synchronized void modified(ComponentContext context) {
+        Dictionary<?, ?> properties = context.getProperties();
+
+        Boolean newEnabled = Tools.isPropertyEnabled(properties, HOST_AGING_ENABLED);
+        int newPollInterval = Tools.getIntegerProperty(
+                properties, HOST_AGING_POLL_INTERVAL, HOST_AGING_POLL_INTERVAL_DEFAULT);
+        int newIdleTimeout = Tools.getIntegerProperty(
+                properties, HOST_IDLE_TIMEOUT, HOST_IDLE_TIMEOUT_DEFAULT);
+
+        if (newEnabled != null) {
+            hostAgingEnabled = newEnabled;
+        }
+        if (newPollInterval > 0) {
+            hostAgingPollInterval = newPollInterval;
+        } else {
+            log.warn("Invalid {} {}, using {}", HOST_AGING_POLL_INTERVAL,
+                     newPollInterval, hostAgingPollInterval);
+        }
+        if (newIdleTimeout > 0) {
+            hostIdleTimeout = newIdleTimeout;
+        } else {
+            log.warn("Invalid {} {}, using {}", HOST_IDLE_TIMEOUT,
+                     newIdleTimeout, hostIdleTimeout);
+        }
+
+        cancelPollTask();
+        activity.clear();
+        if (hostAgingEnabled) {
+            pollTask = SharedScheduledExecutors.getSingleThreadExecutor().scheduleAtFixedRate(
+                    this::ageAllDevices, hostAgingPollInterval, hostAgingPollInterval, TimeUnit.SECONDS);
+        }
+
+        log.info("Host aging {}, poll interval {}s, idle timeout {}s",
+                 hostAgingEnabled ? "enabled" : "disabled", hostAgingPollInterval, hostIdleTimeout);
+    }
+
+    private void cancelPollTask() {
+        if (pollTask != null) {
+            pollTask.cancel(false);
+            pollTask = null;
+        }
+    }
+
+    /**
+     * Dispatches aging of each device mastered by this instance to the
+     * executor stripe of that device.
+     */
+    private void ageAllDevices() {
+        final Set<DeviceId> polled = Sets.newHashSet();
+        for (Device device : deviceService.getAvailableDevices()) {
+            if (mastershipService.isLocalMaster(device.id())) {
+                polled.add(device.id());
+                mainComponent.execute(device.id(), () -> ageDevice(device.id()));
+            }
+        }
+        // Forget devices we no longer take care of.
+        activity.keySet().retainAll(polled);
+    }
+
+    /**
+     * Compares the packet count of each L2 unicast entry of the given device
+     * with the one seen at the previous poll, and evicts the hosts whose entry
+     * has been idle for longer than the idle timeout.
+     *
+     * @param deviceId device ID
+     */
+    private void ageDevice(DeviceId deviceId) {
+        final long now = System.currentTimeMillis();
+        final long idleMillis = TimeUnit.SECONDS.toMillis(hostIdleTimeout);
+        final Map<FlowId, EntryActivity> lastActivity =
+                activity.getOrDefault(deviceId, Maps.newHashMap());
+        final Map<FlowId, EntryActivity> newActivity = Maps.newHashMap();
+        final List<MacAddress> idleMacs = Lists.newArrayList();
+
+        for (FlowEntry entry : flowRuleService.getFlowEntries(deviceId)) {
+            if (entry.appId() != appId.id() ||
+                    entry.state() != FlowEntry.FlowEntryState.ADDED ||
+                    !L2_EXACT_TABLE.equals(entry.table()) ||
+                    !isUnicastEntry(entry)) {
+                continue;
+            }
+            final EntryActivity last = lastActivity.get(entry.id());
+            if (last == null || last.packets != entry.packets()) {
+                newActivity.put(entry.id(), new EntryActivity(entry.packets(), now));
+            } else if (now - last.lastChange >= idleMillis) {
+                hostMac(entry).ifPresent(idleMacs::add);
+            } else {
+                newActivity.put(entry.id(), last);
+            }
+        }
+        activity.put(deviceId, newActivity);
+
+        for (MacAddress mac : idleMacs) {
+            boolean evicted = false;
+            for (Host host : hostService.getHostsByMac(mac)) {
+                if (host.location().deviceId().equals(deviceId)) {
+                    // The bridging component removes the unicast entry when
+                    // notified of the host removal.
+                    log.info("Evicting host {} from {}, idle for more than {}s",
+                             host.id(), deviceId, hostIdleTimeout);
+                    hostAdminService.removeHost(host.id());
+                    evicted = true;
+                }
+            }
+            // MACs learned by the data plane are not hosts of the host
+            // service, their rules are removed by the bridging component.
+            if (!evicted && l2BridgingComponent.forgetLearnedHost(HostId.hostId(mac), deviceId)) {
+                log.info("Evicting learned MAC {} from {}, idle for more than {}s",
+                         mac, deviceId, hostIdleTimeout);
+            }
+        }
+    }
+
+    private static boolean isUnicastEntry(FlowEntry entry) {
+        for (Instruction instruction : entry.treatment().allInstructions()) {
+            if (instruction instanceof PiInstruction) {
+                final PiTableAction action = ((PiInstruction) instruction).action();
+                return action instanceof PiAction &&
+                        ((PiAction) action).id().equals(SET_EGRESS_PORT);
+            }
+        }
+        return false;
+    }
+
+    private static Optional<MacAddress> hostMac(FlowEntry entry) {
+        final Criterion criterion = entry.selector()
+                .getCriterion(Criterion.Type.PROTOCOL_INDEPENDENT);
+        if (!(criterion instanceof PiCriterion)) {
+            return Optional.empty();
+        }
+        final Optional<PiFieldMatch> fieldMatch =
+                ((PiCriterion) criterion).fieldMatch(ETH_DST);
+        return fieldMatch
+                .filter(m -> m instanceof PiExactFieldMatch)
+                .map(m -> MacAddress.valueOf(
+                        ((PiExactFieldMatch) m).value().asArray()));
+    }
+
+    /**
+     * Packet count of an entry and time at which it was last seen changing.
+     */
+    private static final class EntryActivity {
+        private final long packets;
+        private final long lastChange;
+
+        private EntryActivity(long packets, long lastChange) {
+            this.packets = packets;
+            this.lastChange = lastChange;
+        }
+    }
+}
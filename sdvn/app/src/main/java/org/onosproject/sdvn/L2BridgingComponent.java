@@ -16,61 +16,177 @@
 
 package org.onosproject.sdvn;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
+import org.onlab.metrics.MetricsService;
 import org.onlab.packet.MacAddress;
+import org.onlab.util.KryoNamespace;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onlab.util.Tools;
+import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipEvent;
+import org.onosproject.mastership.MastershipListener;
 import org.onosproject.mastership.MastershipService;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
 import org.onosproject.net.PortNumber;
+import org.onosproject.net.config.ConfigException;
+import org.onosproject.net.config.NetworkConfigEvent;
+import org.onosproject.net.config.NetworkConfigListener;
+import org.onosproject.net.config.NetworkConfigService;
+import org.onosproject.net.config.basics.InterfaceConfig;
 import org.onosproject.net.device.DeviceEvent;
 import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
 import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.criteria.Criterion;
 import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.PiInstruction;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
 import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupKey;
 import org.onosproject.net.group.GroupService;
 import org.onosproject.net.host.HostEvent;
 import org.onosproject.net.host.HostListener;
 import org.onosproject.net.host.HostService;
 import org.onosproject.net.intf.Interface;
+import org.onosproject.net.intf.InterfaceEvent;
+import org.onosproject.net.intf.InterfaceListener;
 import org.onosproject.net.intf.InterfaceService;
 import org.onosproject.net.pi.model.PiActionId;
 import org.onosproject.net.pi.model.PiActionParamId;
 import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.model.PiTableId;
 import org.onosproject.net.pi.runtime.PiAction;
 import org.onosproject.net.pi.runtime.PiActionParam;
-import static org.onosproject.sdvn.AppConstants.INITIAL_SETUP_DELAY;
+import org.onosproject.net.pi.runtime.PiExactFieldMatch;
+import org.onosproject.net.pi.runtime.PiFieldMatch;
+import org.onosproject.net.pi.runtime.PiTableAction;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogEvent;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogListener;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogService;
+import static org.onosproject.sdvn.AppConstants.DEFAULT_BROADCAST_GROUP_ID;
+import static org.onosproject.sdvn.AppConstants.PIPECONF_ID;
+import static org.onosproject.sdvn.OsgiPropertyConstants.DEVICE_EVENT_COALESCE_WINDOW;
+import static org.onosproject.sdvn.OsgiPropertyConstants.DEVICE_EVENT_COALESCE_WINDOW_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.FLOW_RULE_BATCH_SIZE;
+import static org.onosproject.sdvn.OsgiPropertyConstants.FLOW_RULE_BATCH_SIZE_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.MAC_LEARNING_BATCH_WINDOW;
+import static org.onosproject.sdvn.OsgiPropertyConstants.MAC_LEARNING_BATCH_WINDOW_DEFAULT;
+import org.onosproject.sdvn.common.InterfacePortIndex;
 import org.onosproject.sdvn.common.Utils;
+import org.onosproject.sdvn.pipeconf.MacLearningQueue;
+import org.onosproject.sdvn.pipeconf.MacLearningQueue.LearnedMac;
+import org.onosproject.store.serializers.KryoNamespaces;
+import org.onosproject.store.service.EventuallyConsistentMap;
+import org.onosproject.store.service.StorageService;
+import org.onosproject.store.service.WallClockTimestamp;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
 /**
  * App component that configures devices to provide L2 bridging capabilities.
  */
 @Component(
         immediate = true,
-        enabled = true
+        enabled = true,
+        service = L2BridgingComponent.class,
+        property = {
+                FLOW_RULE_BATCH_SIZE + ":Integer=" + FLOW_RULE_BATCH_SIZE_DEFAULT,
+                DEVICE_EVENT_COALESCE_WINDOW + ":Integer=" + DEVICE_EVENT_COALESCE_WINDOW_DEFAULT,
+                MAC_LEARNING_BATCH_WINDOW + ":Integer=" + MAC_LEARNING_BATCH_WINDOW_DEFAULT,
+        }
 )
 public class L2BridgingComponent {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    private static final int DEFAULT_BROADCAST_GROUP_ID = 255;
+    private static final String L2_EXACT_TABLE = "IngressPipeImpl.l2_exact_table";
+    private static final String SMAC_TABLE = "IngressPipeImpl.smac_table";
+    private static final ImmutableSet<PiTableId> BRIDGING_TABLES = ImmutableSet.of(
+            PiTableId.of(L2_EXACT_TABLE), PiTableId.of(SMAC_TABLE));
+    private static final PiActionId SET_EGRESS_PORT =
+            PiActionId.of("IngressPipeImpl.set_egress_port");
+    private static final PiActionParamId PORT_NUM = PiActionParamId.of("port_num");
+    private static final PiMatchFieldId ETH_DST = PiMatchFieldId.of("hdr.ethernet.dst_addr");
+    // How long deactivation waits for the learned hosts map to be destroyed.
+    private static final long DESTROY_TIMEOUT_MS = 1000;
+
+    /** Maximum number of flow rules written to a device in a single batch. */
+    private volatile int flowRuleBatchSize = FLOW_RULE_BATCH_SIZE_DEFAULT;
+
+    /** Window in milliseconds in which device events are coalesced. */
+    private volatile int deviceEventCoalesceWindow = DEVICE_EVENT_COALESCE_WINDOW_DEFAULT;
+
+    /** Window in milliseconds in which MACs learned by the switches are batched. */
+    private int macLearningBatchWindow;
+    private ScheduledFuture<?> macLearningTask;
+
+    // Set ups scheduled but not yet dispatched, by device.
+    private final Map<DeviceId, ScheduledFuture<?>> pendingDeviceSetUps =
+            Maps.newConcurrentMap();
+
+    // Location of the unicast rule installed for each host. The rule of a
+    // host can be rebuilt from its MAC and location, so it can be removed
+    // without scanning the device. The table is shared by all the instances
+    // of the cluster, so that a newly elected master can reprogram a device
+    // right away from the state left by the previous master.
+    private EventuallyConsistentMap<HostId, ConnectPoint> learnedHosts;
+    // Devices whose unicast entries have been adopted since activation, see
+    // adoptLearnedHosts().
+    private final Set<DeviceId> adoptedDevices = Sets.newConcurrentHashSet();
 
     private final DeviceListener deviceListener = new InternalDeviceListener();
     private final HostListener hostListener = new InternalHostListener();
+    private final InterfaceListener interfaceListener = new InternalInterfaceListener();
+    private final NetworkConfigListener configListener = new InternalConfigListener();
+    private final MastershipListener mastershipListener = new InternalMastershipListener();
+    private final PiPipeconfWatchdogListener pipelineListener = new InternalPipelineListener();
+
+    // Host facing ports by device, see getPorts().
+    private final InterfacePortIndex interfacePorts = new InterfacePortIndex();
 
     private ApplicationId appId;
+    private BridgingMetrics metrics;
 
     //--------------------------------------------------------------------------
     // ONOS CORE SERVICE BINDING
@@ -88,6 +204,9 @@ public class L2BridgingComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private InterfaceService interfaceService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private NetworkConfigService configService;
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private FlowRuleService flowRuleService;
 
@@ -97,9 +216,27 @@ public class L2BridgingComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private MastershipService mastershipService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PiPipeconfService pipeconfService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PiPipeconfWatchdogService pipeconfWatchdogService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private StorageService storageService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsService metricsService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService compCfgService;
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private MainComponent mainComponent;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceIdentityRegistry deviceIdentityRegistry;
+
     //--------------------------------------------------------------------------
     // COMPONENT ACTIVATION.
     //
@@ -108,85 +245,314 @@ public class L2BridgingComponent {
     //--------------------------------------------------------------------------
 
     @Activate
-    protected void activate() {
+    protected void activate(ComponentContext context) {
         appId = mainComponent.getAppId();
 
-        // Register listeners to be informed about device and host events.
+        compCfgService.registerProperties(getClass());
+        modified(context);
+
+        metrics = new BridgingMetrics(metricsService);
+        metrics.registerQueueDepthGauges(mainComponent);
+
+        learnedHosts = storageService.<HostId, ConnectPoint>eventuallyConsistentMapBuilder()
+                .withName("sdvn-learned-hosts")
+                .withSerializer(KryoNamespace.newBuilder()
+                                        .register(KryoNamespaces.API))
+                .withTimestampProvider((k, v) -> new WallClockTimestamp())
+                .build();
+
+        // Register listeners to be informed about interface changes, then
+        // index the interfaces already configured.
+        interfaceService.addListener(interfaceListener);
+        configService.addListener(configListener);
+        interfacePorts.rebuild(interfaceService.getInterfaces());
+
+        // Register listeners to be informed about device, host, mastership
+        // and pipeline readiness events.
         deviceService.addListener(deviceListener);
         hostService.addListener(hostListener);
-        // Schedule set up of existing devices. Needed when reloading the app.
-        mainComponent.scheduleTask(this::setUpAllDevices, INITIAL_SETUP_DELAY);
+        mastershipService.addListener(mastershipListener);
+        pipeconfWatchdogService.addListener(pipelineListener);
+        // Set up existing devices that are ready already. Needed when
+        // reloading the app, the others are set up when they become ready.
+        setUpAllDevices();
 
         log.info("Started");
     }
 
     @Deactivate
     protected void deactivate() {
+        pipeconfWatchdogService.removeListener(pipelineListener);
         deviceService.removeListener(deviceListener);
         hostService.removeListener(hostListener);
+        mastershipService.removeListener(mastershipListener);
+        configService.removeListener(configListener);
+        interfaceService.removeListener(interfaceListener);
+        interfacePorts.clear();
+        pendingDeviceSetUps.values().forEach(setUp -> setUp.cancel(false));
+        pendingDeviceSetUps.clear();
+        adoptedDevices.clear();
+        cancelMacLearning();
+        MacLearningQueue.clear();
+        destroyLearnedHosts();
+        metrics.unregister();
+        compCfgService.unregisterProperties(getClass(), false);
 
         log.info("Stopped");
     }
 
+    @Modified
+    protected synchronized void modified(ComponentContext context) {
+        Dictionary<?, ?> properties = context.getProperties();
+
+        int newBatchSize = Tools.getIntegerProperty(
+                properties, FLOW_RULE_BATCH_SIZE, FLOW_RULE_BATCH_SIZE_DEFAULT);
+        if (newBatchSize <= 0) {
+            log.warn("Invalid {} {}, using {}", FLOW_RULE_BATCH_SIZE,
+                     newBatchSize, flowRuleBatchSize);
+        } else if (newBatchSize != flowRuleBatchSize) {
+            flowRuleBatchSize = newBatchSize;
+            log.info("Configured {} = {}", FLOW_RULE_BATCH_SIZE, flowRuleBatchSize);
+        }
+
+        int newWindow = Tools.getIntegerProperty(
+                properties, DEVICE_EVENT_COALESCE_WINDOW,
+                DEVICE_EVENT_COALESCE_WINDOW_DEFAULT);
+        if (newWindow < 0) {
+            log.warn("Invalid {} {}, using {}", DEVICE_EVENT_COALESCE_WINDOW,
+                     newWindow, deviceEventCoalesceWindow);
+        } else if (newWindow != deviceEventCoalesceWindow) {
+            deviceEventCoalesceWindow = newWindow;
+            log.info("Configured {} = {}", DEVICE_EVENT_COALESCE_WINDOW,
+                     deviceEventCoalesceWindow);
+        }
+
+        int newLearningWindow = Tools.getIntegerProperty(
+                properties, MAC_LEARNING_BATCH_WINDOW,
+                MAC_LEARNING_BATCH_WINDOW_DEFAULT);
+        if (newLearningWindow <= 0) {
+            log.warn("Invalid {} {}, using {}", MAC_LEARNING_BATCH_WINDOW,
+                     newLearningWindow, macLearningBatchWindow);
+        } else if (newLearningWindow != macLearningBatchWindow) {
+            macLearningBatchWindow = newLearningWindow;
+            log.info("Configured {} = {}", MAC_LEARNING_BATCH_WINDOW,
+                     macLearningBatchWindow);
+            cancelMacLearning();
+            macLearningTask = SharedScheduledExecutors.getSingleThreadExecutor().scheduleAtFixedRate(
+                    this::drainLearnedMacs, macLearningBatchWindow, macLearningBatchWindow,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Destroys the local copy of the learned hosts map, leaving the shared
+     * state to the other instances.
+     */
+    private void destroyLearnedHosts() {
+        try {
+            learnedHosts.destroy().get(DESTROY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while destroying the learned hosts map");
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Unable to destroy the learned hosts map", e);
+        }
+    }
+
+    private synchronized void cancelMacLearning() {
+        if (macLearningTask != null) {
+            macLearningTask.cancel(false);
+            macLearningTask = null;
+        }
+        macLearningBatchWindow = 0;
+    }
+
     /**
-     * Sets up everything necessary to support L2 broadcast on the given device.
+     * Sets up everything necessary to support L2 bridging on the given device.
+     * <p>
+     * The desired broadcast group and the desired broadcast, default and
+     * unicast rules (for all hosts known to be connected to the device) are
+     * computed and compared with what the device already has, then only the
+     * differences are written, see {@link #reconcileFlowRules(DeviceId, Collection)}.
      *
      * @param deviceId the device to set up
      */
     private void setUpDevice(DeviceId deviceId) {
-        insertBroadcastGroup(deviceId);
-        insertBroadcastFlowRules(deviceId);
-        insertDefaultFlowRule(deviceId);
+        reconcileBroadcastGroup(deviceId);
+        final long buildStart = System.nanoTime();
+        final List<FlowRule> desiredRules = buildDesiredFlowRules(deviceId);
+        metrics.recordRuleBuild(deviceId, System.nanoTime() - buildStart);
+        reconcileFlowRules(deviceId, desiredRules);
     }
 
     /**
-     * Inserts an ALL group in the ONOS core to replicate packets on all ports.
+     * Returns the L2 bridging flow rules that the given device should have.
+     *
+     * @param deviceId device ID
+     * @return desired flow rules
+     */
+    private List<FlowRule> buildDesiredFlowRules(DeviceId deviceId) {
+        final List<FlowRule> rules = Lists.newArrayList();
+        rules.add(buildBroadcastFlowRule(deviceId));
+        rules.add(buildDefaultFlowRule(deviceId));
+        rules.add(buildLearnFlowRule(deviceId));
+
+        // For all hosts connected to this device...
+        final Map<HostId, ConnectPoint> desiredHosts = Maps.newHashMap();
+        hostService.getConnectedHosts(deviceId).forEach(host -> {
+            final ConnectPoint location = toConnectPoint(host.location());
+            desiredHosts.put(host.id(), location);
+            learnedHosts.put(host.id(), location);
+        });
+        if (mainComponent.isWarmRestart() && adoptedDevices.add(deviceId)) {
+            adoptLearnedHosts(deviceId);
+        }
+        // ...and all hosts learned on this device, possibly by the previous
+        // master, that the host service does not know to be elsewhere.
+        learnedHosts.entrySet().forEach(e -> {
+            if (!e.getValue().deviceId().equals(deviceId) ||
+                    desiredHosts.containsKey(e.getKey())) {
+                return;
+            }
+            final Host host = hostService.getHost(e.getKey());
+            if (host == null) {
+                desiredHosts.put(e.getKey(), e.getValue());
+            } else {
+                // Moved, its rule is removed by the reconciliation.
+                learnedHosts.remove(e.getKey(), e.getValue());
+            }
+        });
+        desiredHosts.forEach((hostId, location) -> {
+            rules.add(buildHostFlowRule(hostId.mac(), location));
+            rules.add(buildSmacFlowRule(hostId.mac(), location));
+        });
+        return rules;
+    }
+
+    /**
+     * Adds to the learned hosts the MACs of the unicast entries left on the
+     * given device by the previous instance of the app, when those MACs are
+     * not known to the host service. They were learned by the data plane,
+     * and the learned hosts do not survive the reload of the app on a single
+     * instance. Once adopted, their entries are kept by the reconciliation
+     * and aged out like the MACs learned since.
+     *
+     * @param deviceId device ID
+     */
+    private void adoptLearnedHosts(DeviceId deviceId) {
+        for (FlowEntry entry : flowRuleService.getFlowEntries(deviceId)) {
+            if (entry.appId() != appId.id() ||
+                    !PiTableId.of(L2_EXACT_TABLE).equals(entry.table())) {
+                continue;
+            }
+            final Optional<MacAddress> mac = hostMac(entry);
+            final Optional<PortNumber> port = egressPort(entry);
+            if (!mac.isPresent() || !port.isPresent()) {
+                continue;
+            }
+            final HostId hostId = HostId.hostId(mac.get());
+            if (hostService.getHost(hostId) == null && !learnedHosts.containsKey(hostId)) {
+                log.debug("Adopting learned MAC {} on {}", mac.get(), deviceId);
+                learnedHosts.put(hostId, new ConnectPoint(deviceId, port.get()));
+            }
+        }
+    }
+
+    private static Optional<MacAddress> hostMac(FlowEntry entry) {
+        final Criterion criterion = entry.selector()
+                .getCriterion(Criterion.Type.PROTOCOL_INDEPENDENT);
+        if (!(criterion instanceof PiCriterion)) {
+            return Optional.empty();
+        }
+        final Optional<PiFieldMatch> fieldMatch =
+                ((PiCriterion) criterion).fieldMatch(ETH_DST);
+        return fieldMatch
+                .filter(m -> m instanceof PiExactFieldMatch)
+                .map(m -> MacAddress.valueOf(
+                        ((PiExactFieldMatch) m).value().asArray()));
+    }
+
+    private static Optional<PortNumber> egressPort(FlowEntry entry) {
+        for (Instruction instruction : entry.treatment().allInstructions()) {
+            if (!(instruction instanceof PiInstruction)) {
+                continue;
+            }
+            final PiTableAction action = ((PiInstruction) instruction).action();
+            if (!(action instanceof PiAction) ||
+                    !((PiAction) action).id().equals(SET_EGRESS_PORT)) {
+                return Optional.empty();
+            }
+            return ((PiAction) action).parameters().stream()
+                    .filter(p -> p.id().equals(PORT_NUM))
+                    .findFirst()
+                    .map(p -> {
+                        long port = 0;
+                        for (byte b : p.value().asArray()) {
+                            port = (port << 8) | (b & 0xff);
+                        }
+                        return PortNumber.portNumber(port);
+                    });
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Makes sure that the device has an ALL group replicating packets on all
+     * host facing ports. The group is added if missing, and its buckets are
+     * replaced only if they differ from the desired ones.
      * <p>
      * ALL groups in ONOS are equivalent to P4Runtime packet replication engine
      * (PRE) Multicast groups.
      *
      * @param deviceId the device where to install the group
      */
+    private void reconcileBroadcastGroup(DeviceId deviceId) {
 
-    private void insertBroadcastGroup(DeviceId deviceId) {
-
-        Set<PortNumber> ports = getPorts(deviceId);
+        final Set<PortNumber> ports = getPorts(deviceId);
+        final GroupKey groupKey = Utils.buildReplicationGroupKey(
+                DEFAULT_BROADCAST_GROUP_ID);
+        final Group existingGroup = groupService.getGroup(deviceId, groupKey);
 
         if (ports.isEmpty()) {
             // Stop here.
             log.warn("Device {} has 0 ports", deviceId);
+            if (existingGroup != null) {
+                groupService.removeGroup(deviceId, groupKey, appId);
+            }
             return;
         }
 
-        log.info("Adding L2 multicast group with \"{}\" on {}...",
-                ports, deviceId);
-
         // Forge group object.
         final GroupDescription multicastGroup = Utils.buildMulticastGroup(
                 appId, deviceId, DEFAULT_BROADCAST_GROUP_ID, ports);
 
-        // Insert.
-        groupService.addGroup(multicastGroup);
+        if (existingGroup == null) {
+            log.info("Adding L2 multicast group with \"{}\" on {}...",
+                    ports, deviceId);
+            groupService.addGroup(multicastGroup);
+        } else if (!ImmutableSet.copyOf(existingGroup.buckets().buckets()).equals(
+                ImmutableSet.copyOf(multicastGroup.buckets().buckets()))) {
+            log.info("Updating L2 multicast group with \"{}\" on {}...",
+                    ports, deviceId);
+            groupService.setBucketsForGroup(deviceId, groupKey,
+                    multicastGroup.buckets(), groupKey, appId);
+        }
     }
 
-
     /*
-     * Insert flow rule that matches all unmatched ethernet traffic. This
+     * Builds the flow rule that matches all unmatched ethernet traffic. This
      * will implement the traditional briding behavior that floods all
      * unmatched traffic.
      * <p>
-     * This method will be called at component activation for each device
+     * The rule is installed at component activation for each device
      * (switch) known by ONOS, and every time a new device-added event is
      * captured by the InternalDeviceListener defined below.
-     * This method will also send the switch id value to the switch.
+     * This rule will also send the switch id value to the switch.
      *
-     * @param deviceId device ID where to install the rules
+     * @param deviceId device ID where to install the rule
+     * @return default flow rule
      */
-
-    @SuppressWarnings("unused")
-    private void insertDefaultFlowRule(DeviceId deviceId) {
-
-        log.info("Adding default rule on {}...", deviceId);
+    private FlowRule buildDefaultFlowRule(DeviceId deviceId) {
 
         // Action: set multicast group id
         final PiAction setDefaultAction = PiAction.builder()
@@ -196,39 +562,32 @@ public class L2BridgingComponent {
                         1))
                 .withParameter(new PiActionParam(
                         PiActionParamId.of("switch_id_value"),
-                        Utils.getUniqueSessionId(deviceId)))
+                        deviceIdentityRegistry.switchId(deviceId)))
                 .build();
 
-        //  Build flow rule.
-        final String tableId = "IngressPipeImpl.l2_exact_table";
-
         /* Chaged the method used here because of an error "Invalid representation of 'don't care' ternary match"
         In this github issue https://github.com/opennetworkinglab/ngsdn-tutorial/issues/93 the solution was to add this
         Also hid the PiCriterion acordingly */
 
-        final FlowRule rule = Utils.buildFlowRuleDefaultAction(
-                deviceId, appId, tableId,
+        return Utils.buildFlowRuleDefaultAction(
+                deviceId, appId, L2_EXACT_TABLE,
                 setDefaultAction);
-
-        // Insert rules.
-        flowRuleService.applyFlowRules(rule);
     }
 
     /**
-     * Insert flow rules matching ethernet destination broadcast
+     * Builds the flow rule matching ethernet destination broadcast
      * address. Such packets should be processed by the multicast
      * group created before.
      * <p>
-     * This method will be called at component activation for each device
+     * The rule is installed at component activation for each device
      * (switch) known by ONOS, and every time a new device-added event is
      * captured by the InternalDeviceListener defined below.
-     * This method will also send the switch id value to the switch.
+     * This rule will also send the switch id value to the switch.
      *
-     * @param deviceId device ID where to install the rules
+     * @param deviceId device ID where to install the rule
+     * @return broadcast flow rule
      */
-    private void insertBroadcastFlowRules(DeviceId deviceId) {
-
-        log.info("Adding L2 broadcast rules on {}...", deviceId);
+    private FlowRule buildBroadcastFlowRule(DeviceId deviceId) {
 
         // Match exactly FF:FF:FF:FF:FF:FF
         final PiCriterion macBroadcastCriterion = PiCriterion.builder()
@@ -245,41 +604,169 @@ public class L2BridgingComponent {
                         DEFAULT_BROADCAST_GROUP_ID))
                 .withParameter(new PiActionParam(
                         PiActionParamId.of("switch_id_value"),
-                        Utils.getUniqueSessionId(deviceId)))
+                        deviceIdentityRegistry.switchId(deviceId)))
                 .build();
 
-        final String tableId = "IngressPipeImpl.l2_exact_table";
-
-        final FlowRule rule1 = Utils.buildFlowRule(
-                deviceId, appId, tableId,
+        return Utils.buildFlowRule(
+                deviceId, appId, L2_EXACT_TABLE,
                 macBroadcastCriterion, setMcastGroupAction);
-
-
-        // Insert rule
-        flowRuleService.applyFlowRules(rule1);
     }
 
     /**
      * Insert flow rules to forward packets to a given host located at the given
      * device and port.
      * <p>
-     * This method will be called at component activation for each host known by
-     * ONOS, and every time a new host-added event is captured by the
-     * InternalHostListener defined below.
+     * This method will be called every time a new host-added event is captured
+     * by the InternalHostListener defined below. Hosts already known at device
+     * set up time are installed together with the other rules of the device.
      *
      * @param host     host instance
-     * @param deviceId device where the host is located
-     * @param port     port where the host is attached to
+     * @param location device and port where the host is attached to
      */
-    private void learnHost(Host host, DeviceId deviceId, PortNumber port) {
+    private void learnHost(Host host, ConnectPoint location) {
+        log.info("Adding L2 unicast rule on {} for host {}:{} (port {})...",
+                location.deviceId(), host.id(), host.mac(), location.port());
+
+        learnedHosts.put(host.id(), location);
+        final long buildStart = System.nanoTime();
+        final List<FlowRule> rules = ImmutableList.of(
+                buildHostFlowRule(host.mac(), location),
+                buildSmacFlowRule(host.mac(), location));
+        metrics.recordRuleBuild(location.deviceId(), System.nanoTime() - buildStart);
+        applyFlowRules(location.deviceId(), rules);
+    }
 
-        final String tableId = "IngressPipeImpl.l2_exact_table";
-        // Match exactly on the host MAC address.
-        final MacAddress hostMac = host.mac();
+    /**
+     * Removes the flow rule previously installed for the given host at the
+     * given location.
+     *
+     * @param hostId   host ID
+     * @param location device and port where the rule was installed for
+     */
+    private void forgetHost(HostId hostId, ConnectPoint location) {
+        log.info("Removing L2 unicast rule on {} for host {} (port {})...",
+                location.deviceId(), hostId, location.port());
+
+        // Only if no other event has re-learned the host in the meantime.
+        learnedHosts.remove(hostId, location);
+        applyFlowRuleOperations(location.deviceId(), ImmutableList.of(
+                new FlowRuleOperation(buildHostFlowRule(hostId.mac(), location),
+                                      FlowRuleOperation.Type.REMOVE),
+                new FlowRuleOperation(buildSmacFlowRule(hostId.mac(), location),
+                                      FlowRuleOperation.Type.REMOVE)));
+    }
 
-        log.info("Adding L2 unicast rule on {} for host {}:{} (port {})...",
-                deviceId, host.id(), hostMac, port);
+    /**
+     * Removes the rules of a host learned by the data plane of the given
+     * device, e.g. once idle. Such hosts are unknown to the host service, so
+     * that no host removal event would ever remove their rules. To be called
+     * from the executor of the device.
+     *
+     * @param hostId   host ID
+     * @param deviceId device ID
+     * @return true if the host was learned on the device, false otherwise
+     */
+    public boolean forgetLearnedHost(HostId hostId, DeviceId deviceId) {
+        final ConnectPoint location = learnedHosts.get(hostId);
+        if (location == null || !location.deviceId().equals(deviceId)) {
+            return false;
+        }
+        forgetHost(hostId, location);
+        return true;
+    }
+
+    /**
+     * Replaces the unicast flow rule of a host that changed port on the same
+     * device. The match does not change, hence the swap is a single modify
+     * operation. The source MAC entry of the previous port is replaced too, so
+     * that the host is learned again if it moves back.
+     *
+     * @param hostMac     host MAC address
+     * @param prevLocation device and previous port of the host
+     * @param newLocation device and new port of the host
+     */
+    private void relearnHost(MacAddress hostMac, ConnectPoint prevLocation,
+                             ConnectPoint newLocation) {
+        log.info("Moving L2 unicast rule on {} for host {} to port {}...",
+                newLocation.deviceId(), hostMac, newLocation.port());
+
+        learnedHosts.put(HostId.hostId(hostMac), newLocation);
+        applyFlowRuleOperations(newLocation.deviceId(), ImmutableList.of(
+                new FlowRuleOperation(buildHostFlowRule(hostMac, newLocation),
+                                      FlowRuleOperation.Type.MODIFY),
+                new FlowRuleOperation(buildSmacFlowRule(hostMac, prevLocation),
+                                      FlowRuleOperation.Type.REMOVE),
+                new FlowRuleOperation(buildSmacFlowRule(hostMac, newLocation),
+                                      FlowRuleOperation.Type.ADD)));
+    }
+
+    /**
+     * Removes the MACs learned by the switches from the MacLearningQueue and
+     * hands them over to the per-device executors, one batch per device.
+     */
+    private void drainLearnedMacs() {
+        final List<LearnedMac> learned = MacLearningQueue.drain();
+        if (learned.isEmpty() || learnedHosts == null) {
+            return;
+        }
+        learned.stream()
+                .collect(Collectors.groupingBy(l -> l.location().deviceId()))
+                .forEach((deviceId, macs) -> {
+                    if (mastershipService.isLocalMaster(deviceId)) {
+                        execute(deviceId, () -> learnMacs(deviceId, macs));
+                    }
+                });
+    }
 
+    /**
+     * Installs the unicast and source MAC rules of the hosts learned by the
+     * given device, with a single batch of flow rule operations.
+     *
+     * @param deviceId device ID
+     * @param macs     MACs learned by the device
+     */
+    private void learnMacs(DeviceId deviceId, List<LearnedMac> macs) {
+        final List<FlowRuleOperation> ops = Lists.newArrayList();
+        for (LearnedMac learned : macs) {
+            final MacAddress mac = learned.mac();
+            final ConnectPoint location = learned.location();
+            final HostId hostId = HostId.hostId(mac);
+            final ConnectPoint prevLocation = learnedHosts.get(hostId);
+            if (location.equals(prevLocation)) {
+                // The smac_table entry might be missing, e.g. on a device
+                // reprogrammed by a previous version of the app.
+                ops.add(new FlowRuleOperation(buildSmacFlowRule(mac, location),
+                                              FlowRuleOperation.Type.ADD));
+                continue;
+            }
+            if (prevLocation != null && prevLocation.deviceId().equals(deviceId)) {
+                ops.add(new FlowRuleOperation(buildSmacFlowRule(mac, prevLocation),
+                                              FlowRuleOperation.Type.REMOVE));
+            } else if (prevLocation != null &&
+                    mastershipService.isLocalMaster(prevLocation.deviceId())) {
+                execute(prevLocation.deviceId(), () -> forgetHost(hostId, prevLocation));
+            }
+            learnedHosts.put(hostId, location);
+            ops.add(new FlowRuleOperation(buildHostFlowRule(mac, location),
+                                          FlowRuleOperation.Type.ADD));
+            ops.add(new FlowRuleOperation(buildSmacFlowRule(mac, location),
+                                          FlowRuleOperation.Type.ADD));
+        }
+        log.info("Learned {} MACs on {}", macs.size(), deviceId);
+        applyFlowRuleOperations(deviceId, ops);
+    }
+
+    /**
+     * Builds the flow rule to forward packets to a given host located at the
+     * given device and port.
+     *
+     * @param hostMac  host MAC address
+     * @param location device and port where the host is attached to
+     * @return unicast flow rule
+     */
+    private FlowRule buildHostFlowRule(MacAddress hostMac, ConnectPoint location) {
+
+        // Match exactly on the host MAC address.
         final PiCriterion hostMacCriterion = PiCriterion.builder()
                 .matchExact(PiMatchFieldId.of("hdr.ethernet.dst_addr"),
                         hostMac.toBytes())
@@ -290,15 +777,169 @@ public class L2BridgingComponent {
                 .withId(PiActionId.of("IngressPipeImpl.set_egress_port"))
                 .withParameter(new PiActionParam(
                         PiActionParamId.of("port_num"),
-                        port.toLong()))
+                        location.port().toLong()))
                 .build();
 
         // Forge flow rule.
-        final FlowRule rule = Utils.buildFlowRule(
-                deviceId, appId, tableId, hostMacCriterion, l2UnicastAction);
+        return Utils.buildFlowRule(
+                location.deviceId(), appId, L2_EXACT_TABLE,
+                hostMacCriterion, l2UnicastAction);
+    }
+
+    /**
+     * Builds the flow rule telling the switch that the given host is known at
+     * the given port, so that its packets are no longer sent for learning.
+     *
+     * @param hostMac  host MAC address
+     * @param location device and port where the host is attached to
+     * @return source MAC flow rule
+     */
+    private FlowRule buildSmacFlowRule(MacAddress hostMac, ConnectPoint location) {
+
+        // Match exactly on the host MAC address and port.
+        final PiCriterion smacCriterion = PiCriterion.builder()
+                .matchExact(PiMatchFieldId.of("hdr.ethernet.src_addr"),
+                        hostMac.toBytes())
+                .matchExact(PiMatchFieldId.of("standard_metadata.ingress_port"),
+                        location.port().toLong())
+                .build();
+
+        final PiAction noAction = PiAction.builder()
+                .withId(PiActionId.of("NoAction"))
+                .build();
+
+        return Utils.buildFlowRule(
+                location.deviceId(), appId, SMAC_TABLE,
+                smacCriterion, noAction);
+    }
+
+    /**
+     * Builds the default flow rule of the source MAC table, cloning the
+     * packets of unknown hosts to the CPU for learning.
+     *
+     * @param deviceId device ID where to install the rule
+     * @return learning flow rule
+     */
+    private FlowRule buildLearnFlowRule(DeviceId deviceId) {
+        final PiAction learnAction = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.learn"))
+                .withParameter(new PiActionParam(
+                        PiActionParamId.of("session_id"),
+                        deviceIdentityRegistry.cloneSessionId(deviceId)))
+                .build();
+
+        return Utils.buildFlowRuleDefaultAction(
+                deviceId, appId, SMAC_TABLE, learnAction);
+    }
+
+    /**
+     * Compares the given desired flow rules with the L2 bridging entries of
+     * this app currently on the device, and writes only the rules that need
+     * to be added, modified (same match, different action) or removed.
+     *
+     * @param deviceId     device ID
+     * @param desiredRules flow rules that the device should have
+     */
+    private void reconcileFlowRules(DeviceId deviceId, Collection<FlowRule> desiredRules) {
+        final Map<FlowId, FlowRule> toAdd = Maps.newHashMap();
+        desiredRules.forEach(r -> toAdd.put(r.id(), r));
+
+        final List<FlowRuleOperation> ops = Lists.newArrayList();
+
+        for (FlowEntry entry : flowRuleService.getFlowEntries(deviceId)) {
+            if (entry.appId() != appId.id() || !BRIDGING_TABLES.contains(entry.table())) {
+                continue;
+            }
+            if (entry.state() == FlowEntry.FlowEntryState.PENDING_REMOVE ||
+                    entry.state() == FlowEntry.FlowEntryState.REMOVED) {
+                // Going away, re-add if still desired.
+                continue;
+            }
+            final FlowRule desired = toAdd.remove(entry.id());
+            if (desired == null) {
+                ops.add(new FlowRuleOperation(entry, FlowRuleOperation.Type.REMOVE));
+            } else if (!desired.treatment().equals(entry.treatment())) {
+                ops.add(new FlowRuleOperation(desired, FlowRuleOperation.Type.MODIFY));
+            }
+        }
+        final int changed = ops.size();
+        toAdd.values().forEach(r -> ops.add(
+                new FlowRuleOperation(r, FlowRuleOperation.Type.ADD)));
+
+        if (ops.isEmpty()) {
+            log.info("L2 bridging rules on {} are up to date", deviceId);
+            return;
+        }
+
+        log.info("Reconciling L2 bridging rules on {}: {} to add, {} to modify or remove",
+                 deviceId, toAdd.size(), changed);
 
-        // Insert.
-        flowRuleService.applyFlowRules(rule);
+        applyFlowRuleOperations(deviceId, ops);
+    }
+
+    /**
+     * Writes the given flow rules to the device, see
+     * {@link #applyFlowRuleOperations(DeviceId, List)}.
+     *
+     * @param deviceId device where the rules are installed
+     * @param rules    flow rules to install
+     */
+    private void applyFlowRules(DeviceId deviceId, Collection<FlowRule> rules) {
+        applyFlowRuleOperations(deviceId, rules.stream()
+                .map(r -> new FlowRuleOperation(r, FlowRuleOperation.Type.ADD))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Writes the given flow rule operations to the device using
+     * FlowRuleOperations batches of at most flowRuleBatchSize operations,
+     * instead of issuing one store write and one P4Runtime write request per
+     * rule.
+     *
+     * @param deviceId   device where the rules are written
+     * @param operations flow rule operations
+     */
+    private void applyFlowRuleOperations(DeviceId deviceId,
+                                         List<FlowRuleOperation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+
+        final int batchSize = flowRuleBatchSize;
+        for (List<FlowRuleOperation> batch : Iterables.partition(operations, batchSize)) {
+            final FlowRuleOperations.Builder builder = FlowRuleOperations.builder();
+            for (FlowRuleOperation op : batch) {
+                switch (op.type()) {
+                    case ADD:
+                        builder.add(op.rule());
+                        break;
+                    case MODIFY:
+                        builder.modify(op.rule());
+                        break;
+                    case REMOVE:
+                        builder.remove(op.rule());
+                        break;
+                    default:
+                        log.warn("Unknown operation {}", op.type());
+                }
+            }
+            final long submitTime = System.nanoTime();
+            flowRuleService.apply(builder.build(new FlowRuleOperationsContext() {
+                @Override
+                public void onSuccess(FlowRuleOperations ops) {
+                    metrics.recordInstallConfirmation(
+                            deviceId, System.nanoTime() - submitTime);
+                    log.debug("Applied {} flow rule operations on {}",
+                              batch.size(), deviceId);
+                }
+
+                @Override
+                public void onError(FlowRuleOperations ops) {
+                    log.warn("Unable to apply some of {} flow rule operations on {}",
+                             batch.size(), deviceId);
+                }
+            }));
+        }
     }
 
     //--------------------------------------------------------------------------
@@ -318,6 +959,9 @@ public class L2BridgingComponent {
                 case DEVICE_ADDED:
                 case DEVICE_AVAILABILITY_CHANGED:
                     break;
+                case DEVICE_REMOVED:
+                    // Metrics are recorded by every instance.
+                    return true;
                 default:
                     // Ignore other events.
                     return false;
@@ -330,18 +974,181 @@ public class L2BridgingComponent {
         @Override
         public void event(DeviceEvent event) {
             final DeviceId deviceId = event.subject().id();
-            if (deviceService.isAvailable(deviceId)) {
-                // A P4Runtime device is considered available in ONOS when there
-                // is a StreamChannel session open and the pipeline
-                // configuration has been set.
+            if (event.type() == DeviceEvent.Type.DEVICE_REMOVED) {
+                // After the tasks already queued for the device, without
+                // recording the wait of this one.
+                mainComponent.execute(deviceId, () -> {
+                    metrics.unregister(deviceId);
+                    mainComponent.removeQueueDepth(deviceId);
+                });
+                return;
+            }
+            // Availability is evaluated when the coalesced set up fires, as
+            // links flap and the device might be gone again by then.
+            scheduleDeviceSetUp(deviceId, event.type());
+        }
+    }
+
+    /**
+     * Schedules set up of the given device after the coalescing window. Events
+     * received for the same device while a set up is pending are collapsed
+     * into the pending one, so a device toggling its availability many times
+     * within the window is set up only once.
+     *
+     * @param deviceId  device ID
+     * @param eventType type of the event that triggered the set up
+     */
+    private void scheduleDeviceSetUp(DeviceId deviceId, Enum<?> eventType) {
+        if (pendingDeviceSetUps.containsKey(deviceId)) {
+            log.debug("{} event coalesced into pending set up of {}",
+                      eventType, deviceId);
+            return;
+        }
 
-                // Events are processed using a thread pool defined in the
-                // MainComponent.
-                mainComponent.getExecutorService().execute(() -> {
-                    log.info("{} event! deviceId={}", event.type(), deviceId);
+        // A set up firing right away waits for its future to be mapped,
+        // before removing it.
+        pendingDeviceSetUps.computeIfAbsent(deviceId, d ->
+                SharedScheduledExecutors.getSingleThreadExecutor().schedule(
+                        () -> dispatchDeviceSetUp(deviceId, eventType),
+                        deviceEventCoalesceWindow, TimeUnit.MILLISECONDS));
+    }
 
-                    setUpDevice(deviceId);
-                });
+    /**
+     * Dispatches the set up of the given device, scheduled after the
+     * coalescing window, to the executor of the device.
+     *
+     * @param deviceId  device ID
+     * @param eventType type of the event that triggered the set up
+     */
+    private void dispatchDeviceSetUp(DeviceId deviceId, Enum<?> eventType) {
+        if (pendingDeviceSetUps.remove(deviceId) == null) {
+            // Cancelled at deactivation.
+            return;
+        }
+        // Events are processed using the per-device executor defined
+        // in the MainComponent.
+        execute(deviceId, () -> {
+            if (!isReadyForSetUp(deviceId)) {
+                // Set up again by the pipeline listener once ready.
+                log.debug("{} not ready for set up, {} event ignored",
+                          deviceId, eventType);
+                return;
+            }
+            log.info("{} event! deviceId={}", eventType, deviceId);
+
+            setUpDevice(deviceId);
+        });
+    }
+
+    /**
+     * Listener of pipeline readiness events. The watchdog reports a device
+     * pipeline ready once it has verified that the device runs the pipeline
+     * configuration ONOS expects, which might happen well after the device
+     * became available.
+     */
+    public class InternalPipelineListener implements PiPipeconfWatchdogListener {
+
+        @Override
+        public boolean isRelevant(PiPipeconfWatchdogEvent event) {
+            return event.type() == PiPipeconfWatchdogEvent.Type.PIPELINE_READY &&
+                    mastershipService.isLocalMaster(event.subject());
+        }
+
+        @Override
+        public void event(PiPipeconfWatchdogEvent event) {
+            scheduleDeviceSetUp(event.subject(), event.type());
+        }
+    }
+
+    /**
+     * Listener of mastership events. When this instance becomes master of a
+     * device, the device is reconciled with the shared learned host table
+     * without waiting for a device event.
+     */
+    public class InternalMastershipListener implements MastershipListener {
+
+        @Override
+        public boolean isRelevant(MastershipEvent event) {
+            return event.type() == MastershipEvent.Type.MASTER_CHANGED &&
+                    mastershipService.isLocalMaster(event.subject());
+        }
+
+        @Override
+        public void event(MastershipEvent event) {
+            scheduleDeviceSetUp(event.subject(), event.type());
+        }
+    }
+
+    /**
+     * Listener of interface events, used to keep the interface port index up
+     * to date.
+     */
+    public class InternalInterfaceListener implements InterfaceListener {
+
+        @Override
+        public void event(InterfaceEvent event) {
+            final ConnectPoint connectPoint = event.subject().connectPoint();
+            switch (event.type()) {
+                case INTERFACE_ADDED:
+                    updateInterfacePort(connectPoint, true);
+                    break;
+                case INTERFACE_REMOVED:
+                    // Other interfaces might still be configured on the port.
+                    updateInterfacePort(connectPoint, !interfaceService
+                            .getInterfacesByPort(connectPoint).isEmpty());
+                    break;
+                case INTERFACE_UPDATED:
+                    final Interface prevIntf = event.prevSubject();
+                    if (prevIntf != null && !prevIntf.connectPoint().equals(connectPoint)) {
+                        updateInterfacePort(prevIntf.connectPoint(), !interfaceService
+                                .getInterfacesByPort(prevIntf.connectPoint()).isEmpty());
+                    }
+                    updateInterfacePort(connectPoint, true);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Listener of network config events for interfaces. The interface service
+     * reacts to the same events, this listener makes sure the index does not
+     * depend on the order in which listeners are notified.
+     */
+    public class InternalConfigListener implements NetworkConfigListener {
+
+        @Override
+        public boolean isRelevant(NetworkConfigEvent event) {
+            return event.configClass().equals(InterfaceConfig.class) &&
+                    event.subject() instanceof ConnectPoint;
+        }
+
+        @Override
+        public void event(NetworkConfigEvent event) {
+            final ConnectPoint connectPoint = (ConnectPoint) event.subject();
+            switch (event.type()) {
+                case CONFIG_ADDED:
+                case CONFIG_UPDATED:
+                    updateInterfacePort(connectPoint, event.config()
+                            .map(c -> hasInterfaces((InterfaceConfig) c))
+                            .orElse(false));
+                    break;
+                case CONFIG_REMOVED:
+                    updateInterfacePort(connectPoint, false);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private boolean hasInterfaces(InterfaceConfig config) {
+            try {
+                return !config.getInterfaces().isEmpty();
+            } catch (ConfigException e) {
+                log.warn("Invalid interface config for {}: {}",
+                         config.subject(), e.getMessage());
+                return false;
             }
         }
     }
@@ -357,34 +1164,80 @@ public class L2BridgingComponent {
                 case HOST_ADDED:
                     // Host added events will be generated by the
                     // HostLocationProvider by intercepting ARP/NDP packets.
-                    break;
                 case HOST_REMOVED:
                 case HOST_UPDATED:
                 case HOST_MOVED:
+                    break;
                 default:
                     // Ignore other events.
                     return false;
             }
             // Process host event only if this controller instance is the master
-            // for the device where this host is attached to.
+            // for the device where this host is, or was, attached to.
             final Host host = event.subject();
-            final DeviceId deviceId = host.location().deviceId();
-            return mastershipService.isLocalMaster(deviceId);
+            final Host prevHost = event.prevSubject();
+            return mastershipService.isLocalMaster(host.location().deviceId()) ||
+                    (prevHost != null &&
+                            mastershipService.isLocalMaster(prevHost.location().deviceId()));
         }
 
         @Override
         public void event(HostEvent event) {
             final Host host = event.subject();
             // Device and port where the host is located.
-            final DeviceId deviceId = host.location().deviceId();
-            final PortNumber port = host.location().port();
+            final ConnectPoint location = toConnectPoint(host.location());
+            // Device and port where we installed the host rule, if any.
+            ConnectPoint prevLocation = learnedHosts.get(host.id());
+            if (prevLocation == null && event.prevSubject() != null) {
+                prevLocation = toConnectPoint(event.prevSubject().location());
+            }
 
-            mainComponent.getExecutorService().execute(() -> {
-                log.info("{} event! host={}, deviceId={}, port={}",
-                        event.type(), host.id(), deviceId, port);
+            log.info("{} event! host={}, location={}, previous location={}",
+                    event.type(), host.id(), location, prevLocation);
 
-                learnHost(host, deviceId, port);
-            });
+            switch (event.type()) {
+                case HOST_ADDED:
+                    executeIfMaster(location.deviceId(),
+                                    () -> learnHost(host, location));
+                    break;
+                case HOST_REMOVED:
+                    if (prevLocation == null) {
+                        prevLocation = location;
+                    }
+                    final ConnectPoint removedLocation = prevLocation;
+                    executeIfMaster(removedLocation.deviceId(),
+                                    () -> forgetHost(host.id(), removedLocation));
+                    break;
+                case HOST_MOVED:
+                case HOST_UPDATED:
+                    if (location.equals(prevLocation)) {
+                        // e.g. only the IP addresses have changed.
+                        break;
+                    }
+                    if (prevLocation == null) {
+                        executeIfMaster(location.deviceId(),
+                                        () -> learnHost(host, location));
+                    } else if (prevLocation.deviceId().equals(location.deviceId())) {
+                        final ConnectPoint oldLocation = prevLocation;
+                        executeIfMaster(location.deviceId(),
+                                        () -> relearnHost(host.mac(), oldLocation, location));
+                    } else {
+                        final ConnectPoint oldLocation = prevLocation;
+                        executeIfMaster(oldLocation.deviceId(),
+                                        () -> forgetHost(host.id(), oldLocation));
+                        executeIfMaster(location.deviceId(),
+                                        () -> learnHost(host, location));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void executeIfMaster(DeviceId deviceId, Runnable task) {
+            if (mastershipService.isLocalMaster(deviceId)) {
+                execute(deviceId, task);
+            }
         }
     }
 
@@ -392,6 +1245,32 @@ public class L2BridgingComponent {
     // UTILITY METHODS
     //--------------------------------------------------------------------------
 
+    /**
+     * Executes a task for the given device on the per-device executor defined
+     * in the MainComponent, recording how long the task waited in the queue.
+     *
+     * @param deviceId device ID
+     * @param task     task runnable
+     */
+    private void execute(DeviceId deviceId, Runnable task) {
+        final long queuedTime = System.nanoTime();
+        mainComponent.execute(deviceId, () -> {
+            metrics.recordQueueWait(deviceId, System.nanoTime() - queuedTime);
+            task.run();
+        });
+    }
+
+    /**
+     * Returns a plain connect point for the given host location, so that it
+     * can be compared regardless of the time the location was detected.
+     *
+     * @param location host location
+     * @return connect point
+     */
+    private static ConnectPoint toConnectPoint(HostLocation location) {
+        return new ConnectPoint(location.deviceId(), location.port());
+    }
+
     /**
      * Returns a set of ports for the given device that are used to connect
      * hosts to the fabric.
@@ -412,28 +1291,116 @@ public class L2BridgingComponent {
         //     }
         //   ]
         // }
-        return interfaceService.getInterfaces().stream()
-                .map(Interface::connectPoint)
-                .filter(cp -> cp.deviceId().equals(deviceId))
-                .map(ConnectPoint::port)
-                .collect(Collectors.toSet());
+        //
+        // The index is kept up to date by the InternalInterfaceListener and
+        // the InternalConfigListener, hence this is a single map lookup.
+        return interfacePorts.getPorts(deviceId);
+    }
+
+    /**
+     * Updates the interface port index for the given port, based on whether
+     * the port still has interfaces configured.
+     *
+     * @param connectPoint   device and port
+     * @param hasInterfaces whether the port has interfaces configured
+     */
+    private void updateInterfacePort(ConnectPoint connectPoint, boolean hasInterfaces) {
+        final boolean changed = hasInterfaces
+                ? interfacePorts.addPort(connectPoint)
+                : interfacePorts.removePort(connectPoint);
+        if (!changed) {
+            return;
+        }
+        final DeviceId deviceId = connectPoint.deviceId();
+        log.info("Host facing ports of {} are now {}",
+                 deviceId, interfacePorts.getPorts(deviceId));
+        if (deviceService.isAvailable(deviceId) &&
+                mastershipService.isLocalMaster(deviceId)) {
+            execute(deviceId, () -> updateBroadcastGroupBucket(
+                    connectPoint, hasInterfaces));
+        }
+    }
+
+    /**
+     * Adds or removes the replication bucket of the given port to/from the
+     * broadcast group of the device, so that a change of the host facing
+     * ports costs a single bucket write instead of re-creating the group.
+     *
+     * @param connectPoint device and port
+     * @param add          true to add the bucket, false to remove it
+     */
+    private void updateBroadcastGroupBucket(ConnectPoint connectPoint, boolean add) {
+        final DeviceId deviceId = connectPoint.deviceId();
+        final GroupKey groupKey = Utils.buildReplicationGroupKey(
+                DEFAULT_BROADCAST_GROUP_ID);
+        final Group group = groupService.getGroup(deviceId, groupKey);
+        final GroupBucket bucket = Utils.buildMulticastGroupBucket(connectPoint.port());
+        final GroupBuckets delta = new GroupBuckets(Collections.singletonList(bucket));
+
+        if (add) {
+            if (group == null) {
+                // First host facing port of the device.
+                reconcileBroadcastGroup(deviceId);
+            } else if (!group.buckets().buckets().contains(bucket)) {
+                log.info("Adding port {} to L2 multicast group on {}...",
+                         connectPoint.port(), deviceId);
+                groupService.addBucketsToGroup(
+                        deviceId, groupKey, delta, groupKey, appId);
+            }
+        } else if (group != null && group.buckets().buckets().contains(bucket)) {
+            if (group.buckets().buckets().size() == 1) {
+                // Last host facing port of the device.
+                reconcileBroadcastGroup(deviceId);
+            } else {
+                log.info("Removing port {} from L2 multicast group on {}...",
+                         connectPoint.port(), deviceId);
+                groupService.removeBucketsFromGroup(
+                        deviceId, groupKey, delta, groupKey, appId);
+            }
+        }
     }
 
     /**
-     * Sets up L2 bridging on all devices known by ONOS and for which this ONOS
-     * node instance is currently master.
+     * Returns true if the given device can accept the L2 bridging writes of
+     * this app, that is: the pipeconf of this app is registered, the device
+     * is available with that pipeconf applied and its pipeline verified by
+     * the watchdog, and this ONOS node instance is master for the device.
+     *
+     * @param deviceId device ID
+     * @return true if the device is ready to be set up, false otherwise
+     */
+    private boolean isReadyForSetUp(DeviceId deviceId) {
+        // A P4Runtime device is considered available in ONOS when there is a
+        // StreamChannel session open and the pipeline configuration has been
+        // set.
+        return pipeconfService.getPipeconf(PIPECONF_ID).isPresent() &&
+                deviceService.isAvailable(deviceId) &&
+                pipeconfService.getPipeconf(deviceId)
+                        .map(pipeconf -> PIPECONF_ID.equals(pipeconf.id())).orElse(false) &&
+                pipeconfWatchdogService.getStatus(deviceId) ==
+                        PiPipeconfWatchdogService.PipelineStatus.READY &&
+                mastershipService.isLocalMaster(deviceId);
+    }
+
+    /**
+     * Sets up L2 bridging on all devices known by ONOS that are ready to be
+     * set up, see {@link #isReadyForSetUp(DeviceId)}.
      * <p>
-     * This method is called at component activation.
+     * This method is called at component activation. Set up of each device
+     * is dispatched to the executor stripe of that device, so devices are set
+     * up in parallel.
      */
     private void setUpAllDevices() {
         deviceService.getAvailableDevices().forEach(device -> {
             if (mastershipService.isLocalMaster(device.id())) {
-                log.info("*** L2 BRIDGING - Starting initial set up for {}...", device.id());
-                setUpDevice(device.id());
-                // For all hosts connected to this device...
-                hostService.getConnectedHosts(device.id()).forEach(
-                        host -> learnHost(host, host.location().deviceId(),
-                                host.location().port()));
+                execute(device.id(), () -> {
+                    if (!isReadyForSetUp(device.id())) {
+                        log.info("{} not ready yet, waiting for its pipeline", device.id());
+                        return;
+                    }
+                    log.info("*** L2 BRIDGING - Starting initial set up for {}...", device.id());
+                    setUpDevice(device.id());
+                });
             }
         });
     }
@@ -1,41 +1,63 @@
 package org.onosproject.sdvn;
 
 import java.util.Collection;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.onlab.util.SharedScheduledExecutors;
+import org.onlab.util.Tools;
 import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
 import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
 import org.onosproject.net.config.NetworkConfigRegistry;
 import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
 import org.onosproject.net.flow.FlowRuleService;
 import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupListener;
 import org.onosproject.net.group.GroupService;
 import static org.onosproject.sdvn.AppConstants.APP_NAME;
-import static org.onosproject.sdvn.AppConstants.CLEAN_UP_DELAY;
-import static org.onosproject.sdvn.AppConstants.DEFAULT_CLEAN_UP_RETRY_TIMES;
-import static org.onosproject.sdvn.common.Utils.sleep;
+import static org.onosproject.sdvn.AppConstants.CLEAN_UP_TIMEOUT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.WARM_RESTART;
+import static org.onosproject.sdvn.OsgiPropertyConstants.WARM_RESTART_DEFAULT;
+import org.onosproject.sdvn.common.StripedExecutor;
 import org.onosproject.sdvn.pipeconf.PipeconfLoader;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
  * A component which among other things registers the fabricDeviceConfig to the
  * netcfg subsystem.
  */
-@Component(immediate = true, service = MainComponent.class)
+@Component(
+        immediate = true,
+        service = MainComponent.class,
+        property = {
+                WARM_RESTART + ":Boolean=" + WARM_RESTART_DEFAULT,
+        }
+)
 public class MainComponent {
 
     private static final Logger log =
@@ -66,16 +88,49 @@ public class MainComponent {
 
     private ApplicationId appId;
 
-    // For the sake of simplicity and to facilitate reading logs, use a
-    // single-thread executor to serialize all configuration tasks.
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    // When enabled, flows and groups of this app are left on the devices
+    // across app reloads, so that reloading the app does not disrupt
+    // forwarding. After the reload, each component reconciles the entries of
+    // the tables it owns: l2_exact_table, smac_table and the broadcast group
+    // by the L2BridgingComponent, which adopts the entries of the MACs
+    // learned by the data plane, dedup_config_table rewritten at activation,
+    // gossip_config_table reset when gossip is disabled, and next_hop_table
+    // emptied when directed forwarding is disabled. The acl_table, the
+    // uplink_table and the clone groups are written by the pipeliner on
+    // behalf of the flow objectives of other apps, and are left to them.
+    private volatile boolean warmRestart = WARM_RESTART_DEFAULT;
+
+    // Devices whose groups are being removed, see cleanUp().
+    private final Map<DeviceId, CompletableFuture<Void>> pendingGroupRemovals =
+            Maps.newConcurrentMap();
+    private final GroupListener groupListener = new InternalGroupListener();
+
+    // Configuration tasks are serialized per device: tasks for the same device
+    // always run on the same stripe, in order, while tasks for different
+    // devices run in parallel. A slow device cannot delay other devices.
+    private final StripedExecutor executor = new StripedExecutor(
+            Runtime.getRuntime().availableProcessors(),
+            "onos/sdvn", "device-stripe-%d", log);
+    // Configuration tasks waiting in the executor, by device.
+    private final Map<DeviceId, AtomicInteger> queuedTasks = Maps.newConcurrentMap();
 
     @Activate
-    protected void activate() {
+    protected void activate(ComponentContext context) {
         appId = coreService.registerApplication(APP_NAME);
 
-        // Wait to remove flow and groups from previous executions.
-        waitPreviousCleanup();
+        compCfgService.registerProperties(getClass());
+        modified(context);
+
+        groupService.addListener(groupListener);
+
+        if (warmRestart) {
+            // Flows and groups from previous executions are adopted, the
+            // L2BridgingComponent reconciles them with the desired state.
+            log.info("Warm restart, keeping flows and groups of {}", appId.name());
+        } else {
+            // Wait to remove flow and groups from previous executions.
+            waitCleanup();
+        }
 
         compCfgService.preSetProperty("org.onosproject.net.flow.impl.FlowRuleManager",
                                         "fallbackFlowPollFrequency", "4", false);
@@ -92,11 +147,27 @@ public class MainComponent {
     @Deactivate
     protected void deactivate() {
 
-        cleanUp();
+        executor.shutdown();
+
+        if (!warmRestart) {
+            waitCleanup();
+        }
+        groupService.removeListener(groupListener);
+        compCfgService.unregisterProperties(getClass(), false);
 
         log.info("Stopped");
     }
 
+    @Modified
+    protected void modified(ComponentContext context) {
+        Boolean newWarmRestart = Tools.isPropertyEnabled(
+                context.getProperties(), WARM_RESTART);
+        if (newWarmRestart != null && newWarmRestart != warmRestart) {
+            warmRestart = newWarmRestart;
+            log.info("Configured {} = {}", WARM_RESTART, warmRestart);
+        }
+    }
+
     /**
      * Returns the application ID.
      *
@@ -107,72 +178,183 @@ public class MainComponent {
     }
 
     /**
-     * Returns the executor service managed by this component.
+     * Returns whether flows and groups of this app are kept across reloads.
      *
-     * @return executor service
+     * @return true for warm restarts
      */
-    public ExecutorService getExecutorService() {
-        return executorService;
+    boolean isWarmRestart() {
+        return warmRestart;
     }
 
     /**
-     * Schedules a task for the future using the executor service managed by
-     * this component.
+     * Executes a configuration task for the given device. Tasks for the same
+     * device are executed in submission order.
      *
-     * @param task task runnable
-     * @param delaySeconds delay in seconds
+     * @param deviceId device ID
+     * @param task     task runnable
      */
-    public void scheduleTask(Runnable task, int delaySeconds) {
-        SharedScheduledExecutors.newTimeout(
-                () -> executorService.execute(task),
-                delaySeconds, TimeUnit.SECONDS);
+    public void execute(DeviceId deviceId, Runnable task) {
+        final AtomicInteger queued =
+                queuedTasks.computeIfAbsent(deviceId, d -> new AtomicInteger());
+        queued.incrementAndGet();
+        executor.execute(deviceId, () -> {
+            queued.decrementAndGet();
+            task.run();
+        });
     }
 
     /**
-     * Triggers clean up of flows and groups from this app, returns false if no
-     * flows or groups were found, true otherwise.
+     * Returns the number of configuration tasks waiting in the executor for
+     * the given device.
      *
-     * @return false if no flows or groups were found, true otherwise
+     * @param deviceId device ID
+     * @return queue depth
      */
-    private boolean cleanUp() {
-        Collection<FlowRule> flows = Lists.newArrayList(
-                flowRuleService.getFlowEntriesById(appId).iterator());
+    public int getQueueDepth(DeviceId deviceId) {
+        final AtomicInteger queued = queuedTasks.get(deviceId);
+        return queued == null ? 0 : queued.get();
+    }
 
-        Collection<Group> groups = Lists.newArrayList();
+    /**
+     * Forgets the number of configuration tasks waiting for the given device,
+     * e.g. once removed.
+     *
+     * @param deviceId device ID
+     */
+    void removeQueueDepth(DeviceId deviceId) {
+        queuedTasks.remove(deviceId);
+    }
+
+    /**
+     * Triggers clean up of flows and groups from this app. Flows are removed
+     * with one FlowRuleOperations batch per device, and the groups of a device
+     * are removed as soon as the removal of its flows has been confirmed, in
+     * case those depend on groups. Returns null if no flows or groups were
+     * found, otherwise a future completed when all groups have been removed
+     * from the group store.
+     *
+     * @return null if no flows or groups were found, a future otherwise
+     */
+    private CompletableFuture<Void> cleanUp() {
+        final Map<DeviceId, List<FlowRule>> flows = Maps.newHashMap();
+        for (FlowRule flow : flowRuleService.getFlowEntriesById(appId)) {
+            flows.computeIfAbsent(flow.deviceId(), d -> Lists.newArrayList()).add(flow);
+        }
+
+        final Map<DeviceId, List<Group>> groups = Maps.newHashMap();
         for (Device device : deviceService.getAvailableDevices()) {
-            groupService.getGroups(device.id(), appId).forEach(groups::add);
+            groupService.getGroups(device.id(), appId).forEach(
+                    g -> groups.computeIfAbsent(g.deviceId(), d -> Lists.newArrayList()).add(g));
         }
 
         if (flows.isEmpty() && groups.isEmpty()) {
-            return false;
+            return null;
         }
 
-        flows.forEach(flowRuleService::removeFlowRules);
-        if (!groups.isEmpty()) {
-            // Wait for flows to be removed in case those depend on groups.
-            sleep(1000);
-            groups.forEach(g -> groupService.removeGroup(
-                    g.deviceId(), g.appCookie(), g.appId()));
+        final List<CompletableFuture<Void>> futures = Lists.newArrayList();
+        for (DeviceId deviceId : Sets.union(flows.keySet(), groups.keySet())) {
+            futures.add(cleanUpDevice(
+                    deviceId,
+                    flows.getOrDefault(deviceId, Collections.emptyList()),
+                    groups.getOrDefault(deviceId, Collections.emptyList())));
         }
-
-        return true;
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
     }
 
-    private void waitPreviousCleanup() {
-        int retry = DEFAULT_CLEAN_UP_RETRY_TIMES;
-        while (retry != 0) {
+    private CompletableFuture<Void> cleanUpDevice(DeviceId deviceId,
+                                                  Collection<FlowRule> flows,
+                                                  Collection<Group> groups) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
 
-            if (!cleanUp()) {
-                return;
+        if (flows.isEmpty()) {
+            removeGroups(deviceId, groups, future);
+            return future;
+        }
+
+        final FlowRuleOperations.Builder builder = FlowRuleOperations.builder();
+        flows.forEach(builder::remove);
+        flowRuleService.apply(builder.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                log.debug("Removed {} flows from {}", flows.size(), deviceId);
+                removeGroups(deviceId, groups, future);
             }
 
-            log.info("Waiting to remove flows and groups from " +
-                             "previous execution of {}...",
-                     appId.name());
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                log.warn("Unable to remove some of {} flows from {}",
+                         flows.size(), deviceId);
+                removeGroups(deviceId, groups, future);
+            }
+        }));
+        return future;
+    }
 
-            sleep(CLEAN_UP_DELAY);
+    private void removeGroups(DeviceId deviceId, Collection<Group> groups,
+                              CompletableFuture<Void> future) {
+        if (groups.isEmpty()) {
+            future.complete(null);
+            return;
+        }
+        // Completed by the group listener once the store has no groups left.
+        pendingGroupRemovals.put(deviceId, future);
+        groups.forEach(g -> groupService.removeGroup(
+                g.deviceId(), g.appCookie(), g.appId()));
+        checkGroupsRemoved(deviceId);
+    }
+
+    private void checkGroupsRemoved(DeviceId deviceId) {
+        final CompletableFuture<Void> future = pendingGroupRemovals.get(deviceId);
+        if (future != null &&
+                Iterables.isEmpty(groupService.getGroups(deviceId, appId)) &&
+                pendingGroupRemovals.remove(deviceId, future)) {
+            future.complete(null);
+        }
+    }
+
+    /**
+     * Blocks until the flows and groups of this app have been removed, or
+     * until the clean up timeout expires.
+     */
+    private void waitCleanup() {
+        final CompletableFuture<Void> cleanUpFuture = cleanUp();
+        if (cleanUpFuture == null) {
+            return;
+        }
+
+        log.info("Waiting to remove flows and groups of {}...", appId.name());
+
+        try {
+            cleanUpFuture.get(CLEAN_UP_TIMEOUT, TimeUnit.MILLISECONDS);
+            log.info("Removed flows and groups of {}", appId.name());
+        } catch (TimeoutException e) {
+            log.warn("Flows and groups of {} not removed after {} ms",
+                     appId.name(), CLEAN_UP_TIMEOUT);
+        } catch (ExecutionException e) {
+            log.warn("Unable to remove flows and groups of {}",
+                     appId.name(), e);
+        } catch (InterruptedException e) {
+            log.error("Interrupted!", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            pendingGroupRemovals.clear();
+        }
+    }
+
+    /**
+     * Listener of group events, used to confirm the removal of groups.
+     */
+    private class InternalGroupListener implements GroupListener {
+
+        @Override
+        public boolean isRelevant(GroupEvent event) {
+            return event.type() == GroupEvent.Type.GROUP_REMOVED &&
+                    pendingGroupRemovals.containsKey(event.subject().deviceId());
+        }
 
-            --retry;
+        @Override
+        public void event(GroupEvent event) {
+            checkGroupsRemoved(event.subject().deviceId());
         }
     }
 }
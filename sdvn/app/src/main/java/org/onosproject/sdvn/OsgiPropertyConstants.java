@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+/**
+ * Name/Value constants for properties of the app components.
+ */
+public final class OsgiPropertyConstants {
+
+    // Private constructor to prevent instantiation
+    private OsgiPropertyConstants() {
+        throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+    }
+
+    public static final String FLOW_RULE_BATCH_SIZE = "flowRuleBatchSize";
+    public static final int FLOW_RULE_BATCH_SIZE_DEFAULT = 500;
+
+    public static final String DEVICE_EVENT_COALESCE_WINDOW = "deviceEventCoalesceWindow";
+    public static final int DEVICE_EVENT_COALESCE_WINDOW_DEFAULT = 500; // milliseconds
+
+    public static final String WARM_RESTART = "warmRestart";
+    public static final boolean WARM_RESTART_DEFAULT = false; // keep app flows and groups across reloads
+
+    public static final String HOST_AGING_ENABLED = "hostAgingEnabled";
+    public static final boolean HOST_AGING_ENABLED_DEFAULT = true;
+
+    public static final String HOST_AGING_POLL_INTERVAL = "hostAgingPollInterval";
+    public static final int HOST_AGING_POLL_INTERVAL_DEFAULT = 30; // seconds
+
+    public static final String HOST_IDLE_TIMEOUT = "hostIdleTimeout";
+    public static final int HOST_IDLE_TIMEOUT_DEFAULT = 300; // seconds
+
+    public static final String OBJECTIVE_BATCH_WINDOW = "objectiveBatchWindow";
+    public static final int OBJECTIVE_BATCH_WINDOW_DEFAULT = 10; // milliseconds
+
+    public static final String CPU_METER_RATE = "cpuMeterRate";
+    public static final int CPU_METER_RATE_DEFAULT = 100; // packets per second per port, 0 for no limit
+
+    public static final String CPU_METER_BURST = "cpuMeterBurst";
+    public static final int CPU_METER_BURST_DEFAULT = 50; // packets
+
+    public static final String PACKET_IN_RATE = "packetInRate";
+    public static final int PACKET_IN_RATE_DEFAULT = 500; // packets per second per device, 0 for no limit
+
+    public static final String PACKET_IN_BURST = "packetInBurst";
+    public static final int PACKET_IN_BURST_DEFAULT = 100; // packets
+
+    public static final String MAC_LEARNING_BATCH_WINDOW = "macLearningBatchWindow";
+    public static final int MAC_LEARNING_BATCH_WINDOW_DEFAULT = 50; // milliseconds
+
+    public static final String DEDUP_TABLE_SIZE = "dedupTableSize";
+    public static final int DEDUP_TABLE_SIZE_DEFAULT = 4096; // seen-set entries, at most 65536
+
+    public static final String DEDUP_EXPIRY = "dedupExpiry";
+    public static final int DEDUP_EXPIRY_DEFAULT = 1000; // milliseconds
+
+    public static final String GOSSIP_ENABLED = "gossipEnabled";
+    public static final boolean GOSSIP_ENABLED_DEFAULT = false;
+
+    public static final String GOSSIP_FANOUT = "gossipFanout";
+    public static final int GOSSIP_FANOUT_DEFAULT = 3; // expected relays per broadcast
+
+    public static final String GOSSIP_TUNE_INTERVAL = "gossipTuneInterval";
+    public static final int GOSSIP_TUNE_INTERVAL_DEFAULT = 10; // seconds
+
+    public static final String DIRECTED_FORWARDING_ENABLED = "directedForwardingEnabled";
+    public static final boolean DIRECTED_FORWARDING_ENABLED_DEFAULT = false;
+
+    public static final String ROUTE_UPDATE_INTERVAL = "routeUpdateInterval";
+    public static final int ROUTE_UPDATE_INTERVAL_DEFAULT = 5; // seconds
+
+    public static final String NEIGHBOR_TIMEOUT = "neighborTimeout";
+    public static final int NEIGHBOR_TIMEOUT_DEFAULT = 15; // seconds
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.Dictionary;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.onlab.metrics.MetricsComponent;
+import org.onlab.metrics.MetricsFeature;
+import org.onlab.metrics.MetricsService;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onlab.util.Tools;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.cfg.ConfigProperty;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipEvent;
+import org.onosproject.mastership.MastershipListener;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.config.NetworkConfigService;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.meter.Band;
+import org.onosproject.net.meter.DefaultBand;
+import org.onosproject.net.meter.DefaultMeterRequest;
+import org.onosproject.net.meter.Meter;
+import org.onosproject.net.meter.MeterCellId;
+import org.onosproject.net.meter.MeterRequest;
+import org.onosproject.net.meter.MeterScope;
+import org.onosproject.net.meter.MeterService;
+import org.onosproject.net.pi.model.PiCounterId;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogEvent;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogListener;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogService;
+import org.onosproject.p4runtime.api.P4RuntimeController;
+import static org.onosproject.sdvn.OsgiPropertyConstants.CPU_METER_BURST;
+import static org.onosproject.sdvn.OsgiPropertyConstants.CPU_METER_BURST_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.CPU_METER_RATE;
+import static org.onosproject.sdvn.OsgiPropertyConstants.CPU_METER_RATE_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.PACKET_IN_BURST;
+import static org.onosproject.sdvn.OsgiPropertyConstants.PACKET_IN_BURST_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.PACKET_IN_RATE;
+import static org.onosproject.sdvn.OsgiPropertyConstants.PACKET_IN_RATE_DEFAULT;
+import org.onosproject.sdvn.common.PiCounterReader;
+import org.onosproject.sdvn.pipeconf.PacketInRateLimiter;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * App component that protects the controller from packet-in storms, at two
+ * levels:
+ * <ul>
+ * <li>on the switch, by configuring the per ingress port clone_to_cpu_meter
+ * of main.p4 through the MeterService;</li>
+ * <li>on the controller, by configuring the per device token bucket of the
+ * interpreter, see {@link PacketInRateLimiter}.</li>
+ * </ul>
+ * Both rates can be changed at runtime. The packets dropped by each level are
+ * exposed as "{deviceId}.switchDrops" and "{deviceId}.controllerDrops" gauges
+ * of the "sdvn"/"packetIn" metrics.
+ * <p>
+ * Meters are written at the index of the ingress port, which requires the
+ * MeterService to run in user defined index mode, i.e. the userDefinedIndex
+ * property of the MeterManager component to be true. Otherwise the switch
+ * level is disabled with a warning, and only the controller level applies.
+ */
+@Component(
+        immediate = true,
+        property = {
+                CPU_METER_RATE + ":Integer=" + CPU_METER_RATE_DEFAULT,
+                CPU_METER_BURST + ":Integer=" + CPU_METER_BURST_DEFAULT,
+                PACKET_IN_RATE + ":Integer=" + PACKET_IN_RATE_DEFAULT,
+                PACKET_IN_BURST + ":Integer=" + PACKET_IN_BURST_DEFAULT,
+        }
+)
+public class PacketInRateLimitComponent {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    // From the P4Info file
+    private static final String CLONE_TO_CPU_METER = "IngressPipeImpl.clone_to_cpu_meter";
+    private static final PiCounterId CLONE_TO_CPU_DROP_COUNTER =
+            PiCounterId.of("IngressPipeImpl.clone_to_cpu_drop_counter");
+
+    private static final String METER_MANAGER = "org.onosproject.net.meter.impl.MeterManager";
+    private static final String USER_DEFINED_INDEX = "userDefinedIndex";
+
+    private static final String METRICS_COMPONENT = "sdvn";
+    private static final String METRICS_FEATURE = "packetIn";
+    private static final int DROP_POLL_INTERVAL = 10; // seconds
+
+    /** Rate in packets per second of the clone to CPU meter of each port, 0 for no limit. */
+    private volatile int cpuMeterRate = CPU_METER_RATE_DEFAULT;
+
+    /** Burst in packets of the clone to CPU meter of each port. */
+    private volatile int cpuMeterBurst = CPU_METER_BURST_DEFAULT;
+
+    /** Rate in packets per second of the packet-ins accepted per device, 0 for no limit. */
+    private volatile int packetInRate = PACKET_IN_RATE_DEFAULT;
+
+    /** Burst in packets of the packet-ins accepted per device. */
+    private volatile int packetInBurst = PACKET_IN_BURST_DEFAULT;
+
+    // Meters written on each device, by port.
+    private final Map<DeviceId, Map<PortNumber, PortMeter>> meters = Maps.newConcurrentMap();
+    // Packets dropped by the switch meters at the last poll, by device.
+    private final Map<DeviceId, Long> switchDrops = Maps.newConcurrentMap();
+    private final Set<String> gauges = Sets.newConcurrentHashSet();
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final PiPipeconfWatchdogListener pipelineListener = new InternalPipelineListener();
+    private final MastershipListener mastershipListener = new InternalMastershipListener();
+
+    private ApplicationId appId;
+    private PiCounterReader counterReader;
+    private MetricsComponent metricsComponent;
+    private MetricsFeature metricsFeature;
+    private ScheduledFuture<?> pollTask;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MeterService meterService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PiPipeconfService pipeconfService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PiPipeconfWatchdogService pipeconfWatchdogService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private P4RuntimeController p4RuntimeController;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private NetworkConfigService configService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsService metricsService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService compCfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Activate
+    protected void activate(ComponentContext context) {
+        appId = mainComponent.getAppId();
+        counterReader = new PiCounterReader(p4RuntimeController, pipeconfService, configService);
+        metricsComponent = metricsService.registerComponent(METRICS_COMPONENT);
+        metricsFeature = metricsComponent.registerFeature(METRICS_FEATURE);
+
+        deviceService.addListener(deviceListener);
+        pipeconfWatchdogService.addListener(pipelineListener);
+        mastershipService.addListener(mastershipListener);
+
+        compCfgService.registerProperties(getClass());
+        modified(context);
+
+        pollTask = SharedScheduledExecutors.getSingleThreadExecutor().scheduleAtFixedRate(
+                this::pollSwitchDrops, DROP_POLL_INTERVAL, DROP_POLL_INTERVAL, TimeUnit.SECONDS);
+
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        mastershipService.removeListener(mastershipListener);
+        pipeconfWatchdogService.removeListener(pipelineListener);
+        deviceService.removeListener(deviceListener);
+        compCfgService.unregisterProperties(getClass(), false);
+        if (pollTask != null) {
+            pollTask.cancel(false);
+            pollTask = null;
+        }
+        meters.values().forEach(deviceMeters -> deviceMeters.values().forEach(
+                m -> meterService.withdraw(m.request, m.cellId)));
+        meters.clear();
+        switchDrops.clear();
+        gauges.forEach(name -> metricsService.removeMetric(
+                metricsComponent, metricsFeature, name));
+        gauges.clear();
+        PacketInRateLimiter.clear();
+
+        log.info("Stopped");
+    }
+
+    @Modified
+    protected void modified(ComponentContext context) {
+        Dictionary<?, ?> properties = context.getProperties();
+
+        final int newMeterRate = Tools.getIntegerProperty(
+                properties, CPU_METER_RATE, CPU_METER_RATE_DEFAULT);
+        final int newMeterBurst = Tools.getIntegerProperty(
+                properties, CPU_METER_BURST, CPU_METER_BURST_DEFAULT);
+        final int newPacketInRate = Tools.getIntegerProperty(
+                properties, PACKET_IN_RATE, PACKET_IN_RATE_DEFAULT);
+        final int newPacketInBurst = Tools.getIntegerProperty(
+                properties, PACKET_IN_BURST, PACKET_IN_BURST_DEFAULT);
+
+        if (newPacketInRate < 0 || newPacketInBurst <= 0) {
+            log.warn("Invalid {} {} or {} {}, ignoring", PACKET_IN_RATE, newPacketInRate,
+                     PACKET_IN_BURST, newPacketInBurst);
+        } else {
+            packetInRate = newPacketInRate;
+            packetInBurst = newPacketInBurst;
+            PacketInRateLimiter.configure(packetInRate, packetInBurst);
+            log.info("Configured packet-in rate limit of {} pps (burst {}) per device",
+                     packetInRate, packetInBurst);
+        }
+
+        if (newMeterRate < 0 || newMeterBurst <= 0) {
+            log.warn("Invalid {} {} or {} {}, ignoring", CPU_METER_RATE, newMeterRate,
+                     CPU_METER_BURST, newMeterBurst);
+        } else if (newMeterRate != cpuMeterRate || newMeterBurst != cpuMeterBurst ||
+                meters.isEmpty()) {
+            cpuMeterRate = newMeterRate;
+            cpuMeterBurst = newMeterBurst;
+            log.info("Configured clone to CPU meter of {} pps (burst {}) per port",
+                     cpuMeterRate, cpuMeterBurst);
+            for (Device device : deviceService.getAvailableDevices()) {
+                if (mastershipService.isLocalMaster(device.id())) {
+                    mainComponent.execute(device.id(), () -> configureMeters(device.id()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the clone_to_cpu_meter cell of each port of the given device
+     * with the configured rate, replacing the meters previously written.
+     *
+     * @param deviceId device ID
+     */
+    private void configureMeters(DeviceId deviceId) {
+        if (!deviceService.isAvailable(deviceId) ||
+                !mastershipService.isLocalMaster(deviceId)) {
+            return;
+        }
+        registerGauges(deviceId);
+
+        final Map<PortNumber, PortMeter> deviceMeters =
+                meters.computeIfAbsent(deviceId, d -> Maps.newConcurrentMap());
+        deviceMeters.values().forEach(m -> meterService.withdraw(m.request, m.cellId));
+        deviceMeters.clear();
+        if (cpuMeterRate == 0) {
+            log.info("Removed clone to CPU meters from {}", deviceId);
+            return;
+        }
+        if (!isUserDefinedIndexEnabled()) {
+            log.warn("Clone to CPU meters disabled on {}, they require {} of {} " +
+                             "to be true", deviceId, USER_DEFINED_INDEX, METER_MANAGER);
+            return;
+        }
+        for (Port port : deviceService.getPorts(deviceId)) {
+            configureMeter(deviceId, port.number(), deviceMeters);
+        }
+        log.info("Configured clone to CPU meters on {} ports of {}",
+                 deviceMeters.size(), deviceId);
+    }
+
+    private void configureMeter(DeviceId deviceId, PortNumber port,
+                                Map<PortNumber, PortMeter> deviceMeters) {
+        if (port.isLogical() || deviceMeters.containsKey(port)) {
+            return;
+        }
+        // Two rate three color meter with committed rate equal to peak rate,
+        // packets over the rate are not cloned.
+        final Band band = DefaultBand.builder()
+                .ofType(Band.Type.DROP)
+                .withRate(cpuMeterRate)
+                .burstSize(cpuMeterBurst)
+                .build();
+        final MeterRequest request = DefaultMeterRequest.builder()
+                .forDevice(deviceId)
+                .fromApp(appId)
+                .withUnit(Meter.Unit.PKTS_PER_SEC)
+                .withScope(MeterScope.of(CLONE_TO_CPU_METER))
+                .withIndex(port.toLong())
+                .burst()
+                .withBands(ImmutableList.of(band, band))
+                .add();
+        final Meter meter = meterService.submit(request);
+        if (meter != null) {
+            deviceMeters.put(port, new PortMeter(request, meter.meterCellId()));
+        }
+    }
+
+    /**
+     * Returns whether the MeterService accepts meter requests with an index.
+     *
+     * @return true if the MeterManager runs in user defined index mode
+     */
+    private boolean isUserDefinedIndexEnabled() {
+        final ConfigProperty property =
+                compCfgService.getProperty(METER_MANAGER, USER_DEFINED_INDEX);
+        return property != null && property.asBoolean();
+    }
+
+    /**
+     * Forgets the meters written on the given device, without withdrawing
+     * them, once the device is removed or mastered by another instance.
+     *
+     * @param deviceId device ID
+     */
+    private void forgetMeters(DeviceId deviceId) {
+        meters.remove(deviceId);
+        switchDrops.remove(deviceId);
+    }
+
+    /**
+     * Reads the clone_to_cpu_drop_counter of each device mastered by this
+     * instance.
+     */
+    private void pollSwitchDrops() {
+        for (Device device : deviceService.getAvailableDevices()) {
+            final DeviceId deviceId = device.id();
+            if (!mastershipService.isLocalMaster(deviceId)) {
+                switchDrops.remove(deviceId);
+                continue;
+            }
+            mainComponent.execute(deviceId, () -> {
+                try {
+                    switchDrops.put(deviceId, counterReader
+                            .readPackets(deviceId, CLONE_TO_CPU_DROP_COUNTER)
+                            .values().stream().mapToLong(Long::longValue).sum());
+                } catch (RuntimeException e) {
+                    log.debug("Unable to read drop counter of {}: {}",
+                              deviceId, e.getMessage());
+                }
+            });
+        }
+    }
+
+    private void registerGauges(DeviceId deviceId) {
+        final String controllerDrops = deviceId + ".controllerDrops";
+        if (gauges.add(controllerDrops)) {
+            metricsService.registerMetric(metricsComponent, metricsFeature, controllerDrops,
+                    (Gauge<Long>) () -> PacketInRateLimiter.drops(deviceId));
+        }
+        final String switchDropsName = deviceId + ".switchDrops";
+        if (gauges.add(switchDropsName)) {
+            metricsService.registerMetric(metricsComponent, metricsFeature, switchDropsName,
+                    (Gauge<Long>) () -> switchDrops.getOrDefault(deviceId, 0L));
+        }
+    }
+
+    /**
+     * Listener of pipeline readiness events, meters can be written only once
+     * the pipeline of the device is ready.
+     */
+    private class InternalPipelineListener implements PiPipeconfWatchdogListener {
+
+        @Override
+        public boolean isRelevant(PiPipeconfWatchdogEvent event) {
+            return event.type() == PiPipeconfWatchdogEvent.Type.PIPELINE_READY &&
+                    mastershipService.isLocalMaster(event.subject());
+        }
+
+        @Override
+        public void event(PiPipeconfWatchdogEvent event) {
+            mainComponent.execute(event.subject(), () -> configureMeters(event.subject()));
+        }
+    }
+
+    /**
+     * Listener of mastership events, meters are written by the master of the
+     * device only.
+     */
+    private class InternalMastershipListener implements MastershipListener {
+
+        @Override
+        public boolean isRelevant(MastershipEvent event) {
+            return event.type() == MastershipEvent.Type.MASTER_CHANGED;
+        }
+
+        @Override
+        public void event(MastershipEvent event) {
+            final DeviceId deviceId = event.subject();
+            if (mastershipService.isLocalMaster(deviceId)) {
+                mainComponent.execute(deviceId, () -> configureMeters(deviceId));
+            } else {
+                mainComponent.execute(deviceId, () -> forgetMeters(deviceId));
+            }
+        }
+    }
+
+    /**
+     * Listener of device events, used to write the meters of new ports and
+     * to forget the meters of removed devices.
+     */
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            switch (event.type()) {
+                case PORT_ADDED:
+                    return cpuMeterRate > 0 &&
+                            mastershipService.isLocalMaster(event.subject().id()) &&
+                            isUserDefinedIndexEnabled();
+                case DEVICE_REMOVED:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            final DeviceId deviceId = event.subject().id();
+            if (event.type() == DeviceEvent.Type.DEVICE_REMOVED) {
+                mainComponent.execute(deviceId, () -> forgetMeters(deviceId));
+                return;
+            }
+            final PortNumber port = event.port().number();
+            mainComponent.execute(deviceId, () -> configureMeter(
+                    deviceId, port,
+                    meters.computeIfAbsent(deviceId, d -> Maps.newConcurrentMap())));
+        }
+    }
+
+    /**
+     * Meter request submitted for a port, and the cell it was written to.
+     */
+    private static final class PortMeter {
+        private final MeterRequest request;
+        private final MeterCellId cellId;
+
+        private PortMeter(MeterRequest request, MeterCellId cellId) {
+            this.request = request;
+            this.cellId = cellId;
+        }
+    }
+}
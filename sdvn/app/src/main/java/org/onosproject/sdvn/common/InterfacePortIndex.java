@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.common;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.intf.Interface;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * Index of the ports with interfaces configured, by device. Each device maps
+ * to an immutable set of ports which is replaced on every change, so that
+ * reads never block nor copy.
+ */
+public final class InterfacePortIndex {
+
+    private final ConcurrentMap<DeviceId, Set<PortNumber>> ports =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Replaces the content of the index with the ports of the given
+     * interfaces.
+     *
+     * @param interfaces all interfaces
+     */
+    public void rebuild(Set<Interface> interfaces) {
+        final Map<DeviceId, ImmutableSet<PortNumber>> newPorts = interfaces.stream()
+                .map(Interface::connectPoint)
+                .collect(Collectors.groupingBy(
+                        ConnectPoint::deviceId,
+                        Collectors.mapping(ConnectPoint::port,
+                                           ImmutableSet.toImmutableSet())));
+        ports.keySet().retainAll(newPorts.keySet());
+        ports.putAll(newPorts);
+    }
+
+    /**
+     * Returns the ports with interfaces configured on the given device.
+     *
+     * @param deviceId device ID
+     * @return immutable set of ports, empty if none
+     */
+    public Set<PortNumber> getPorts(DeviceId deviceId) {
+        return ports.getOrDefault(deviceId, ImmutableSet.of());
+    }
+
+    /**
+     * Adds the given port to the index.
+     *
+     * @param connectPoint device and port
+     * @return true if the port was not indexed before, false otherwise
+     */
+    public boolean addPort(ConnectPoint connectPoint) {
+        final PortNumber port = connectPoint.port();
+        final AtomicBoolean changed = new AtomicBoolean(false);
+        ports.compute(connectPoint.deviceId(), (d, current) -> {
+            if (current != null && current.contains(port)) {
+                return current;
+            }
+            changed.set(true);
+            return current == null ? ImmutableSet.of(port)
+                    : ImmutableSet.<PortNumber>builder().addAll(current).add(port).build();
+        });
+        return changed.get();
+    }
+
+    /**
+     * Removes the given port from the index.
+     *
+     * @param connectPoint device and port
+     * @return true if the port was indexed before, false otherwise
+     */
+    public boolean removePort(ConnectPoint connectPoint) {
+        final PortNumber port = connectPoint.port();
+        final AtomicBoolean changed = new AtomicBoolean(false);
+        ports.computeIfPresent(connectPoint.deviceId(), (d, current) -> {
+            if (!current.contains(port)) {
+                return current;
+            }
+            changed.set(true);
+            return current.size() == 1 ? null
+                    : ImmutableSet.copyOf(Sets.difference(current, ImmutableSet.of(port)));
+        });
+        return changed.get();
+    }
+
+    /**
+     * Removes all entries from the index.
+     */
+    public void clear() {
+        ports.clear();
+    }
+}
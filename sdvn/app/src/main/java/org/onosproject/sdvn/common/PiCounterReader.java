@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.common;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.Optional;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.config.NetworkConfigService;
+import org.onosproject.net.config.basics.BasicDeviceConfig;
+import org.onosproject.net.pi.model.PiCounterId;
+import org.onosproject.net.pi.model.PiPipeconf;
+import org.onosproject.net.pi.runtime.PiCounterCell;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.onosproject.p4runtime.api.P4RuntimeClient;
+import org.onosproject.p4runtime.api.P4RuntimeController;
+import static org.onosproject.sdvn.AppConstants.PIPECONF_ID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Reads indirect counters of the pipeconf from devices. ONOS does not expose
+ * indirect counters through its northbound services, hence they are read
+ * with the P4Runtime client of the device.
+ */
+public final class PiCounterReader {
+
+    private static final Logger log = LoggerFactory.getLogger(PiCounterReader.class);
+
+    private static final String DEVICE_ID_PARAM = "device_id=";
+    private static final Splitter QUERY_SPLITTER = Splitter.on('&');
+
+    private final P4RuntimeController p4RuntimeController;
+    private final PiPipeconfService pipeconfService;
+    private final NetworkConfigService configService;
+
+    /**
+     * Creates a counter reader.
+     *
+     * @param p4RuntimeController P4Runtime controller
+     * @param pipeconfService     pipeconf service
+     * @param configService       network config service
+     */
+    public PiCounterReader(P4RuntimeController p4RuntimeController,
+                           PiPipeconfService pipeconfService,
+                           NetworkConfigService configService) {
+        this.p4RuntimeController = p4RuntimeController;
+        this.pipeconfService = pipeconfService;
+        this.configService = configService;
+    }
+
+    /**
+     * Reads all the cells of the given counter on the given device.
+     *
+     * @param deviceId  device ID
+     * @param counterId counter ID
+     * @return packet count by cell index, empty if the counter cannot be read
+     */
+    public Map<Long, Long> readPackets(DeviceId deviceId, PiCounterId counterId) {
+        final P4RuntimeClient client = p4RuntimeController.get(deviceId);
+        final Optional<PiPipeconf> pipeconf = pipeconfService.getPipeconf(PIPECONF_ID);
+        final Long p4DeviceId = p4DeviceId(deviceId);
+        if (client == null || !pipeconf.isPresent() || p4DeviceId == null) {
+            return ImmutableMap.of();
+        }
+
+        final ImmutableMap.Builder<Long, Long> packets = ImmutableMap.builder();
+        client.read(p4DeviceId, pipeconf.get())
+                .counterCells(counterId)
+                .submitSync()
+                .all(PiCounterCell.class)
+                .forEach(cell -> packets.put(
+                        cell.cellId().index(), cell.data().packets()));
+        return packets.build();
+    }
+
+    private Long p4DeviceId(DeviceId deviceId) {
+        // e.g. "grpc://192.168.137.252:9559?device_id=1"
+        final BasicDeviceConfig config = configService.getConfig(
+                deviceId, BasicDeviceConfig.class);
+        if (config == null || config.managementAddress() == null) {
+            log.debug("No management address for {}", deviceId);
+            return null;
+        }
+        try {
+            return extractP4DeviceId(URI.create(config.managementAddress()));
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid management address for {}: {}", deviceId, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the P4Runtime device ID found in the device_id query parameter
+     * of the given management address.
+     *
+     * @param uri management address
+     * @return P4Runtime device ID
+     * @throws IllegalArgumentException if the address has no valid device_id
+     */
+    static long extractP4DeviceId(URI uri) {
+        final String query = uri.getQuery();
+        if (query != null) {
+            for (String param : QUERY_SPLITTER.split(query)) {
+                if (param.startsWith(DEVICE_ID_PARAM)) {
+                    return Long.parseUnsignedLong(param.substring(DEVICE_ID_PARAM.length()));
+                }
+            }
+        }
+        throw new IllegalArgumentException("No " + DEVICE_ID_PARAM + " in " + uri);
+    }
+}
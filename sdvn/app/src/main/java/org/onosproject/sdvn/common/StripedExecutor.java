@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.common;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.onlab.util.Tools.groupedThreads;
+import org.slf4j.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Executor made of a fixed number of single-thread stripes. Tasks submitted
+ * with the same key always run on the same stripe, hence in submission order,
+ * while tasks with different keys can run in parallel on different stripes.
+ */
+public final class StripedExecutor {
+
+    private final List<ThreadPoolExecutor> stripes;
+
+    /**
+     * Creates a new striped executor.
+     *
+     * @param numStripes number of stripes (threads)
+     * @param groupName  thread group name
+     * @param pattern    thread name pattern, e.g. "stripe-%d"
+     * @param log        logger used to report uncaught exceptions
+     */
+    public StripedExecutor(int numStripes, String groupName, String pattern, Logger log) {
+        checkArgument(numStripes > 0, "numStripes must be positive");
+        this.stripes = IntStream.range(0, numStripes)
+                .mapToObj(i -> new ThreadPoolExecutor(
+                        1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<>(),
+                        groupedThreads(groupName, String.format(pattern, i), log)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Executes the given task on the stripe associated with the given key.
+     *
+     * @param key  ordering key, e.g. a device ID
+     * @param task task runnable
+     */
+    public void execute(Object key, Runnable task) {
+        stripes.get(stripeOf(key)).execute(task);
+    }
+
+    /**
+     * Returns the index of the stripe associated with the given key.
+     *
+     * @param key ordering key
+     * @return stripe index
+     */
+    public int stripeOf(Object key) {
+        checkNotNull(key);
+        return Math.floorMod(key.hashCode(), stripes.size());
+    }
+
+    /**
+     * Returns the number of stripes of this executor.
+     *
+     * @return number of stripes
+     */
+    public int size() {
+        return stripes.size();
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed on the given stripe.
+     *
+     * @param stripe stripe index
+     * @return queue depth
+     */
+    public int queueDepth(int stripe) {
+        return stripes.get(stripe).getQueue().size();
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed on each stripe,
+     * indexed by stripe.
+     *
+     * @return list of queue depths
+     */
+    public List<Integer> queueDepths() {
+        return stripes.stream()
+                .map(s -> s.getQueue().size())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Shuts down all stripes. Tasks already submitted are still executed.
+     */
+    public void shutdown() {
+        stripes.forEach(ThreadPoolExecutor::shutdown);
+    }
+}
@@ -28,6 +28,7 @@ import org.onosproject.net.flow.DefaultFlowRule;
 import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flow.criteria.PiCriterion;
 import org.onosproject.net.group.DefaultGroupBucket;
 import static org.onosproject.net.group.DefaultGroupBucket.createAllGroupBucket;
@@ -43,7 +44,6 @@ import org.onosproject.net.pi.model.PiTableId;
 import org.onosproject.net.pi.runtime.PiAction;
 import org.onosproject.net.pi.runtime.PiGroupKey;
 import org.onosproject.net.pi.runtime.PiTableAction;
-import static org.onosproject.sdvn.AppConstants.CPU_CLONE_SESSION_ID;
 import static org.onosproject.sdvn.AppConstants.DEFAULT_FLOW_RULE_PRIORITY;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -87,14 +87,10 @@ public final class Utils {
         checkNotNull(appId);
         checkArgument(!ports.isEmpty());
 
-        final GroupKey groupKey = new DefaultGroupKey(
-                ByteBuffer.allocate(4).putInt(groupId).array());
+        final GroupKey groupKey = buildReplicationGroupKey(groupId);
 
         final List<GroupBucket> bucketList = ports.stream()
-                .map(p -> DefaultTrafficTreatment.builder()
-                        .setOutput(p).build())
-                .map(t -> isClone ? createCloneGroupBucket(t)
-                        : createAllGroupBucket(t))
+                .map(p -> buildReplicationBucket(p, isClone))
                 .collect(Collectors.toList());
 
         return new DefaultGroupDescription(
@@ -104,6 +100,22 @@ public final class Utils {
                 groupKey, groupId, appId);
     }
 
+    public static GroupBucket buildMulticastGroupBucket(PortNumber port) {
+        return buildReplicationBucket(port, false);
+    }
+
+    private static GroupBucket buildReplicationBucket(PortNumber port, boolean isClone) {
+        final TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                .setOutput(port).build();
+        return isClone ? createCloneGroupBucket(treatment)
+                : createAllGroupBucket(treatment);
+    }
+
+    public static GroupKey buildReplicationGroupKey(int groupId) {
+        return new DefaultGroupKey(
+                ByteBuffer.allocate(4).putInt(groupId).array());
+    }
+
     public static FlowRule buildFlowRule(DeviceId switchId, ApplicationId appId,
                                          String tableId, PiCriterion piCriterion,
                                          PiTableAction piAction) {
@@ -146,9 +158,7 @@ public final class Utils {
         final GroupKey groupKey = new PiGroupKey(
                 PiTableId.of(tableId), PiActionProfileId.of(actionProfileId), groupId);
         final List<GroupBucket> buckets = actions.stream()
-                .map(action -> DefaultTrafficTreatment.builder()
-                        .piTableAction(action).build())
-                .map(DefaultGroupBucket::createSelectGroupBucket)
+                .map(Utils::buildSelectGroupBucket)
                 .collect(Collectors.toList());
         return new DefaultGroupDescription(
                 deviceId,
@@ -159,6 +169,11 @@ public final class Utils {
                 appId);
     }
 
+    public static GroupBucket buildSelectGroupBucket(PiAction action) {
+        return DefaultGroupBucket.createSelectGroupBucket(
+                DefaultTrafficTreatment.builder().piTableAction(action).build());
+    }
+
     public static void sleep(int millis) {
         try {
             Thread.sleep(millis);
@@ -167,22 +182,4 @@ public final class Utils {
             Thread.currentThread().interrupt();
         }
     }
-
-    public static int getUniqueSessionId(DeviceId deviceId) {
-        // Get the string representation of the DeviceId
-        String deviceIdStr = deviceId.toString(); 
-
-        // Extract the numeric part from the DeviceId string
-        String[] parts = deviceIdStr.split(":");
-
-        // Assuming the format is "device:obuX", where X is the number you want
-        String deviceNumStr = parts[1]; // This will give you "obuX"
-
-        // Extract the numeric value from the "obuX" string
-        String deviceNum = deviceNumStr.replaceAll("[^0-9]", ""); // Extracting just the digits
-        int deviceNumInt = Integer.parseInt(deviceNum); // Convert to integer
-
-        // Now create the unique clone session ID
-        return CPU_CLONE_SESSION_ID + deviceNumInt; // Add static value to the numeric part
-    }
 }
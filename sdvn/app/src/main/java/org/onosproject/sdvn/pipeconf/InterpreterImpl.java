@@ -20,12 +20,11 @@ import static java.lang.String.format;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 import static java.util.stream.Collectors.toList;
 
-import org.onlab.packet.DeserializationException;
-import org.onlab.packet.Ethernet;
+import org.onlab.packet.MacAddress;
 import org.onlab.util.ImmutableByteSequence;
 import static org.onlab.util.ImmutableByteSequence.copyFrom;
 import org.onosproject.net.ConnectPoint;
@@ -40,7 +39,9 @@ import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flow.criteria.Criterion;
 import static org.onosproject.net.flow.instructions.Instruction.Type.OUTPUT;
 import org.onosproject.net.flow.instructions.Instructions.OutputInstruction;
-import org.onosproject.net.packet.DefaultInboundPacket;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.intf.InterfaceService;
 import org.onosproject.net.packet.InboundPacket;
 import org.onosproject.net.packet.OutboundPacket;
 import org.onosproject.net.pi.model.PiMatchFieldId;
@@ -52,6 +53,8 @@ import org.onosproject.net.pi.runtime.PiAction;
 import org.onosproject.net.pi.runtime.PiPacketMetadata;
 import org.onosproject.net.pi.runtime.PiPacketOperation;
 import static org.onosproject.sdvn.AppConstants.CPU_PORT_ID;
+import static org.onosproject.sdvn.AppConstants.DEFAULT_BROADCAST_GROUP_ID;
+import org.onosproject.sdvn.common.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -71,7 +74,19 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
     private static final int V1MODEL_PORT_BITWIDTH = 9;
 
     // From P4Info.
-    private static final Map<Criterion.Type, String> CRITERION_MAP =
+    private static final PiPacketMetadataId INGRESS_PORT =
+            PiPacketMetadataId.of("ingress_port");
+    private static final PiPacketMetadataId EGRESS_PORT =
+            PiPacketMetadataId.of("egress_port");
+    private static final PiPacketMetadataId IS_LEARN =
+            PiPacketMetadataId.of("is_learn");
+    private static final PiPacketMetadataId MCAST_GRP =
+            PiPacketMetadataId.of("mcast_grp");
+    private static final int MCAST_GRP_BITWIDTH = 16;
+    // Learning packet-ins are truncated to the Ethernet header.
+    private static final int ETH_HEADER_LENGTH = 14;
+    private static final int ETH_SRC_OFFSET = 6;
+    private static final ImmutableMap<Criterion.Type, String> CRITERION_MAP =
             new ImmutableMap.Builder<Criterion.Type, String>()
                     .put(Criterion.Type.IN_PORT, "standard_metadata.ingress_port")
                     .put(Criterion.Type.ETH_DST, "hdr.ethernet.dst_addr")
@@ -79,10 +94,18 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
                     .put(Criterion.Type.ETH_TYPE, "hdr.ethernet.ether_type")
                     .build();
 
+    // Only one packet-in every PACKET_IN_LOG_SAMPLING is logged.
+    private static final long PACKET_IN_LOG_SAMPLING = 1000;
+    private static final AtomicLong PACKET_IN_COUNT = new AtomicLong();
+
     /**
      * Returns a collection of PI packet operations populated with metadata
      * specific for this pipeconf and equivalent to the given ONOS
      * OutboundPacket instance.
+     * <p>
+     * Packets flooded are sent to the host facing ports only, the ones with
+     * interfaces configured via netcfg: with a single packet-out replicated by
+     * the broadcast group once installed, with one packet-out per port before.
      *
      * @param packet ONOS OutboundPacket
      * @return collection of PI packet operations
@@ -108,6 +131,9 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
             throw new PiInterpreterException("Treatment not supported: " + treatment);
         }
 
+        // The payload is copied once and shared by all packet-outs.
+        final ImmutableByteSequence pktData = copyFrom(packet.data());
+
         ImmutableList.Builder<PiPacketOperation> builder = ImmutableList.builder();
         for (OutputInstruction outInst : outInstructions) {
             if (outInst.port().isLogical() && !outInst.port().equals(FLOOD)) {
@@ -115,63 +141,114 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
                         "Packet-out on logical port '%s' not supported",
                         outInst.port()));
             } else if (outInst.port().equals(FLOOD)) {
-                // To emulate flooding, we create a packet-out operation for
-                // each switch port.
-                final DeviceService deviceService = handler().get(DeviceService.class);
-                for (Port port : deviceService.getPorts(packet.sendThrough())) {
-                    builder.add(buildPacketOut(packet.data(), port.number().toLong()));
+                if (hasBroadcastGroup(packet.sendThrough())) {
+                    // A single packet-out, replicated by the switch on all
+                    // host facing ports using the broadcast group.
+                    builder.add(buildPacketOut(pktData, 0, DEFAULT_BROADCAST_GROUP_ID));
+                } else {
+                    // To emulate the broadcast group, we create a packet-out
+                    // operation for each of the same host facing ports.
+                    for (PortNumber port : getHostFacingPorts(packet.sendThrough())) {
+                        builder.add(buildPacketOut(pktData, port.toLong(), 0));
+                    }
                 }
             } else {
                 // Create only one packet-out for the given OUTPUT instruction.
-                builder.add(buildPacketOut(packet.data(), outInst.port().toLong()));
+                builder.add(buildPacketOut(pktData, outInst.port().toLong(), 0));
             }
         }
         return builder.build();
     }
 
     /**
-     * Builds a pipeconf-specific packet-out instance with the given payload and
-     * egress port.
+     * Returns true if the broadcast group set up by the L2 bridging component
+     * is installed on the given device.
+     *
+     * @param deviceId device ID
+     * @return true if packet-outs can be flooded by the broadcast group
+     */
+    private boolean hasBroadcastGroup(DeviceId deviceId) {
+        final Group group = handler().get(GroupService.class).getGroup(
+                deviceId, Utils.buildReplicationGroupKey(DEFAULT_BROADCAST_GROUP_ID));
+        return group != null && group.state() == Group.GroupState.ADDED;
+    }
+
+    /**
+     * Returns the ports of the given device with interfaces configured via
+     * netcfg, i.e. the ports the broadcast group replicates packets to.
+     *
+     * @param deviceId device ID
+     * @return host facing ports
+     */
+    private List<PortNumber> getHostFacingPorts(DeviceId deviceId) {
+        final DeviceService deviceService = handler().get(DeviceService.class);
+        final InterfaceService interfaceService = handler().get(InterfaceService.class);
+        return deviceService.getPorts(deviceId).stream()
+                .map(Port::number)
+                .filter(port -> !interfaceService.getInterfacesByPort(
+                        new ConnectPoint(deviceId, port)).isEmpty())
+                .collect(toList());
+    }
+
+    /**
+     * Builds a pipeconf-specific packet-out instance with the given payload,
+     * egress port and multicast group.
      *
      * @param pktData    packet payload
-     * @param portNumber egress port
+     * @param portNumber egress port, ignored if the multicast group is set
+     * @param mcastGrp   multicast group replicating the packet, 0 if none
      * @return packet-out
      * @throws PiInterpreterException if packet-out cannot be built
      */
-    private PiPacketOperation buildPacketOut(ByteBuffer pktData, long portNumber)
+    private PiPacketOperation buildPacketOut(ImmutableByteSequence pktData,
+                                             long portNumber, int mcastGrp)
             throws PiInterpreterException {
 
-        // Make sure port number can fit in v1model port metadata bitwidth.
+        // Make sure port number and group can fit in the metadata bitwidth.
         final ImmutableByteSequence portBytes;
+        final ImmutableByteSequence mcastGrpBytes;
         try {
             portBytes = copyFrom(portNumber).fit(V1MODEL_PORT_BITWIDTH);
+            mcastGrpBytes = copyFrom(mcastGrp).fit(MCAST_GRP_BITWIDTH);
         } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
             throw new PiInterpreterException(format(
-                    "Port number %d too big, %s", portNumber, e.getMessage()));
+                    "Port number %d or multicast group %d too big, %s",
+                    portNumber, mcastGrp, e.getMessage()));
         }
 
-        // Create metadata instance for egress port.
-        final String outPortMetadataName = "egress_port";
+        // Create metadata instances for egress port and multicast group.
         final PiPacketMetadata outPortMetadata = PiPacketMetadata.builder()
-                .withId(PiPacketMetadataId.of(outPortMetadataName))
+                .withId(EGRESS_PORT)
                 .withValue(portBytes)
                 .build();
+        final PiPacketMetadata mcastGrpMetadata = PiPacketMetadata.builder()
+                .withId(MCAST_GRP)
+                .withValue(mcastGrpBytes)
+                .build();
 
         // Build packet out.
         return PiPacketOperation.builder()
                 .withType(PACKET_OUT)
-                .withData(copyFrom(pktData))
-                .withMetadata(outPortMetadata)
+                .withData(pktData)
+                .withMetadatas(ImmutableList.of(outPortMetadata, mcastGrpMetadata))
                 .build();
     }
 
     /**
      * Returns an ONS InboundPacket equivalent to the given pipeconf-specific
      * packet-in operation.
+     * <p>
+     * The returned packet wraps the packet-in payload without copying it, and
+     * parses it only if a packet processor asks for the parsed packet.
+     * <p>
+     * The source MAC address of learning packet-ins is added to the
+     * {@link MacLearningQueue}. Those truncated to the Ethernet header are not
+     * given to the packet processors.
      *
      * @param packetIn packet operation
      * @param deviceId ID of the device that originated the packet-in
-     * @return inbound packet
+     * @return inbound packet, null if dropped by the packet-in rate limiter or
+     * used only for learning
      * @throws PiInterpreterException if the packet operation cannot be mapped
      *                                to an inbound packet
      */
@@ -179,42 +256,60 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
     public InboundPacket mapInboundPacket(PiPacketOperation packetIn, DeviceId deviceId)
             throws PiInterpreterException {
 
-        // Find the ingress_port metadata.
-        final String inportMetadataName = "ingress_port";
-        Optional<PiPacketMetadata> inportMetadata = packetIn.metadatas()
-                .stream()
-                .filter(meta -> meta.id().id().equals(inportMetadataName))
-                .findFirst();
+        if (!PacketInRateLimiter.tryAcquire(deviceId)) {
+            // Over the rate allowed for the device, ignored by the caller.
+            return null;
+        }
+
+        // Find the ingress_port and is_learn metadata.
+        PiPacketMetadata inportMetadata = null;
+        boolean isLearn = false;
+        for (PiPacketMetadata meta : packetIn.metadatas()) {
+            if (INGRESS_PORT.equals(meta.id())) {
+                inportMetadata = meta;
+            } else if (IS_LEARN.equals(meta.id())) {
+                final ByteBuffer value = meta.value().asReadOnlyBuffer();
+                isLearn = value.hasRemaining() && value.get(value.limit() - 1) != 0;
+            }
+        }
 
-        if (!inportMetadata.isPresent()) {
+        if (inportMetadata == null) {
             throw new PiInterpreterException(format(
                     "Missing metadata '%s' in packet-in received from '%s': %s",
-                    inportMetadataName, deviceId, packetIn));
+                    INGRESS_PORT, deviceId, packetIn));
         }
 
         // Build ONOS InboundPacket instance with the given ingress port.
-
-        // 1. Parse packet-in object into Ethernet packet instance.
-        final byte[] payloadBytes = packetIn.data().asArray();
-        final ByteBuffer rawData = ByteBuffer.wrap(payloadBytes);
-        final Ethernet ethPkt;
-        try {
-            ethPkt = Ethernet.deserializer().deserialize(
-                    payloadBytes, 0, packetIn.data().size());
-        } catch (DeserializationException dex) {
-            throw new PiInterpreterException(dex.getMessage());
-        }
-
-        // 2. Get ingress port
-        final ImmutableByteSequence portBytes = inportMetadata.get().value();
+        final ImmutableByteSequence portBytes = inportMetadata.value();
         final short portNum = portBytes.asReadOnlyBuffer().getShort();
         final ConnectPoint receivedFrom = new ConnectPoint(
                 deviceId, PortNumber.portNumber(portNum));
 
-        log.info("Recieved inbound packet with port {}...",
-                portNum);
+        final long count = PACKET_IN_COUNT.incrementAndGet();
+        if (count % PACKET_IN_LOG_SAMPLING == 1 && log.isDebugEnabled()) {
+            log.debug("Received inbound packet with port {} ({} packet-ins so far)...",
+                      portNum, count);
+        }
+
+        if (isLearn) {
+            final ImmutableByteSequence data = packetIn.data();
+            if (data.size() < ETH_HEADER_LENGTH) {
+                throw new PiInterpreterException(format(
+                        "Learning packet-in received from '%s' too short: %s",
+                        deviceId, packetIn));
+            }
+            final byte[] srcMac = new byte[MacAddress.MAC_ADDRESS_LENGTH];
+            final ByteBuffer buffer = data.asReadOnlyBuffer();
+            buffer.position(ETH_SRC_OFFSET);
+            buffer.get(srcMac);
+            MacLearningQueue.offer(MacAddress.valueOf(srcMac), receivedFrom);
+            if (data.size() == ETH_HEADER_LENGTH) {
+                // Truncated, only meant for learning.
+                return null;
+            }
+        }
 
-        return new DefaultInboundPacket(receivedFrom, ethPkt, rawData);
+        return new LazyInboundPacket(receivedFrom, packetIn.data());
     }
 
     @Override
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.pipeconf;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import org.onlab.packet.DeserializationException;
+import org.onlab.packet.Ethernet;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.packet.InboundPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import com.google.common.base.Suppliers;
+
+/**
+ * Inbound packet wrapping the payload of a packet-in without copying it. The
+ * Ethernet packet is parsed only the first time a packet processor asks for
+ * it, and then reused by the following processors.
+ */
+final class LazyInboundPacket implements InboundPacket {
+
+    private static final Logger log = LoggerFactory.getLogger(LazyInboundPacket.class);
+
+    private final ConnectPoint receivedFrom;
+    private final ImmutableByteSequence data;
+    private final Supplier<Ethernet> parsed;
+
+    /**
+     * Creates an inbound packet received at the given connect point.
+     *
+     * @param receivedFrom connect point where the packet was received
+     * @param data         packet-in payload
+     */
+    LazyInboundPacket(ConnectPoint receivedFrom, ImmutableByteSequence data) {
+        this.receivedFrom = receivedFrom;
+        this.data = data;
+        this.parsed = Suppliers.memoize(this::parse);
+    }
+
+    @Override
+    public ConnectPoint receivedFrom() {
+        return receivedFrom;
+    }
+
+    /**
+     * Returns the parsed Ethernet packet, or null if the payload is not a
+     * valid Ethernet frame.
+     *
+     * @return parsed Ethernet packet
+     */
+    @Override
+    public Ethernet parsed() {
+        return parsed.get();
+    }
+
+    @Override
+    public ByteBuffer unparsed() {
+        // Read-only view of the payload, each caller gets its own position.
+        return data.asReadOnlyBuffer();
+    }
+
+    @Override
+    public Optional<Long> cookie() {
+        return Optional.empty();
+    }
+
+    private Ethernet parse() {
+        // The deserializer needs an array, the payload is copied only here.
+        final byte[] bytes = data.asArray();
+        try {
+            return Ethernet.deserializer().deserialize(bytes, 0, bytes.length);
+        } catch (DeserializationException e) {
+            log.debug("Unable to parse packet-in received from {}: {}",
+                      receivedFrom, e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("receivedFrom", receivedFrom)
+                .add("size", data.size())
+                .toString();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.pipeconf;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+/**
+ * Source MAC addresses learned by the data plane and not yet consumed by the
+ * L2 bridging component. The interpreter adds one entry per learning
+ * packet-in, duplicates are collapsed until the next drain, so that a host
+ * sending many packets before its entries are installed is learned only once.
+ */
+public final class MacLearningQueue {
+
+    // Bound on the pending entries, further ones are dropped until the next
+    // drain. Hosts not learned are sent again by the switch.
+    private static final int MAX_PENDING = 4096;
+
+    private static final Set<LearnedMac> PENDING = Sets.newConcurrentHashSet();
+
+    // Private constructor to prevent instantiation
+    private MacLearningQueue() {
+        throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+    }
+
+    /**
+     * Adds a MAC address learned on the given device port.
+     *
+     * @param mac      source MAC address
+     * @param location device and ingress port
+     * @return true if added, false if already pending or the queue is full
+     */
+    public static boolean offer(MacAddress mac, ConnectPoint location) {
+        if (PENDING.size() >= MAX_PENDING) {
+            return false;
+        }
+        return PENDING.add(new LearnedMac(mac, location));
+    }
+
+    /**
+     * Removes and returns all pending entries.
+     *
+     * @return learned MAC addresses
+     */
+    public static List<LearnedMac> drain() {
+        final List<LearnedMac> drained = ImmutableList.copyOf(PENDING);
+        PENDING.removeAll(drained);
+        return drained;
+    }
+
+    /**
+     * Removes all pending entries.
+     */
+    public static void clear() {
+        PENDING.clear();
+    }
+
+    /**
+     * MAC address learned on a device port.
+     */
+    public static final class LearnedMac {
+        private final MacAddress mac;
+        private final ConnectPoint location;
+
+        private LearnedMac(MacAddress mac, ConnectPoint location) {
+            this.mac = mac;
+            this.location = location;
+        }
+
+        public MacAddress mac() {
+            return mac;
+        }
+
+        public ConnectPoint location() {
+            return location;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof LearnedMac)) {
+                return false;
+            }
+            final LearnedMac that = (LearnedMac) o;
+            return mac.equals(that.mac) && location.equals(that.location);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mac, location);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("mac", mac)
+                    .add("location", location)
+                    .toString();
+        }
+    }
+}
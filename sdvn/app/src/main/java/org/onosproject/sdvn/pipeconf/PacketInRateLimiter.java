@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.pipeconf;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.onosproject.net.DeviceId;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Token buckets limiting the rate of packet-ins accepted by the interpreter,
+ * one per device. Interpreter instances are created by the driver subsystem
+ * on demand, hence the buckets are shared by all of them.
+ */
+public final class PacketInRateLimiter {
+
+    private static final Map<DeviceId, TokenBucket> BUCKETS = Maps.newConcurrentMap();
+
+    // Packets per second and bucket size, 0 rate means no limit.
+    private static volatile int rate;
+    private static volatile int burst;
+
+    // Private constructor to prevent instantiation
+    private PacketInRateLimiter() {
+        throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+    }
+
+    /**
+     * Configures the rate allowed for each device. Drop counts are kept.
+     *
+     * @param newRate  packets per second, 0 to disable the limit
+     * @param newBurst packets allowed in a burst
+     */
+    public static void configure(int newRate, int newBurst) {
+        rate = Math.max(newRate, 0);
+        burst = Math.max(newBurst, 1);
+        BUCKETS.values().forEach(TokenBucket::reset);
+    }
+
+    /**
+     * Takes a token from the bucket of the given device.
+     *
+     * @param deviceId device ID
+     * @return true if the packet-in can be processed, false if it is over the
+     * rate and must be dropped
+     */
+    public static boolean tryAcquire(DeviceId deviceId) {
+        if (rate == 0) {
+            return true;
+        }
+        return BUCKETS.computeIfAbsent(deviceId, d -> new TokenBucket()).tryAcquire();
+    }
+
+    /**
+     * Returns the number of packet-ins dropped for the given device.
+     *
+     * @param deviceId device ID
+     * @return number of dropped packet-ins
+     */
+    public static long drops(DeviceId deviceId) {
+        final TokenBucket bucket = BUCKETS.get(deviceId);
+        return bucket == null ? 0 : bucket.drops();
+    }
+
+    /**
+     * Removes all buckets, together with their drop counts.
+     */
+    public static void clear() {
+        BUCKETS.clear();
+    }
+
+    private static final class TokenBucket {
+
+        private double tokens = burst;
+        private long lastRefill = System.nanoTime();
+        private long drops;
+
+        private synchronized boolean tryAcquire() {
+            final long now = System.nanoTime();
+            final double elapsed = (now - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+            tokens = Math.min(burst, tokens + elapsed * rate);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            drops++;
+            return false;
+        }
+
+        private synchronized void reset() {
+            tokens = burst;
+            lastRefill = System.nanoTime();
+        }
+
+        private synchronized long drops() {
+            return drops;
+        }
+    }
+}
@@ -17,10 +17,16 @@
 package org.onosproject.sdvn.pipeconf;
 
 import java.net.URL;
+import java.util.Dictionary;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import org.onlab.util.Tools;
+import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.net.behaviour.Pipeliner;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.driver.DriverAdminService;
 import org.onosproject.net.driver.DriverProvider;
 import org.onosproject.net.pi.model.DefaultPiPipeconf;
@@ -33,9 +39,13 @@ import org.onosproject.net.pi.service.PiPipeconfService;
 import org.onosproject.p4runtime.model.P4InfoParser;
 import org.onosproject.p4runtime.model.P4InfoParserException;
 import static org.onosproject.sdvn.AppConstants.PIPECONF_ID;
+import static org.onosproject.sdvn.OsgiPropertyConstants.OBJECTIVE_BATCH_WINDOW;
+import static org.onosproject.sdvn.OsgiPropertyConstants.OBJECTIVE_BATCH_WINDOW_DEFAULT;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
@@ -43,8 +53,18 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Component that builds and register the pipeconf at app activation.
+ * <p>
+ * It also holds the configuration of the pipeconf behaviours, which are not
+ * components themselves and read it from this component, and releases the
+ * resources of the pipeliner of a device once the device is removed.
  */
-@Component(immediate = true, service = PipeconfLoader.class)
+@Component(
+        immediate = true,
+        service = PipeconfLoader.class,
+        property = {
+                OBJECTIVE_BATCH_WINDOW + ":Integer=" + OBJECTIVE_BATCH_WINDOW_DEFAULT,
+        }
+)
 public final class PipeconfLoader {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
@@ -52,6 +72,10 @@ public final class PipeconfLoader {
     private static final String P4INFO_PATH = "/p4info.txt";
     private static final String BMV2_JSON_PATH = "/bmv2.json";
 
+    /** Window in milliseconds in which the pipeliner batches forwarding objectives. */
+    private volatile int objectiveBatchWindow = OBJECTIVE_BATCH_WINDOW_DEFAULT;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private PiPipeconfService pipeconfService;
@@ -59,8 +83,18 @@ public final class PipeconfLoader {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private DriverAdminService driverAdminService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService compCfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
     @Activate
-    public void activate() {
+    public void activate(ComponentContext context) {
+        compCfgService.registerProperties(getClass());
+        modified(context);
+        deviceService.addListener(deviceListener);
+
         // Registers the pipeconf at component activation.
         if (pipeconfService.getPipeconf(PIPECONF_ID).isPresent()) {
             // Remove first if already registered, to support reloading of the
@@ -78,7 +112,35 @@ public final class PipeconfLoader {
 
     @Deactivate
     public void deactivate() {
-        // Do nothing.
+        deviceService.removeListener(deviceListener);
+        // The pipeliners of this app are not used anymore.
+        PipelinerImpl.removeGroupListeners();
+        compCfgService.unregisterProperties(getClass(), false);
+    }
+
+    @Modified
+    public void modified(ComponentContext context) {
+        Dictionary<?, ?> properties = context.getProperties();
+
+        int newWindow = Tools.getIntegerProperty(
+                properties, OBJECTIVE_BATCH_WINDOW, OBJECTIVE_BATCH_WINDOW_DEFAULT);
+        if (newWindow < 0) {
+            log.warn("Invalid {} {}, using {}", OBJECTIVE_BATCH_WINDOW,
+                     newWindow, objectiveBatchWindow);
+        } else if (newWindow != objectiveBatchWindow) {
+            objectiveBatchWindow = newWindow;
+            log.info("Configured {} = {}", OBJECTIVE_BATCH_WINDOW, objectiveBatchWindow);
+        }
+    }
+
+    /**
+     * Returns the window in milliseconds during which the pipeliner queues
+     * forwarding objectives before writing them.
+     *
+     * @return batch window in milliseconds
+     */
+    public int getObjectiveBatchWindow() {
+        return objectiveBatchWindow;
     }
 
     private PiPipeconf buildPipeconf() throws P4InfoParserException {
@@ -113,4 +175,21 @@ public final class PipeconfLoader {
 
         driverProvidersToRemove.forEach(driverAdminService::unregisterProvider);
     }
+
+    /**
+     * Listener of device events, used to remove the group listener of the
+     * pipeliner of the devices removed.
+     */
+    private static class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            return event.type() == DeviceEvent.Type.DEVICE_REMOVED;
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            PipelinerImpl.removeGroupListener(event.subject().id());
+        }
+    }
 }
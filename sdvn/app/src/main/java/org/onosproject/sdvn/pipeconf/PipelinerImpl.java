@@ -16,9 +16,19 @@
 
 package org.onosproject.sdvn.pipeconf;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
+import org.onlab.util.SharedScheduledExecutors;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.PortNumber;
@@ -28,47 +38,168 @@ import org.onosproject.net.behaviour.PipelinerContext;
 import org.onosproject.net.driver.AbstractHandlerBehaviour;
 import org.onosproject.net.flow.DefaultFlowRule;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
 import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.TrafficTreatment;
 import static org.onosproject.net.flow.instructions.Instruction.Type.OUTPUT;
 import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.flow.instructions.PiInstruction;
+import org.onosproject.net.flowobjective.DefaultNextTreatment;
 import org.onosproject.net.flowobjective.FilteringObjective;
+import org.onosproject.net.flowobjective.FlowObjectiveStore;
 import org.onosproject.net.flowobjective.ForwardingObjective;
 import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.NextTreatment;
+import org.onosproject.net.flowobjective.Objective;
 import org.onosproject.net.flowobjective.ObjectiveError;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupBuckets;
 import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupListener;
 import org.onosproject.net.group.GroupService;
 import org.onosproject.net.pi.model.PiActionId;
 import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiActionProfileId;
 import org.onosproject.net.pi.model.PiTableId;
 import org.onosproject.net.pi.runtime.PiAction;
 import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.pi.runtime.PiActionProfileGroupId;
+import org.onosproject.net.pi.runtime.PiGroupKey;
+import org.onosproject.sdvn.DeviceIdentityRegistry;
+import static org.onosproject.sdvn.OsgiPropertyConstants.OBJECTIVE_BATCH_WINDOW_DEFAULT;
 import org.onosproject.sdvn.common.Utils;
 import org.slf4j.Logger;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
 /**
- * Pipeliner implementation that maps all forwarding objectives to the ACL
- * table. All other types of objectives are not supported.
+ * Pipeliner implementation that maps forwarding objectives to the ACL table,
+ * or to the uplink table when they point to a next objective, and hashed
+ * next objectives to selector groups of the uplink table. All other types of
+ * objectives are not supported.
  */
 public class PipelinerImpl extends AbstractHandlerBehaviour implements Pipeliner {
 
     // From the P4Info file
-    private static final String ACL_TABLE = "IngressPipeImpl.acl_table";
-    private static final String CLONE_TO_CPU = "IngressPipeImpl.clone_to_cpu";
+    private static final PiTableId ACL_TABLE_ID =
+            PiTableId.of("IngressPipeImpl.acl_table");
+    private static final PiActionId CLONE_TO_CPU =
+            PiActionId.of("IngressPipeImpl.clone_to_cpu");
+    private static final PiActionParamId SESSION_ID =
+            PiActionParamId.of("session_id");
+    private static final String UPLINK_TABLE = "IngressPipeImpl.uplink_table";
+    private static final PiTableId UPLINK_TABLE_ID = PiTableId.of(UPLINK_TABLE);
+    private static final String UPLINK_SELECTOR = "IngressPipeImpl.uplink_selector";
+    private static final PiActionProfileId UPLINK_SELECTOR_ID =
+            PiActionProfileId.of(UPLINK_SELECTOR);
+    private static final PiActionId SET_UPLINK_PORT =
+            PiActionId.of("IngressPipeImpl.set_uplink_port");
+    private static final PiActionParamId PORT_NUM =
+            PiActionParamId.of("port_num");
+
+    // Group listener of the pipeliner last initialized for each device. The
+    // Pipeliner API has no counterpart to init(), so the listener of the
+    // previous pipeliner of a device is removed when a new one is initialized,
+    // and the PipeconfLoader removes it once the device is removed.
+    private static final Map<DeviceId, InternalGroupListener> GROUP_LISTENERS =
+            Maps.newConcurrentMap();
 
     private final Logger log = getLogger(getClass());
 
     private FlowRuleService flowRuleService;
     private GroupService groupService;
+    private FlowObjectiveStore flowObjectiveStore;
+    private PipeconfLoader pipeconfLoader;
     private DeviceId deviceId;
 
+    // The clone session of a device never changes, compute it once.
+    private int cloneSessionId;
+    private GroupKey cloneGroupKey;
+    // Treatment of all ACL rules of this device.
+    private TrafficTreatment cloneToCpuTreatment;
+    // Actions of the uplink selector group members, by port, and treatments
+    // of the uplink rules, by next objective ID. Built once and shared by all
+    // the buckets and rules of this device.
+    private final Map<PortNumber, PiAction> uplinkActions = Maps.newConcurrentMap();
+    private final Map<Integer, TrafficTreatment> uplinkTreatments = Maps.newConcurrentMap();
+
+    // Forwarding objectives waiting to be written, see flushObjectives().
+    private final List<ForwardingObjective> pendingObjectives = Lists.newArrayList();
+    // Flush of the pending objectives, scheduled by the first of a batch.
+    private volatile ScheduledFuture<?> flushTask;
+
+    // Rules written on this device, by application short ID, so that purging
+    // the rules of an app does not require scanning the device.
+    private final Map<Short, Map<FlowId, FlowRule>> writtenRules = Maps.newConcurrentMap();
+
+    // Next objectives waiting for the result of their group operation.
+    private final Map<GroupKey, NextObjective> pendingNexts = Maps.newConcurrentMap();
+
+    // Whether the clone group of this device is known to be installed. Reset
+    // when the group store reports that the group is gone.
+    private final AtomicBoolean cloneGroupInstalled = new AtomicBoolean(false);
 
     @Override
     public void init(DeviceId deviceId, PipelinerContext context) {
         this.deviceId = deviceId;
         this.flowRuleService = context.directory().get(FlowRuleService.class);
         this.groupService = context.directory().get(GroupService.class);
+        this.flowObjectiveStore = context.store();
+        this.pipeconfLoader = context.directory().get(PipeconfLoader.class);
+        this.cloneSessionId = context.directory().get(DeviceIdentityRegistry.class)
+                .cloneSessionId(deviceId);
+        this.cloneGroupKey = Utils.buildReplicationGroupKey(cloneSessionId);
+        this.cloneToCpuTreatment = DefaultTrafficTreatment.builder()
+                .piTableAction(PiAction.builder()
+                                       .withId(CLONE_TO_CPU)
+                                       .withParameter(new PiActionParam(
+                                               SESSION_ID, cloneSessionId))
+                                       .build())
+                .build();
+        final InternalGroupListener groupListener = new InternalGroupListener();
+        this.groupService.addListener(groupListener);
+        final InternalGroupListener previousListener =
+                GROUP_LISTENERS.put(deviceId, groupListener);
+        if (previousListener != null) {
+            previousListener.remove();
+        }
+        // Rules written before this pipeliner was created, e.g. by a previous
+        // instance of the app.
+        for (FlowEntry entry : flowRuleService.getFlowEntries(deviceId)) {
+            if (ACL_TABLE_ID.equals(entry.table()) ||
+                    UPLINK_TABLE_ID.equals(entry.table())) {
+                indexRule(entry, true);
+            }
+        }
+    }
+
+    /**
+     * Removes the group listener of the pipeliner of the given device.
+     *
+     * @param deviceId device ID
+     */
+    static void removeGroupListener(DeviceId deviceId) {
+        final InternalGroupListener listener = GROUP_LISTENERS.remove(deviceId);
+        if (listener != null) {
+            listener.remove();
+        }
+    }
+
+    /**
+     * Removes the group listeners of the pipeliners of all devices.
+     */
+    static void removeGroupListeners() {
+        GROUP_LISTENERS.keySet().forEach(PipelinerImpl::removeGroupListener);
     }
 
     @Override
@@ -78,87 +209,556 @@ public class PipelinerImpl extends AbstractHandlerBehaviour implements Pipeliner
 
     @Override
     public void forward(ForwardingObjective obj) {
-        if (obj.treatment() == null) {
+        if (obj.nextId() != null) {
+            // Load sharing over the uplinks of the next objective, matching
+            // only on the Ethernet destination.
+            if (obj.op() == Objective.Operation.ADD &&
+                    flowObjectiveStore.getNextGroup(obj.nextId()) == null) {
+                log.warn("Next objective {} not found on {}", obj.nextId(), deviceId);
+                obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.GROUPMISSING));
+                return;
+            }
+        } else if (obj.treatment() == null) {
             obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
         }
 
         // Whether this objective specifies an OUTPUT:CONTROLLER instruction.
-        final boolean hasCloneToCpuAction = obj.treatment()
+        final boolean hasCloneToCpuAction = obj.treatment() != null && obj.treatment()
                 .allInstructions().stream()
                 .filter(i -> i.type().equals(OUTPUT))
                 .map(i -> (Instructions.OutputInstruction) i)
                 .anyMatch(i -> i.port().equals(PortNumber.CONTROLLER));
 
-        if (!hasCloneToCpuAction) {
-            // We support only objectives for clone to CPU behaviours (e.g. for
-            // host and link discovery)
+        if (obj.nextId() == null && !hasCloneToCpuAction) {
+            // Other than load sharing, we support only objectives for clone
+            // to CPU behaviours (e.g. for host and link discovery)
             obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
         }
 
-        int cloneSession = Utils.getUniqueSessionId(deviceId);
+        if (obj.op() != Objective.Operation.ADD &&
+                obj.op() != Objective.Operation.REMOVE) {
+            log.warn("Unknown operation {}", obj.op());
+            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
+        }
 
-        // Create an equivalent FlowRule with same selector and clone_to_cpu action.
-        final PiAction cloneToCpuAction = PiAction.builder()
-                .withId(PiActionId.of(CLONE_TO_CPU))
-                .withParameter(new PiActionParam(
-                            PiActionParamId.of("session_id"),
-                            cloneSession))
-                .build();
+        // Objectives are written in batches, the first objective of a batch
+        // schedules the flush of the batch.
+        final boolean firstOfBatch;
+        synchronized (pendingObjectives) {
+            firstOfBatch = pendingObjectives.isEmpty();
+            pendingObjectives.add(obj);
+        }
+        if (firstOfBatch) {
+            final int window = getObjectiveBatchWindow();
+            if (window > 0) {
+                flushTask = SharedScheduledExecutors.getSingleThreadExecutor().schedule(
+                        this::flushObjectives, window, TimeUnit.MILLISECONDS);
+            } else {
+                flushObjectives();
+            }
+        }
+    }
+
+    /**
+     * Writes all pending forwarding objectives to the device as a single
+     * FlowRuleOperations batch. The objective contexts are notified once the
+     * result of the batch is known. Rules are indexed as soon as they are
+     * written, and the index of the rules that failed is rolled back.
+     */
+    private void flushObjectives() {
+        final List<ForwardingObjective> batch;
+        synchronized (pendingObjectives) {
+            batch = Lists.newArrayList(pendingObjectives);
+            pendingObjectives.clear();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        final FlowRuleOperations.Builder builder = FlowRuleOperations.builder();
+        // Operations on the same rule go to different stages, so that they
+        // are applied in the order the objectives were received.
+        final Set<FlowId> stageRules = Sets.newHashSet();
+        // Last operation of the batch on each rule, true for an addition.
+        final Map<FlowId, FlowRule> batchRules = Maps.newHashMap();
+        final Map<FlowId, Boolean> batchAdds = Maps.newHashMap();
+        ApplicationId groupAppId = null;
+        for (ForwardingObjective obj : batch) {
+            final FlowRule rule = obj.nextId() == null
+                    ? buildAclFlowRule(obj) : buildUplinkFlowRule(obj);
+            if (!stageRules.add(rule.id())) {
+                builder.newStage();
+                stageRules.clear();
+                stageRules.add(rule.id());
+            }
+            batchRules.put(rule.id(), rule);
+            batchAdds.put(rule.id(), obj.op() == Objective.Operation.ADD);
+            if (obj.op() == Objective.Operation.ADD) {
+                builder.add(rule);
+                indexRule(rule, true);
+                if (obj.nextId() == null && groupAppId == null) {
+                    groupAppId = obj.appId();
+                }
+            } else {
+                builder.remove(rule);
+                indexRule(rule, false);
+                // Do not remove the clone group as other flow rules might be
+                // pointing to it.
+            }
+        }
+
+        if (groupAppId != null) {
+            ensureCloneGroup(groupAppId);
+        }
+
+        log.debug("Writing {} forwarding objectives to {}", batch.size(), deviceId);
+        flowRuleService.apply(builder.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                batch.forEach(obj -> obj.context().ifPresent(c -> c.onSuccess(obj)));
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                log.warn("Unable to write {} forwarding objectives to {}",
+                         batch.size(), deviceId);
+                // Failed additions are not on the device, failed removals
+                // still are.
+                for (FlowId id : flowIds(ops)) {
+                    final FlowRule rule = batchRules.get(id);
+                    if (rule != null) {
+                        indexRule(rule, !batchAdds.get(id));
+                    }
+                }
+                batch.forEach(obj -> obj.context().ifPresent(c -> c.onError(
+                        obj, ObjectiveError.FLOWINSTALLATIONFAILED)));
+            }
+        }));
+    }
+
+    /**
+     * Builds the ACL flow rule equivalent to the given objective, with same
+     * selector and the clone_to_cpu action of the device.
+     *
+     * @param obj forwarding objective
+     * @return ACL flow rule
+     */
+    private FlowRule buildAclFlowRule(ForwardingObjective obj) {
+        return buildFlowRule(obj, ACL_TABLE_ID, cloneToCpuTreatment);
+    }
+
+    /**
+     * Builds the uplink flow rule equivalent to the given objective, with same
+     * selector and the selector group of its next objective as action.
+     *
+     * @param obj forwarding objective
+     * @return uplink flow rule
+     */
+    private FlowRule buildUplinkFlowRule(ForwardingObjective obj) {
+        return buildFlowRule(obj, UPLINK_TABLE_ID, uplinkTreatments.computeIfAbsent(
+                obj.nextId(), nextId -> DefaultTrafficTreatment.builder()
+                        .piTableAction(PiActionProfileGroupId.of(nextId))
+                        .build()));
+    }
 
+    private FlowRule buildFlowRule(ForwardingObjective obj, PiTableId tableId,
+                                   TrafficTreatment treatment) {
         final FlowRule.Builder ruleBuilder = DefaultFlowRule.builder()
-                .forTable(PiTableId.of(ACL_TABLE))
+                .forTable(tableId)
                 .forDevice(deviceId)
                 .withSelector(obj.selector())
                 .fromApp(obj.appId())
                 .withPriority(obj.priority())
-                .withTreatment(DefaultTrafficTreatment.builder()
-                                       .piTableAction(cloneToCpuAction).build());
+                .withTreatment(treatment);
 
         if (obj.permanent()) {
             ruleBuilder.makePermanent();
         } else {
             ruleBuilder.makeTemporary(obj.timeout());
         }
+        return ruleBuilder.build();
+    }
+
+    /**
+     * Returns the window in milliseconds during which forwarding objectives
+     * are queued before being written, as configured on the PipeconfLoader
+     * component.
+     *
+     * @return batch window in milliseconds
+     */
+    private int getObjectiveBatchWindow() {
+        return pipeconfLoader == null ? OBJECTIVE_BATCH_WINDOW_DEFAULT
+                : pipeconfLoader.getObjectiveBatchWindow();
+    }
+
+    /**
+     * Makes sure the clone group of the device exists. The group is written
+     * only the first time, or again after the group store reported that it
+     * has been removed.
+     *
+     * @param appId application ID used if the group has to be created
+     */
+    private void ensureCloneGroup(ApplicationId appId) {
+        if (cloneGroupInstalled.get()) {
+            return;
+        }
+        if (groupService.getGroup(deviceId, cloneGroupKey) == null) {
+            final GroupDescription cloneGroup = Utils.buildCloneGroup(
+                    appId,
+                    deviceId,
+                    cloneSessionId,
+                    // Ports where to clone the packet.
+                    // Just controller in this case.
+                    Collections.singleton(PortNumber.CONTROLLER));
+            log.info("Adding clone group {} on {}...", cloneSessionId, deviceId);
+            groupService.addGroup(cloneGroup);
+        }
+        cloneGroupInstalled.set(true);
+    }
 
-        final GroupDescription cloneGroup = Utils.buildCloneGroup(
-                obj.appId(),
-                deviceId,
-                cloneSession,
-                // Ports where to clone the packet.
-                // Just controller in this case.
-                Collections.singleton(PortNumber.CONTROLLER));
+    /**
+     * Maps hashed next objectives to selector groups of the uplink table, with
+     * one member per uplink port. The group ID is the ID of the next
+     * objective. The objective context is notified once the group operation
+     * is confirmed by the group store.
+     *
+     * @param obj next objective
+     */
+    @Override
+    public void next(NextObjective obj) {
+        if (obj.type() != NextObjective.Type.HASHED) {
+            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
+        }
+
+        final List<PortNumber> ports = outputPorts(obj.nextTreatments());
+        if (ports.size() != obj.nextTreatments().size()) {
+            // We only support traffic treatments with a single output port.
+            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.BADPARAMS));
+            return;
+        }
+
+        final GroupKey groupKey = new PiGroupKey(
+                UPLINK_TABLE_ID, UPLINK_SELECTOR_ID, obj.id());
+        final NextGroup nextGroup = flowObjectiveStore.getNextGroup(obj.id());
+        final List<PortNumber> currentPorts = nextGroup == null
+                ? Collections.emptyList() : UplinkNextGroup.ports(nextGroup);
+        final GroupBuckets buckets = new GroupBuckets(ports.stream()
+                .map(p -> Utils.buildSelectGroupBucket(buildUplinkAction(p)))
+                .collect(Collectors.toList()));
 
         switch (obj.op()) {
             case ADD:
-                flowRuleService.applyFlowRules(ruleBuilder.build());
-                groupService.addGroup(cloneGroup);
+                if (ports.isEmpty()) {
+                    obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.BADPARAMS));
+                    return;
+                }
+                log.info("Adding uplink group {} with ports {} on {}...",
+                         obj.id(), ports, deviceId);
+                pendingNexts.put(groupKey, obj);
+                flowObjectiveStore.putNextGroup(obj.id(), new UplinkNextGroup(ports));
+                groupService.addGroup(Utils.buildSelectGroup(
+                        deviceId, UPLINK_TABLE, UPLINK_SELECTOR, obj.id(),
+                        ports.stream().map(this::buildUplinkAction)
+                                .collect(Collectors.toList()),
+                        obj.appId()));
+                break;
+            case ADD_TO_EXISTING:
+            case REMOVE_FROM_EXISTING:
+                if (nextGroup == null) {
+                    obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.GROUPMISSING));
+                    return;
+                }
+                final List<PortNumber> newPorts = Lists.newArrayList(currentPorts);
+                pendingNexts.put(groupKey, obj);
+                if (obj.op() == Objective.Operation.ADD_TO_EXISTING) {
+                    ports.stream().filter(p -> !newPorts.contains(p)).forEach(newPorts::add);
+                    groupService.addBucketsToGroup(
+                            deviceId, groupKey, buckets, groupKey, obj.appId());
+                } else {
+                    newPorts.removeAll(ports);
+                    groupService.removeBucketsFromGroup(
+                            deviceId, groupKey, buckets, groupKey, obj.appId());
+                }
+                log.info("Updating uplink group {} with ports {} on {}...",
+                         obj.id(), newPorts, deviceId);
+                flowObjectiveStore.putNextGroup(obj.id(), new UplinkNextGroup(newPorts));
                 break;
             case REMOVE:
-                flowRuleService.removeFlowRules(ruleBuilder.build());
-                // Do not remove the clone group as other flow rules might be
-                // pointing to it.
+                log.info("Removing uplink group {} from {}...", obj.id(), deviceId);
+                pendingNexts.put(groupKey, obj);
+                flowObjectiveStore.removeNextGroup(obj.id());
+                uplinkTreatments.remove(obj.id());
+                groupService.removeGroup(deviceId, groupKey, obj.appId());
                 break;
             default:
                 log.warn("Unknown operation {}", obj.op());
+                obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
         }
-
-        obj.context().ifPresent(c -> c.onSuccess(obj));
     }
 
     @Override
-    public void next(NextObjective obj) {
-        obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+    public List<String> getNextMappings(NextGroup nextGroup) {
+        return UplinkNextGroup.ports(nextGroup).stream()
+                .map(p -> "port " + p)
+                .collect(Collectors.toList());
     }
 
-    @Override
-    public List<String> getNextMappings(NextGroup nextGroup) {
-        // We do not use nextObjectives or groups.
-        return Collections.emptyList();
+    private PiAction buildUplinkAction(PortNumber port) {
+        return uplinkActions.computeIfAbsent(port, p -> PiAction.builder()
+                .withId(SET_UPLINK_PORT)
+                .withParameter(new PiActionParam(PORT_NUM, p.toLong()))
+                .build());
+    }
+
+    /**
+     * Returns the output port of each of the given next treatments. Next
+     * treatments referring to another next objective, and traffic treatments
+     * without an output instruction, are skipped.
+     *
+     * @param treatments next treatments
+     * @return output ports
+     */
+    private static List<PortNumber> outputPorts(Collection<NextTreatment> treatments) {
+        return treatments.stream()
+                .filter(t -> t.type() == NextTreatment.Type.TREATMENT)
+                .map(t -> ((DefaultNextTreatment) t).treatment().allInstructions().stream()
+                        .filter(i -> i.type().equals(OUTPUT))
+                        .map(i -> ((Instructions.OutputInstruction) i).port())
+                        .findFirst().orElse(null))
+                .filter(p -> p != null)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Adds the given rule to, or removes it from, the index of the rules
+     * written on this device.
+     *
+     * @param rule ACL or uplink flow rule
+     * @param add  true to add the rule, false to remove it
+     */
+    private void indexRule(FlowRule rule, boolean add) {
+        if (add) {
+            writtenRules.computeIfAbsent(rule.appId(), k -> Maps.newConcurrentMap())
+                    .put(rule.id(), rule);
+        } else {
+            writtenRules.computeIfPresent(rule.appId(), (k, rules) -> {
+                rules.remove(rule.id());
+                return rules.isEmpty() ? null : rules;
+            });
+        }
     }
 
     @Override
     public void purgeAll(ApplicationId appId) {
-        // Implementation of the method
-        // TODO: Add the logic to purge all the resources associated with the given ApplicationId
+        // Objectives of the pending batch are written first, so that the
+        // rules they add are purged too.
+        final ScheduledFuture<?> pendingFlush = flushTask;
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+        }
+        flushObjectives();
+
+        // All the ACL and uplink rules of the app, in a single batch. They
+        // stay indexed until their removal is confirmed.
+        final Map<FlowId, FlowRule> indexedRules = writtenRules.get(appId.id());
+        final List<FlowRule> appRules = indexedRules == null
+                ? Collections.emptyList() : ImmutableList.copyOf(indexedRules.values());
+        final FlowRuleOperations.Builder builder = FlowRuleOperations.builder();
+        appRules.forEach(builder::remove);
+
+        log.info("Purging {} rules of {} from {}...", appRules.size(), appId.name(), deviceId);
+        flowRuleService.apply(builder.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                appRules.forEach(r -> indexRule(r, false));
+                // Groups are removed once no rule points to them.
+                final int groupCount = purgeGroups(appId);
+                log.info("Purged {} rules and {} groups of {} from {}",
+                         appRules.size(), groupCount, appId.name(), deviceId);
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                // The failed rules are given to the context, those are kept.
+                final Set<FlowId> failed = flowIds(ops);
+                appRules.stream()
+                        .filter(r -> !failed.contains(r.id()))
+                        .forEach(r -> indexRule(r, false));
+                final int groupCount = purgeGroups(appId);
+                log.warn("Unable to purge {} of the {} rules of {} from {}, purged {} groups",
+                         failed.size(), appRules.size(), appId.name(), deviceId, groupCount);
+            }
+        }));
+    }
+
+    /**
+     * Removes the groups of the given app from the device, together with the
+     * next objectives they implement. Groups still pointed to by indexed
+     * rules are kept: the clone group by ACL rules of any app, and uplink
+     * groups by uplink rules.
+     *
+     * @param appId application ID
+     * @return number of groups removed
+     */
+    private int purgeGroups(ApplicationId appId) {
+        boolean cloneGroupInUse = false;
+        final Set<Integer> uplinkGroupsInUse = Sets.newHashSet();
+        for (Map<FlowId, FlowRule> rules : writtenRules.values()) {
+            for (FlowRule rule : rules.values()) {
+                if (ACL_TABLE_ID.equals(rule.table())) {
+                    cloneGroupInUse = true;
+                } else {
+                    uplinkGroupId(rule).ifPresent(uplinkGroupsInUse::add);
+                }
+            }
+        }
+        int count = 0;
+        for (Group group : groupService.getGroups(deviceId, appId)) {
+            if (cloneGroupKey.equals(group.appCookie()) && cloneGroupInUse) {
+                continue;
+            }
+            if (group.appCookie() instanceof PiGroupKey) {
+                if (uplinkGroupsInUse.contains(group.id().id())) {
+                    continue;
+                }
+                flowObjectiveStore.removeNextGroup(group.id().id());
+            }
+            groupService.removeGroup(deviceId, group.appCookie(), appId);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the selector group the given uplink rule points to.
+     *
+     * @param rule uplink flow rule
+     * @return group ID, empty if the rule has no group action
+     */
+    private static Optional<Integer> uplinkGroupId(FlowRule rule) {
+        return rule.treatment().allInstructions().stream()
+                .filter(i -> i instanceof PiInstruction)
+                .map(i -> ((PiInstruction) i).action())
+                .filter(a -> a instanceof PiActionProfileGroupId)
+                .map(a -> ((PiActionProfileGroupId) a).id())
+                .findFirst();
+    }
+
+    /**
+     * Returns the IDs of the rules of the given operations.
+     *
+     * @param ops flow rule operations
+     * @return flow IDs
+     */
+    private static Set<FlowId> flowIds(FlowRuleOperations ops) {
+        return ops.stages().stream()
+                .flatMap(Collection::stream)
+                .map(op -> op.rule().id())
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Listener of group events, used to forget the clone group of the device
+     * when it is removed or could not be installed, and to notify next
+     * objectives of the result of their group operation.
+     */
+    private class InternalGroupListener implements GroupListener {
+
+        private void remove() {
+            groupService.removeListener(this);
+        }
+
+        @Override
+        public boolean isRelevant(GroupEvent event) {
+            return event.subject().deviceId().equals(deviceId) &&
+                    (cloneGroupKey.equals(event.subject().appCookie()) ||
+                            pendingNexts.containsKey(event.subject().appCookie()));
+        }
+
+        @Override
+        public void event(GroupEvent event) {
+            final GroupKey groupKey = event.subject().appCookie();
+            if (cloneGroupKey.equals(groupKey)) {
+                if (event.type() == GroupEvent.Type.GROUP_REMOVED ||
+                        event.type() == GroupEvent.Type.GROUP_ADD_FAILED) {
+                    log.info("Clone group {} gone from {} ({})",
+                             cloneSessionId, deviceId, event.type());
+                    cloneGroupInstalled.set(false);
+                }
+                return;
+            }
+
+            final ObjectiveError error;
+            switch (event.type()) {
+                case GROUP_ADDED:
+                case GROUP_UPDATED:
+                case GROUP_REMOVED:
+                    error = null;
+                    break;
+                case GROUP_ADD_FAILED:
+                case GROUP_UPDATE_FAILED:
+                    error = ObjectiveError.GROUPINSTALLATIONFAILED;
+                    break;
+                case GROUP_REMOVE_FAILED:
+                    error = ObjectiveError.GROUPREMOVALFAILED;
+                    break;
+                default:
+                    return;
+            }
+            final NextObjective obj = pendingNexts.remove(groupKey);
+            if (obj == null) {
+                return;
+            }
+            if (error == null) {
+                obj.context().ifPresent(c -> c.onSuccess(obj));
+            } else {
+                log.warn("Unable to apply next objective {} on {}: {}",
+                         obj.id(), deviceId, event.type());
+                if (obj.op() == Objective.Operation.ADD) {
+                    flowObjectiveStore.removeNextGroup(obj.id());
+                }
+                obj.context().ifPresent(c -> c.onError(obj, error));
+            }
+        }
+    }
+
+    /**
+     * Next group of a hashed next objective, holding the uplink ports of its
+     * selector group.
+     */
+    private static final class UplinkNextGroup implements NextGroup {
+
+        private final byte[] data;
+
+        private UplinkNextGroup(List<PortNumber> ports) {
+            final ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES * ports.size());
+            ports.forEach(p -> buffer.putLong(p.toLong()));
+            this.data = buffer.array();
+        }
+
+        @Override
+        public byte[] data() {
+            return data.clone();
+        }
+
+        /**
+         * Returns the uplink ports of the given next group. The objective store
+         * does not keep the original object, only its data.
+         *
+         * @param nextGroup next group
+         * @return uplink ports
+         */
+        private static List<PortNumber> ports(NextGroup nextGroup) {
+            final ByteBuffer buffer = ByteBuffer.wrap(nextGroup.data());
+            final List<PortNumber> ports = Lists.newArrayList();
+            while (buffer.remaining() >= Long.BYTES) {
+                ports.add(PortNumber.portNumber(buffer.getLong()));
+            }
+            return ports;
+        }
     }
 }
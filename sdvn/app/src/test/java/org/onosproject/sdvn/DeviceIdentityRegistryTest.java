@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.junit.TestUtils;
+import org.onlab.junit.TestUtils.TestUtilsException;
+import org.onlab.packet.ChassisId;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.provider.ProviderId;
+import static org.onosproject.sdvn.AppConstants.CPU_CLONE_SESSION_BASE;
+import static org.onosproject.sdvn.AppConstants.MAX_SWITCH_ID;
+import org.onosproject.store.service.TestStorageService;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Tests of the switch ID allocation of the device identity registry.
+ */
+public class DeviceIdentityRegistryTest {
+
+    private static final ProviderId PID = new ProviderId("of", "foo");
+
+    private final TestDeviceService deviceService = new TestDeviceService();
+    private DeviceIdentityRegistry registry;
+
+    @Before
+    public void setUp() throws TestUtilsException {
+        registry = new DeviceIdentityRegistry();
+        TestUtils.setField(registry, "storageService", new TestStorageService());
+        TestUtils.setField(registry, "deviceService", deviceService);
+        registry.activate();
+    }
+
+    @After
+    public void tearDown() {
+        registry.deactivate();
+    }
+
+    /**
+     * Tests that devices get the lowest free switch ID, starting at 1, and
+     * keep it.
+     */
+    @Test
+    public void testAllocate() {
+        final DeviceId device1 = deviceId(1);
+        final DeviceId device2 = deviceId(2);
+        assertEquals(1, registry.switchId(device1));
+        assertEquals(2, registry.switchId(device2));
+        assertEquals(1, registry.switchId(device1));
+        assertEquals(CPU_CLONE_SESSION_BASE + 2, registry.cloneSessionId(device2));
+        assertEquals(device1, registry.deviceId(1));
+        assertNull(registry.deviceId(3));
+    }
+
+    /**
+     * Tests that devices present at activation get a switch ID.
+     */
+    @Test
+    public void testAllocateAtActivation() {
+        registry.deactivate();
+        deviceService.devices.add(device(1));
+        registry.activate();
+        assertEquals(deviceId(1), registry.deviceId(1));
+    }
+
+    /**
+     * Tests that lookups fail once all switch IDs are in use.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testExhaustion() {
+        final Set<Integer> switchIds = Sets.newHashSet();
+        for (int i = 1; i <= MAX_SWITCH_ID; i++) {
+            switchIds.add(registry.switchId(deviceId(i)));
+        }
+        assertEquals(MAX_SWITCH_ID, switchIds.size());
+        registry.switchId(deviceId(MAX_SWITCH_ID + 1));
+    }
+
+    /**
+     * Tests that devices added once all switch IDs are in use are left
+     * without one, and do not fail the device listener.
+     */
+    @Test
+    public void testExhaustionOnDeviceAdded() {
+        for (int i = 1; i <= MAX_SWITCH_ID; i++) {
+            registry.switchId(deviceId(i));
+        }
+        deviceService.post(new DeviceEvent(DeviceEvent.Type.DEVICE_ADDED,
+                                           device(MAX_SWITCH_ID + 1)));
+        for (int i = 1; i <= MAX_SWITCH_ID; i++) {
+            assertEquals(deviceId(i), registry.deviceId(i));
+        }
+    }
+
+    /**
+     * Tests that the switch ID of a removed device is reused.
+     */
+    @Test
+    public void testReleaseAndReuse() {
+        for (int i = 1; i <= MAX_SWITCH_ID; i++) {
+            registry.switchId(deviceId(i));
+        }
+        final int released = registry.switchId(deviceId(3));
+        deviceService.post(new DeviceEvent(DeviceEvent.Type.DEVICE_REMOVED, device(3)));
+        assertNull(registry.deviceId(released));
+
+        assertEquals(released, registry.switchId(deviceId(MAX_SWITCH_ID + 1)));
+        assertEquals(deviceId(MAX_SWITCH_ID + 1), registry.deviceId(released));
+    }
+
+    private static DeviceId deviceId(int i) {
+        return DeviceId.deviceId("device:" + i);
+    }
+
+    private static Device device(int i) {
+        return new DefaultDevice(PID, deviceId(i), Device.Type.SWITCH,
+                                 "manufacturer", "hw", "sw", "serial", new ChassisId());
+    }
+
+    /**
+     * Device service with the given devices, delivering events to its
+     * listeners.
+     */
+    private static class TestDeviceService extends DeviceServiceAdapter {
+        private final List<Device> devices = Lists.newArrayList();
+        private final List<DeviceListener> listeners = Lists.newArrayList();
+
+        @Override
+        public Iterable<Device> getDevices() {
+            return ImmutableList.copyOf(devices);
+        }
+
+        @Override
+        public void addListener(DeviceListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(DeviceListener listener) {
+            listeners.remove(listener);
+        }
+
+        private void post(DeviceEvent event) {
+            listeners.stream()
+                    .filter(l -> l.isRelevant(event))
+                    .forEach(l -> l.event(event));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.onosproject.sdvn.DirectedForwardingComponent.nextHopsTo;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests of the next hops computed from the neighbors heard by the switches.
+ */
+public class DirectedForwardingComponentTest {
+
+    /**
+     * Tests the next hops along a line of switches hearing each other.
+     */
+    @Test
+    public void testLine() {
+        final Map<Integer, Set<Integer>> heard = ImmutableMap.of(
+                1, ImmutableSet.of(2),
+                2, ImmutableSet.of(1, 3),
+                3, ImmutableSet.of(2, 4),
+                4, ImmutableSet.of(3));
+        assertEquals(ImmutableMap.of(1, 2, 2, 3, 3, 4), nextHopsTo(4, heard));
+        assertEquals(ImmutableMap.of(1, 2, 3, 2, 4, 3), nextHopsTo(2, heard));
+    }
+
+    /**
+     * Tests that the shortest path is used, and that the lowest next hop is
+     * preferred among equally short ones.
+     */
+    @Test
+    public void testShortestPath() {
+        // 4 reaches 1 through 2 or 3, and through 5 then 6.
+        final Map<Integer, Set<Integer>> heard = ImmutableMap.of(
+                1, ImmutableSet.of(2, 3, 6),
+                2, ImmutableSet.of(4),
+                3, ImmutableSet.of(4),
+                5, ImmutableSet.of(4),
+                6, ImmutableSet.of(5));
+        final Map<Integer, Integer> nextHops = nextHopsTo(1, heard);
+        assertEquals(Integer.valueOf(2), nextHops.get(4));
+        assertEquals(Integer.valueOf(1), nextHops.get(2));
+        assertEquals(Integer.valueOf(1), nextHops.get(3));
+        assertEquals(Integer.valueOf(6), nextHops.get(5));
+        assertEquals(Integer.valueOf(1), nextHops.get(6));
+    }
+
+    /**
+     * Tests that links are used only in the direction they were heard.
+     */
+    @Test
+    public void testOneWayLink() {
+        // 2 hears 1, but 1 does not hear 2.
+        final Map<Integer, Set<Integer>> heard = ImmutableMap.of(
+                2, ImmutableSet.of(1));
+        assertEquals(ImmutableMap.of(1, 2), nextHopsTo(2, heard));
+        assertTrue(nextHopsTo(1, heard).isEmpty());
+    }
+
+    /**
+     * Tests that switches without a path to the destination get no next hop.
+     */
+    @Test
+    public void testUnreachable() {
+        final Map<Integer, Set<Integer>> heard = ImmutableMap.of(
+                1, ImmutableSet.of(2),
+                2, ImmutableSet.of(1),
+                3, ImmutableSet.of(4),
+                4, ImmutableSet.of(3));
+        assertEquals(ImmutableMap.of(2, 1), nextHopsTo(1, heard));
+        assertTrue(nextHopsTo(5, heard).isEmpty());
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.junit.TestUtils;
+import org.onlab.junit.TestUtils.TestUtilsException;
+import org.onlab.metrics.MetricsComponent;
+import org.onlab.metrics.MetricsManager;
+import org.onlab.metrics.MetricsService;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.mastership.MastershipServiceAdapter;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.provider.ProviderId;
+import static org.onosproject.sdvn.OsgiPropertyConstants.DEDUP_EXPIRY;
+import static org.onosproject.sdvn.OsgiPropertyConstants.DEDUP_EXPIRY_DEFAULT;
+import static org.onosproject.sdvn.OsgiPropertyConstants.DEDUP_TABLE_SIZE;
+import static org.onosproject.sdvn.OsgiPropertyConstants.DEDUP_TABLE_SIZE_DEFAULT;
+import org.onosproject.sdvn.common.Utils;
+import org.onosproject.store.service.TestStorageService;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.ComponentInstance;
+
+import com.codahale.metrics.Gauge;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests of the duplicate suppression component, with the configuration it
+ * writes recorded instead of applied.
+ */
+public class DuplicateSuppressionComponentTest {
+
+    private static final ApplicationId APP_ID =
+            new DefaultApplicationId(1, "org.onosproject.sdvn");
+    private static final ProviderId PID = new ProviderId("of", "foo");
+    private static final DeviceId DEVICE1 = DeviceId.deviceId("device:obu1");
+    // DEDUP_MAX_ENTRIES in main.p4
+    private static final int DEDUP_MAX_ENTRIES = 65536;
+
+    private final TestFlowRuleService flowRuleService = new TestFlowRuleService();
+    private final MetricsService metricsService = new MetricsManager();
+    private DeviceIdentityRegistry registry;
+    private DuplicateSuppressionComponent component;
+
+    @Before
+    public void setUp() throws TestUtilsException {
+        registry = new DeviceIdentityRegistry();
+        TestUtils.setField(registry, "storageService", new TestStorageService());
+        TestUtils.setField(registry, "deviceService", new DeviceServiceAdapter());
+        TestUtils.callMethod(registry, "activate", new Class<?>[]{});
+
+        component = new DuplicateSuppressionComponent();
+        TestUtils.setField(component, "appId", APP_ID);
+        TestUtils.setField(component, "flowRuleService", flowRuleService);
+        TestUtils.setField(component, "deviceService", new TestDeviceService());
+        TestUtils.setField(component, "mastershipService", new MastershipServiceAdapter() {
+            @Override
+            public boolean isLocalMaster(DeviceId deviceId) {
+                return true;
+            }
+        });
+        TestUtils.setField(component, "mainComponent", new MainComponent() {
+            @Override
+            public void execute(DeviceId deviceId, Runnable task) {
+                task.run();
+            }
+        });
+        TestUtils.setField(component, "deviceIdentityRegistry", registry);
+        final MetricsComponent metricsComponent = metricsService.registerComponent("sdvn");
+        TestUtils.setField(component, "metricsService", metricsService);
+        TestUtils.setField(component, "metricsComponent", metricsComponent);
+        TestUtils.setField(component, "metricsFeature", metricsComponent.registerFeature("dedup"));
+    }
+
+    /**
+     * Tests that the configuration written holds the switch ID of the device,
+     * the seen-set size and the expiry time in microseconds.
+     */
+    @Test
+    public void testConfigureDevice() throws TestUtilsException {
+        configureDevice(DEVICE1);
+
+        assertEquals(ImmutableList.of(configRule(registry.switchId(DEVICE1),
+                                                 DEDUP_TABLE_SIZE_DEFAULT, DEDUP_EXPIRY_DEFAULT)),
+                     flowRuleService.applied);
+        assertTrue(registry.switchId(DEVICE1) > 0);
+    }
+
+    /**
+     * Tests that valid properties are applied to the devices, including the
+     * largest seen-set main.p4 has room for.
+     */
+    @Test
+    public void testModified() throws TestUtilsException {
+        modified(DEDUP_MAX_ENTRIES, 50);
+
+        assertEquals(DEDUP_MAX_ENTRIES, (int) TestUtils.getField(component, "dedupTableSize"));
+        assertEquals(50, (int) TestUtils.getField(component, "dedupExpiry"));
+        final FlowRule last = flowRuleService.applied.get(flowRuleService.applied.size() - 1);
+        assertEquals(configRule(registry.switchId(DEVICE1), DEDUP_MAX_ENTRIES, 50), last);
+    }
+
+    /**
+     * Tests that seen-set sizes out of 1 to DEDUP_MAX_ENTRIES and expiry times
+     * not positive are ignored, keeping the previous values.
+     */
+    @Test
+    public void testModifiedOutOfRange() throws TestUtilsException {
+        modified(0, 0);
+        modified(DEDUP_MAX_ENTRIES + 1, -1);
+        modified(-1, DEDUP_EXPIRY_DEFAULT);
+
+        assertEquals(DEDUP_TABLE_SIZE_DEFAULT, (int) TestUtils.getField(component, "dedupTableSize"));
+        assertEquals(DEDUP_EXPIRY_DEFAULT, (int) TestUtils.getField(component, "dedupExpiry"));
+        assertTrue(flowRuleService.applied.isEmpty());
+    }
+
+    /**
+     * Tests that the hits gauge reads counter index 0 and the misses gauge
+     * index 1, as counted by main.p4.
+     */
+    @Test
+    public void testGauges() throws TestUtilsException {
+        configureDevice(DEVICE1);
+        TestUtils.setField(component, "counters", ImmutableMap.of(
+                DEVICE1, ImmutableMap.of(0L, 7L, 1L, 11L)));
+
+        assertEquals(7L, gauge(DEVICE1 + ".hits"));
+        assertEquals(11L, gauge(DEVICE1 + ".misses"));
+    }
+
+    private void configureDevice(DeviceId deviceId) throws TestUtilsException {
+        TestUtils.callMethod(component, "configureDevice",
+                             new Class<?>[]{DeviceId.class}, deviceId);
+    }
+
+    // The properties of a component context are a Dictionary.
+    @SuppressWarnings("JdkObsolete")
+    private void modified(int tableSize, int expiry) throws TestUtilsException {
+        final Dictionary<String, Object> properties = new Hashtable<>();
+        properties.put(DEDUP_TABLE_SIZE, tableSize);
+        properties.put(DEDUP_EXPIRY, expiry);
+        TestUtils.callMethod(component, "modified",
+                             new Class<?>[]{ComponentContext.class},
+                             new TestComponentContext(properties));
+    }
+
+    private long gauge(String name) {
+        final Map.Entry<String, Gauge> gauge = metricsService.getGauges((n, m) -> n.endsWith(name))
+                .entrySet().iterator().next();
+        return (Long) gauge.getValue().getValue();
+    }
+
+    private static FlowRule configRule(int switchId, int size, int expiry) {
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.set_dedup_config"))
+                .withParameter(new PiActionParam(PiActionParamId.of("switch_id_value"), switchId))
+                .withParameter(new PiActionParam(PiActionParamId.of("size"), size))
+                .withParameter(new PiActionParam(PiActionParamId.of("expiry"),
+                                                 TimeUnit.MILLISECONDS.toMicros(expiry)))
+                .build();
+        return Utils.buildFlowRuleDefaultAction(
+                DEVICE1, APP_ID, "IngressPipeImpl.dedup_config_table", action);
+    }
+
+    /**
+     * Flow rule service recording the rules applied.
+     */
+    private static class TestFlowRuleService extends FlowRuleServiceAdapter {
+        private final List<FlowRule> applied = Lists.newArrayList();
+
+        @Override
+        public void applyFlowRules(FlowRule... flowRules) {
+            applied.addAll(ImmutableList.copyOf(flowRules));
+        }
+    }
+
+    /**
+     * Device service with one available device.
+     */
+    private static class TestDeviceService extends DeviceServiceAdapter {
+        @Override
+        public Iterable<Device> getAvailableDevices() {
+            return ImmutableList.of(new DefaultDevice(PID, DEVICE1, Device.Type.SWITCH,
+                                                      "m", "h", "s", "n", null));
+        }
+
+        @Override
+        public boolean isAvailable(DeviceId deviceId) {
+            return DEVICE1.equals(deviceId);
+        }
+    }
+
+    /**
+     * Component context with the given properties only.
+     */
+    private static class TestComponentContext implements ComponentContext {
+        private final Dictionary<String, Object> properties;
+
+        TestComponentContext(Dictionary<String, Object> properties) {
+            this.properties = properties;
+        }
+
+        @Override
+        public Dictionary<String, Object> getProperties() {
+            return properties;
+        }
+
+        @Override
+        @SuppressWarnings("TypeParameterUnusedInFormals")
+        public <S> S locateService(String name) {
+            return null;
+        }
+
+        @Override
+        public <S> S locateService(String name, ServiceReference<S> reference) {
+            return null;
+        }
+
+        @Override
+        public Object[] locateServices(String name) {
+            return null;
+        }
+
+        @Override
+        public BundleContext getBundleContext() {
+            return null;
+        }
+
+        @Override
+        public Bundle getUsingBundle() {
+            return null;
+        }
+
+        @Override
+        public <S> ComponentInstance<S> getComponentInstance() {
+            return null;
+        }
+
+        @Override
+        public void enableComponent(String name) {
+        }
+
+        @Override
+        public void disableComponent(String name) {
+        }
+
+        @Override
+        public ServiceReference<?> getServiceReference() {
+            return null;
+        }
+    }
+}
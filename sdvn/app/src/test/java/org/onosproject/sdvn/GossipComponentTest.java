@@ -0,0 +1,177 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.onlab.junit.TestUtils;
+import org.onlab.junit.TestUtils.TestUtilsException;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.mastership.MastershipServiceAdapter;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.provider.ProviderId;
+import static org.onosproject.sdvn.GossipComponent.GOSSIP_RANGE;
+import static org.onosproject.sdvn.GossipComponent.relayThreshold;
+import org.onosproject.sdvn.common.Utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests of the relay threshold of the probabilistic rebroadcast, and of its
+ * reset once disabled.
+ */
+public class GossipComponentTest {
+
+    private static final int FANOUT = 3;
+    private static final ApplicationId APP_ID =
+            new DefaultApplicationId(1, "org.onosproject.sdvn");
+    private static final ProviderId PID = new ProviderId("of", "foo");
+    private static final DeviceId DEVICE1 = DeviceId.deviceId("device:obu1");
+    private static final DeviceId DEVICE2 = DeviceId.deviceId("device:obu2");
+
+    /**
+     * Tests that switches with at most fanout neighbors relay everything.
+     */
+    @Test
+    public void testFewNeighbors() {
+        assertEquals(GOSSIP_RANGE, relayThreshold(0, FANOUT));
+        assertEquals(GOSSIP_RANGE, relayThreshold(1, FANOUT));
+        assertEquals(GOSSIP_RANGE, relayThreshold(FANOUT, FANOUT));
+    }
+
+    /**
+     * Tests that switches with more than fanout neighbors relay with
+     * probability fanout / neighbors.
+     */
+    @Test
+    public void testManyNeighbors() {
+        assertEquals(GOSSIP_RANGE / 2, relayThreshold(2 * FANOUT, FANOUT));
+        assertEquals(GOSSIP_RANGE * 3 / 4, relayThreshold(4, FANOUT));
+        assertEquals(GOSSIP_RANGE * 3 / 255, relayThreshold(255, FANOUT));
+    }
+
+    /**
+     * Tests that the threshold decreases with the neighbors and stays
+     * positive, so that some packets are always relayed.
+     */
+    @Test
+    public void testMonotonic() {
+        long previous = GOSSIP_RANGE;
+        for (int heard = FANOUT + 1; heard <= 255; heard++) {
+            final long threshold = relayThreshold(heard, FANOUT);
+            assertTrue("threshold of " + heard, threshold < previous && threshold > 0);
+            previous = threshold;
+        }
+    }
+
+    /**
+     * Tests that disabling gossip resets the threshold left on a device by a
+     * previous activation of the app, e.g. after a warm restart, and leaves
+     * devices never tuned alone.
+     */
+    @Test
+    public void testResetThresholdsAfterWarmRestart() throws TestUtilsException {
+        final TestFlowRuleService flowRuleService = new TestFlowRuleService();
+        flowRuleService.entries.add(new DefaultFlowEntry(
+                thresholdRule(DEVICE1, GOSSIP_RANGE / 2)));
+        final GossipComponent component = new GossipComponent();
+        TestUtils.setField(component, "appId", APP_ID);
+        TestUtils.setField(component, "flowRuleService", flowRuleService);
+        TestUtils.setField(component, "deviceService", new TestDeviceService());
+        TestUtils.setField(component, "mastershipService", new MastershipServiceAdapter() {
+            @Override
+            public boolean isLocalMaster(DeviceId deviceId) {
+                return true;
+            }
+        });
+        TestUtils.setField(component, "mainComponent", new MainComponent() {
+            @Override
+            public void execute(DeviceId deviceId, Runnable task) {
+                task.run();
+            }
+        });
+
+        TestUtils.callMethod(component, "resetThresholds", new Class<?>[]{});
+
+        assertEquals(1, flowRuleService.applied.size());
+        final FlowRule applied = flowRuleService.applied.get(0);
+        assertEquals(DEVICE1, applied.deviceId());
+        assertEquals(thresholdRule(DEVICE1, GOSSIP_RANGE).treatment(), applied.treatment());
+    }
+
+    private static FlowRule thresholdRule(DeviceId deviceId, long threshold) {
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.set_gossip_probability"))
+                .withParameter(new PiActionParam(PiActionParamId.of("threshold"), threshold))
+                .build();
+        return Utils.buildFlowRuleDefaultAction(
+                deviceId, APP_ID, "IngressPipeImpl.gossip_config_table", action);
+    }
+
+    /**
+     * Flow rule service returning the given flow entries of their device, and
+     * recording the rules applied.
+     */
+    private static class TestFlowRuleService extends FlowRuleServiceAdapter {
+        private final List<FlowEntry> entries = Lists.newArrayList();
+        private final List<FlowRule> applied = Lists.newArrayList();
+
+        @Override
+        public Iterable<FlowEntry> getFlowEntries(DeviceId deviceId) {
+            return entries.stream()
+                    .filter(e -> e.deviceId().equals(deviceId))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public void applyFlowRules(FlowRule... flowRules) {
+            applied.addAll(ImmutableList.copyOf(flowRules));
+        }
+    }
+
+    /**
+     * Device service with two available devices.
+     */
+    private static class TestDeviceService extends DeviceServiceAdapter {
+        @Override
+        public Iterable<Device> getAvailableDevices() {
+            return ImmutableList.of(device(DEVICE1), device(DEVICE2));
+        }
+
+        private static Device device(DeviceId deviceId) {
+            return new DefaultDevice(PID, deviceId, Device.Type.SWITCH,
+                                     "m", "h", "s", "n", null);
+        }
+    }
+}
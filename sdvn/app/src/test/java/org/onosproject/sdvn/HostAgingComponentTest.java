@@ -0,0 +1,264 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.junit.TestUtils;
+import org.onlab.junit.TestUtils.TestUtilsException;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowEntry.FlowEntryState;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.host.HostAdminService;
+import org.onosproject.net.host.HostServiceAdapter;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.sdvn.common.Utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests of the host aging component, with the packet counts of the unicast
+ * entries given by the test and the evictions recorded.
+ */
+public class HostAgingComponentTest {
+
+    private static final ApplicationId APP_ID =
+            new DefaultApplicationId(1, "org.onosproject.sdvn");
+    private static final DeviceId DEVICE1 = DeviceId.deviceId("device:obu1");
+    private static final DeviceId DEVICE2 = DeviceId.deviceId("device:obu2");
+    private static final MacAddress MAC = MacAddress.valueOf("00:00:00:00:00:01");
+    private static final HostId HOST_ID = HostId.hostId(MAC);
+    private static final PortNumber PORT1 = PortNumber.portNumber(1);
+    private static final PortNumber PORT2 = PortNumber.portNumber(2);
+    private static final int LONG_IDLE_TIMEOUT = 3600;
+    private static final String L2_EXACT_TABLE = "IngressPipeImpl.l2_exact_table";
+    private static final ProviderId PID = new ProviderId("of", "foo");
+
+    private final TestFlowRuleService flowRuleService = new TestFlowRuleService();
+    private final TestHostService hostService = new TestHostService();
+    private final TestL2BridgingComponent l2BridgingComponent =
+            new TestL2BridgingComponent();
+    private HostAgingComponent component;
+
+    @Before
+    public void setUp() throws TestUtilsException {
+        component = new HostAgingComponent();
+        TestUtils.setField(component, "appId", APP_ID);
+        TestUtils.setField(component, "flowRuleService", flowRuleService);
+        TestUtils.setField(component, "hostService", hostService);
+        TestUtils.setField(component, "hostAdminService", hostService);
+        TestUtils.setField(component, "l2BridgingComponent", l2BridgingComponent);
+        // Entries are idle as soon as their count does not change.
+        TestUtils.setField(component, "hostIdleTimeout", 0);
+    }
+
+    /**
+     * Tests that an idle MAC learned by the data plane, unknown to the host
+     * service, is forgotten by the bridging component.
+     */
+    @Test
+    public void testLearnedMacIdle() throws TestUtilsException {
+        l2BridgingComponent.learned.put(HOST_ID, DEVICE1);
+        counters(5);
+        ageDevice(DEVICE1);
+        assertTrue(l2BridgingComponent.forgotten.isEmpty());
+
+        ageDevice(DEVICE1);
+        assertEquals(ImmutableList.of(HOST_ID), l2BridgingComponent.forgotten);
+        assertTrue(hostService.removed.isEmpty());
+    }
+
+    /**
+     * Tests that an idle host known to the host service is removed from it,
+     * and not from the bridging component.
+     */
+    @Test
+    public void testHostIdle() throws TestUtilsException {
+        hostService.hosts.add(host(DEVICE1, PORT1));
+        counters(5);
+        ageDevice(DEVICE1);
+        ageDevice(DEVICE1);
+
+        assertEquals(ImmutableList.of(HOST_ID), hostService.removed);
+        assertTrue(l2BridgingComponent.forgotten.isEmpty());
+    }
+
+    /**
+     * Tests that a host whose entry keeps matching packets is not evicted.
+     */
+    @Test
+    public void testHostActive() throws TestUtilsException {
+        hostService.hosts.add(host(DEVICE1, PORT1));
+        for (long packets = 5; packets < 10; packets++) {
+            counters(packets);
+            ageDevice(DEVICE1);
+        }
+        assertTrue(hostService.removed.isEmpty());
+    }
+
+    /**
+     * Tests that a counter not changing across polls evicts the host only
+     * once the idle timeout has elapsed, and that new packets restart the
+     * idle time.
+     */
+    @Test
+    public void testIdleThenActive() throws TestUtilsException {
+        hostService.hosts.add(host(DEVICE1, PORT1));
+        TestUtils.setField(component, "hostIdleTimeout", LONG_IDLE_TIMEOUT);
+        counters(5);
+        ageDevice(DEVICE1);
+        ageDevice(DEVICE1);
+        ageDevice(DEVICE1);
+        assertTrue(hostService.removed.isEmpty());
+
+        // Active again: the idle time is counted from this poll on.
+        TestUtils.setField(component, "hostIdleTimeout", 0);
+        counters(6);
+        ageDevice(DEVICE1);
+        assertTrue(hostService.removed.isEmpty());
+
+        ageDevice(DEVICE1);
+        assertEquals(ImmutableList.of(HOST_ID), hostService.removed);
+    }
+
+    /**
+     * Tests that an idle entry left on a device by a host that moved to
+     * another device does not evict the host from its new location.
+     */
+    @Test
+    public void testHostMovedOtherDevice() throws TestUtilsException {
+        hostService.hosts.add(host(DEVICE2, PORT2));
+        l2BridgingComponent.learned.put(HOST_ID, DEVICE2);
+        counters(5);
+        ageDevice(DEVICE1);
+        ageDevice(DEVICE1);
+
+        assertTrue(hostService.removed.isEmpty());
+        assertTrue(l2BridgingComponent.forgotten.isEmpty());
+    }
+
+    /**
+     * Sets the packet count of the unicast entry of the host on DEVICE1.
+     */
+    private void counters(long packets) {
+        flowRuleService.entries.clear();
+        flowRuleService.entries.add(new DefaultFlowEntry(
+                hostRule(DEVICE1, MAC, PORT1), FlowEntryState.ADDED, 0, packets, 0));
+    }
+
+    private void ageDevice(DeviceId deviceId) throws TestUtilsException {
+        TestUtils.callMethod(component, "ageDevice",
+                             new Class<?>[]{DeviceId.class}, deviceId);
+    }
+
+    private static Host host(DeviceId deviceId, PortNumber port) {
+        return new DefaultHost(PID, HOST_ID, MAC, VlanId.NONE,
+                               new HostLocation(new ConnectPoint(deviceId, port), 0),
+                               ImmutableSet.of());
+    }
+
+    private static FlowRule hostRule(DeviceId deviceId, MacAddress mac, PortNumber port) {
+        final PiCriterion criterion = PiCriterion.builder()
+                .matchExact(PiMatchFieldId.of("hdr.ethernet.dst_addr"), mac.toBytes())
+                .build();
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.set_egress_port"))
+                .withParameter(new PiActionParam(PiActionParamId.of("port_num"),
+                                                 port.toLong()))
+                .build();
+        return Utils.buildFlowRule(deviceId, APP_ID, L2_EXACT_TABLE, criterion, action);
+    }
+
+    /**
+     * Flow rule service returning the given flow entries for any device.
+     */
+    private static class TestFlowRuleService extends FlowRuleServiceAdapter {
+        private final List<FlowEntry> entries = Lists.newArrayList();
+
+        @Override
+        public Iterable<FlowEntry> getFlowEntries(DeviceId deviceId) {
+            return entries;
+        }
+    }
+
+    /**
+     * Host service knowing the given hosts, and recording the hosts removed.
+     */
+    private static class TestHostService extends HostServiceAdapter
+            implements HostAdminService {
+        private final List<Host> hosts = Lists.newArrayList();
+        private final List<HostId> removed = Lists.newArrayList();
+
+        @Override
+        public Set<Host> getHostsByMac(MacAddress mac) {
+            return hosts.stream()
+                    .filter(h -> h.mac().equals(mac))
+                    .collect(ImmutableSet.toImmutableSet());
+        }
+
+        @Override
+        public void removeHost(HostId hostId) {
+            removed.add(hostId);
+        }
+    }
+
+    /**
+     * Bridging component knowing the given MACs learned by the data plane,
+     * with the device they were learned on, and recording the ones forgotten.
+     */
+    private static class TestL2BridgingComponent extends L2BridgingComponent {
+        private final Map<HostId, DeviceId> learned = Maps.newHashMap();
+        private final List<HostId> forgotten = Lists.newArrayList();
+
+        @Override
+        public boolean forgetLearnedHost(HostId hostId, DeviceId deviceId) {
+            if (!learned.remove(hostId, deviceId)) {
+                return false;
+            }
+            forgotten.add(hostId);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,1069 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.junit.TestUtils;
+import org.onlab.junit.TestUtils.TestUtilsException;
+import org.onlab.metrics.MetricsManager;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.core.GroupId;
+import org.onosproject.mastership.MastershipEvent;
+import org.onosproject.mastership.MastershipInfo;
+import org.onosproject.mastership.MastershipListener;
+import org.onosproject.mastership.MastershipServiceAdapter;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.Device;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowEntry.FlowEntryState;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.group.DefaultGroup;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupServiceAdapter;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostServiceAdapter;
+import org.onosproject.net.pi.PiPipeconfServiceAdapter;
+import org.onosproject.net.pi.model.DefaultPiPipeconf;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.model.PiPipeconf;
+import org.onosproject.net.pi.model.PiPipeconfId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogEvent;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogListener;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogService;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.p4runtime.model.P4InfoParser;
+import org.onosproject.p4runtime.model.P4InfoParserException;
+import static org.onosproject.sdvn.AppConstants.DEFAULT_BROADCAST_GROUP_ID;
+import static org.onosproject.sdvn.AppConstants.PIPECONF_ID;
+import org.onosproject.sdvn.common.Utils;
+import org.onosproject.sdvn.pipeconf.PipeconfLoader;
+import org.onosproject.store.service.EventuallyConsistentMap;
+import org.onosproject.store.service.TestEventuallyConsistentMap;
+import org.onosproject.store.service.TestStorageService;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Tests of the L2 bridging component, with the flow rules it writes captured
+ * instead of installed.
+ */
+public class L2BridgingComponentTest {
+
+    private static final ApplicationId APP_ID =
+            new DefaultApplicationId(1, "org.onosproject.sdvn");
+    private static final DeviceId DEVICE1 = DeviceId.deviceId("device:obu1");
+    private static final DeviceId DEVICE2 = DeviceId.deviceId("device:obu2");
+    private static final MacAddress MAC = MacAddress.valueOf("00:00:00:00:00:01");
+    private static final HostId HOST_ID = HostId.hostId(MAC);
+    private static final PortNumber PORT1 = PortNumber.portNumber(1);
+    private static final PortNumber PORT2 = PortNumber.portNumber(2);
+    private static final ApplicationId OTHER_APP_ID =
+            new DefaultApplicationId(2, "org.onosproject.other");
+    private static final PiPipeconfId OTHER_PIPECONF_ID =
+            new PiPipeconfId("org.onosproject.other");
+    private static final String L2_EXACT_TABLE = "IngressPipeImpl.l2_exact_table";
+    private static final String SMAC_TABLE = "IngressPipeImpl.smac_table";
+    private static final String OTHER_TABLE = "IngressPipeImpl.acl_table";
+    private static final ProviderId PID = new ProviderId("of", "foo");
+    private static final GroupKey BROADCAST_GROUP_KEY =
+            Utils.buildReplicationGroupKey(DEFAULT_BROADCAST_GROUP_ID);
+    private static final int COALESCE_WINDOW = 50;
+    // Long enough for a set up not to fire while a test runs.
+    private static final int LONG_COALESCE_WINDOW = 60000;
+
+    private final TestFlowRuleService flowRuleService = new TestFlowRuleService();
+    private final TestMainComponent mainComponent = new TestMainComponent();
+    private final TestMastershipService mastershipService = new TestMastershipService();
+    private final MetricsManager metricsService = new MetricsManager();
+    private final TestDeviceService deviceService = new TestDeviceService();
+    private final TestPipeconfWatchdogService watchdogService = new TestPipeconfWatchdogService();
+    private final TestGroupService groupService = new TestGroupService();
+    private PiPipeconf pipeconf;
+    private TestPipeconfService pipeconfService;
+    private L2BridgingComponent component;
+
+    @Before
+    public void setUp() throws TestUtilsException, P4InfoParserException {
+        pipeconf = buildPipeconf(PIPECONF_ID);
+        pipeconfService = new TestPipeconfService(pipeconf);
+        component = new L2BridgingComponent();
+        TestUtils.setField(component, "appId", APP_ID);
+        TestUtils.setField(component, "flowRuleService", flowRuleService);
+        TestUtils.setField(component, "mainComponent", mainComponent);
+        TestUtils.setField(component, "mastershipService", mastershipService);
+        TestUtils.setField(component, "deviceService", new DeviceServiceAdapter());
+        TestUtils.setField(component, "pipeconfService", new PiPipeconfServiceAdapter());
+        TestUtils.setField(component, "metrics", new BridgingMetrics(metricsService));
+        TestUtils.setField(component, "learnedHosts",
+                           new TestEventuallyConsistentMap.Builder<HostId, ConnectPoint>()
+                                   .withName("sdvn-learned-hosts")
+                                   .build());
+        mastershipService.mastered.add(DEVICE1);
+        mastershipService.mastered.add(DEVICE2);
+    }
+
+    /**
+     * Tests that after a warm restart the entries of MACs learned by the data
+     * plane, unknown to the host service, are adopted and kept on the device.
+     */
+    @Test
+    public void testWarmRestartKeepsLearnedMacs() throws TestUtilsException {
+        TestUtils.setField(mainComponent, "warmRestart", true);
+        setUpDesiredState();
+        flowRuleService.entries.add(entry(hostRule(DEVICE1, MAC, PORT1), FlowEntryState.ADDED));
+        flowRuleService.entries.add(entry(smacRule(DEVICE1, MAC, PORT1), FlowEntryState.ADDED));
+
+        reconcileFlowRules(DEVICE1, buildDesiredFlowRules(DEVICE1));
+
+        assertTrue(operations().stream()
+                           .noneMatch(op -> op.type() == FlowRuleOperation.Type.REMOVE));
+        final EventuallyConsistentMap<HostId, ConnectPoint> learnedHosts =
+                TestUtils.getField(component, "learnedHosts");
+        assertEquals(new ConnectPoint(DEVICE1, PORT1), learnedHosts.get(HOST_ID));
+    }
+
+    /**
+     * Tests that without a warm restart the entries of MACs unknown to the
+     * host service are removed.
+     */
+    @Test
+    public void testColdRestartRemovesUnknownMacs() throws TestUtilsException {
+        setUpDesiredState();
+        flowRuleService.entries.add(entry(hostRule(DEVICE1, MAC, PORT1), FlowEntryState.ADDED));
+        flowRuleService.entries.add(entry(smacRule(DEVICE1, MAC, PORT1), FlowEntryState.ADDED));
+
+        reconcileFlowRules(DEVICE1, buildDesiredFlowRules(DEVICE1));
+
+        final List<FlowRuleOperation> ops = operations();
+        assertOperation(ops, FlowRuleOperation.Type.REMOVE, hostRule(DEVICE1, MAC, PORT1));
+        assertOperation(ops, FlowRuleOperation.Type.REMOVE, smacRule(DEVICE1, MAC, PORT1));
+    }
+
+    /**
+     * Tests that flow rules are written in FlowRuleOperations batches of at
+     * most flowRuleBatchSize rules.
+     */
+    @Test
+    public void testApplyFlowRulesInBatches() throws TestUtilsException {
+        TestUtils.setField(component, "flowRuleBatchSize", 2);
+        applyFlowRules(DEVICE1, hostRules(DEVICE1, 5));
+
+        assertEquals(3, flowRuleService.applied.size());
+        assertEquals(ImmutableList.of(2, 2, 1), flowRuleService.applied.stream()
+                .map(L2BridgingComponentTest::size)
+                .collect(Collectors.toList()));
+        flowRuleService.applied.forEach(ops -> ops.stages().forEach(
+                stage -> stage.forEach(op -> {
+                    assertEquals(FlowRuleOperation.Type.ADD, op.type());
+                    assertEquals(DEVICE1, op.rule().deviceId());
+                })));
+    }
+
+    /**
+     * Tests that nothing is written when there are no rules.
+     */
+    @Test
+    public void testApplyNoFlowRules() throws TestUtilsException {
+        applyFlowRules(DEVICE1, ImmutableList.of());
+        assertTrue(flowRuleService.applied.isEmpty());
+    }
+
+    /**
+     * Tests that device events received within the coalescing window result
+     * in a single set up, and that events after it schedule a new one.
+     */
+    @Test
+    public void testDeviceEventsCoalesced() throws Exception {
+        TestUtils.setField(component, "deviceEventCoalesceWindow", COALESCE_WINDOW);
+        final DeviceListener listener = TestUtils.getField(component, "deviceListener");
+        final Device device = new DefaultDevice(PID, DEVICE1, Device.Type.SWITCH,
+                                                "m", "h", "s", "n", null);
+
+        // Not ready, dispatched but not set up.
+        mainComponent.expect(1);
+        for (int i = 0; i < 10; i++) {
+            listener.event(new DeviceEvent(
+                    DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED, device));
+        }
+        assertTrue(mainComponent.await());
+        assertEquals(1, mainComponent.executed.size());
+
+        mainComponent.expect(1);
+        listener.event(new DeviceEvent(DeviceEvent.Type.DEVICE_ADDED, device));
+        assertTrue(mainComponent.await());
+        assertEquals(ImmutableList.of(DEVICE1, DEVICE1), mainComponent.executed);
+    }
+
+    /**
+     * Tests that the set up scheduled for a device is kept until dispatched,
+     * and shared by the events coalesced into it.
+     */
+    @Test
+    public void testDeviceSetUpPending() throws TestUtilsException {
+        TestUtils.setField(component, "deviceEventCoalesceWindow", LONG_COALESCE_WINDOW);
+        final DeviceListener listener = TestUtils.getField(component, "deviceListener");
+        final Map<DeviceId, ScheduledFuture<?>> pending =
+                TestUtils.getField(component, "pendingDeviceSetUps");
+        final DeviceEvent event = new DeviceEvent(
+                DeviceEvent.Type.DEVICE_ADDED, new DefaultDevice(
+                        PID, DEVICE1, Device.Type.SWITCH, "m", "h", "s", "n", null));
+
+        listener.event(event);
+        final ScheduledFuture<?> setUp = pending.get(DEVICE1);
+        assertFalse(setUp.isDone());
+        listener.event(event);
+        assertSame(setUp, pending.get(DEVICE1));
+
+        // As done at deactivation.
+        setUp.cancel(false);
+        pending.clear();
+        assertTrue(mainComponent.executed.isEmpty());
+    }
+
+    /**
+     * Tests that this instance becoming master of a device reconciles it with
+     * the hosts learned there by the previous master, and that mastership
+     * changes in favour of another instance are ignored.
+     */
+    @Test
+    public void testMasterChangedReconciles() throws Exception {
+        TestUtils.setField(component, "deviceEventCoalesceWindow", COALESCE_WINDOW);
+        setUpDesiredState();
+        setUpReadyDevices();
+        final MastershipListener listener = TestUtils.getField(component, "mastershipListener");
+        final EventuallyConsistentMap<HostId, ConnectPoint> learnedHosts =
+                TestUtils.getField(component, "learnedHosts");
+        learnedHosts.put(HOST_ID, new ConnectPoint(DEVICE2, PORT1));
+
+        mastershipService.mastered.remove(DEVICE2);
+        final MastershipEvent event = new MastershipEvent(
+                MastershipEvent.Type.MASTER_CHANGED, DEVICE2, new MastershipInfo());
+        assertFalse(listener.isRelevant(event));
+
+        mastershipService.mastered.add(DEVICE2);
+        assertTrue(listener.isRelevant(event));
+        mainComponent.expect(1);
+        listener.event(event);
+        assertTrue(mainComponent.await());
+
+        assertEquals(ImmutableList.of(DEVICE2), mainComponent.executed);
+        final List<FlowRuleOperation> ops = operations();
+        assertOperation(ops, FlowRuleOperation.Type.ADD, hostRule(DEVICE2, MAC, PORT1));
+        assertOperation(ops, FlowRuleOperation.Type.ADD, smacRule(DEVICE2, MAC, PORT1));
+    }
+
+    /**
+     * Tests that a device is ready for set up once available, running the
+     * pipeconf of the app, with its pipeline verified and mastered here.
+     */
+    @Test
+    public void testReadyForSetUp() throws TestUtilsException {
+        setUpReadyDevices();
+
+        assertTrue(isReadyForSetUp(DEVICE1));
+    }
+
+    /**
+     * Tests that a device missing any of the conditions for set up is not
+     * ready, including a device running another pipeconf.
+     */
+    @Test
+    public void testNotReadyForSetUp() throws TestUtilsException, P4InfoParserException {
+        setUpReadyDevices();
+
+        deviceService.available.remove(DEVICE1);
+        assertFalse(isReadyForSetUp(DEVICE1));
+        deviceService.available.add(DEVICE1);
+
+        pipeconfService.applied.put(DEVICE1, buildPipeconf(OTHER_PIPECONF_ID));
+        assertFalse(isReadyForSetUp(DEVICE1));
+        pipeconfService.applied.remove(DEVICE1);
+        assertFalse(isReadyForSetUp(DEVICE1));
+        pipeconfService.applied.put(DEVICE1, pipeconf);
+
+        watchdogService.ready.remove(DEVICE1);
+        assertFalse(isReadyForSetUp(DEVICE1));
+        watchdogService.ready.add(DEVICE1);
+
+        mastershipService.mastered.remove(DEVICE1);
+        assertFalse(isReadyForSetUp(DEVICE1));
+        mastershipService.mastered.add(DEVICE1);
+
+        // The pipeconf of the app no longer registered.
+        final TestPipeconfService otherPipeconfService =
+                new TestPipeconfService(buildPipeconf(OTHER_PIPECONF_ID));
+        otherPipeconfService.applied.put(DEVICE1, pipeconf);
+        TestUtils.setField(component, "pipeconfService", otherPipeconfService);
+        assertFalse(isReadyForSetUp(DEVICE1));
+    }
+
+    /**
+     * Tests that a device whose pipeline becomes ready is set up, and that
+     * other watchdog events and devices mastered elsewhere are ignored.
+     */
+    @Test
+    public void testPipelineReadySetsUp() throws Exception {
+        TestUtils.setField(component, "deviceEventCoalesceWindow", COALESCE_WINDOW);
+        setUpDesiredState();
+        setUpReadyDevices();
+        final PiPipeconfWatchdogListener listener =
+                TestUtils.getField(component, "pipelineListener");
+
+        assertFalse(listener.isRelevant(new PiPipeconfWatchdogEvent(
+                PiPipeconfWatchdogEvent.Type.PIPELINE_UNKNOWN, DEVICE1)));
+        mastershipService.mastered.remove(DEVICE2);
+        assertFalse(listener.isRelevant(new PiPipeconfWatchdogEvent(
+                PiPipeconfWatchdogEvent.Type.PIPELINE_READY, DEVICE2)));
+
+        final PiPipeconfWatchdogEvent event = new PiPipeconfWatchdogEvent(
+                PiPipeconfWatchdogEvent.Type.PIPELINE_READY, DEVICE1);
+        assertTrue(listener.isRelevant(event));
+        mainComponent.expect(1);
+        listener.event(event);
+        assertTrue(mainComponent.await());
+
+        assertEquals(ImmutableList.of(DEVICE1), mainComponent.executed);
+        assertEquals(1, flowRuleService.applied.size());
+        assertTrue(operations().stream().allMatch(
+                op -> op.type() == FlowRuleOperation.Type.ADD &&
+                        op.rule().deviceId().equals(DEVICE1)));
+    }
+
+    /**
+     * Tests that the first host facing port of a device creates the broadcast
+     * group, with the bucket of that port only.
+     */
+    @Test
+    public void testBroadcastGroupFirstPort() throws TestUtilsException {
+        setUpReadyDevices();
+
+        updateInterfacePort(PORT1, true);
+
+        assertEquals(1, groupService.added.size());
+        assertEquals(buckets(PORT1), groupService.added.get(0).buckets());
+        assertTrue(groupService.addedBuckets.isEmpty());
+    }
+
+    /**
+     * Tests that a host facing port added to a device with a broadcast group
+     * adds its bucket only, once.
+     */
+    @Test
+    public void testBroadcastGroupAddPort() throws TestUtilsException {
+        setUpReadyDevices();
+        updateInterfacePort(PORT1, true);
+
+        updateInterfacePort(PORT2, true);
+        updateInterfacePort(PORT2, true);
+
+        assertEquals(1, groupService.added.size());
+        assertEquals(ImmutableList.of(buckets(PORT2)), groupService.addedBuckets);
+        assertEquals(buckets(PORT1, PORT2), groupService.getGroup(DEVICE1, BROADCAST_GROUP_KEY).buckets());
+    }
+
+    /**
+     * Tests that a host facing port removed from a device with other host
+     * facing ports removes its bucket only.
+     */
+    @Test
+    public void testBroadcastGroupRemovePort() throws TestUtilsException {
+        setUpReadyDevices();
+        updateInterfacePort(PORT1, true);
+        updateInterfacePort(PORT2, true);
+
+        updateInterfacePort(PORT1, false);
+
+        assertEquals(ImmutableList.of(buckets(PORT1)), groupService.removedBuckets);
+        assertTrue(groupService.removed.isEmpty());
+        assertEquals(buckets(PORT2), groupService.getGroup(DEVICE1, BROADCAST_GROUP_KEY).buckets());
+    }
+
+    /**
+     * Tests that the last host facing port removed from a device removes the
+     * broadcast group.
+     */
+    @Test
+    public void testBroadcastGroupLastPort() throws TestUtilsException {
+        setUpReadyDevices();
+        updateInterfacePort(PORT1, true);
+
+        updateInterfacePort(PORT1, false);
+
+        assertEquals(ImmutableList.of(BROADCAST_GROUP_KEY), groupService.removed);
+        assertTrue(groupService.removedBuckets.isEmpty());
+        assertNull(groupService.getGroup(DEVICE1, BROADCAST_GROUP_KEY));
+    }
+
+    /**
+     * Tests that the timers and the queue depth gauge of a device are
+     * registered with its first task, and removed with the device only.
+     */
+    @Test
+    public void testDeviceRemovedMetrics() throws TestUtilsException {
+        final BridgingMetrics metrics = TestUtils.getField(component, "metrics");
+        metrics.registerQueueDepthGauges(mainComponent);
+        execute(DEVICE1);
+        execute(DEVICE2);
+        assertEquals(2, metricNames(DEVICE1).size());
+        assertEquals(2, metricNames(DEVICE2).size());
+
+        final DeviceListener listener = TestUtils.getField(component, "deviceListener");
+        final DeviceEvent event = new DeviceEvent(
+                DeviceEvent.Type.DEVICE_REMOVED, new DefaultDevice(
+                        PID, DEVICE1, Device.Type.SWITCH, "m", "h", "s", "n", null));
+        assertTrue(listener.isRelevant(event));
+        listener.event(event);
+
+        assertTrue(metricNames(DEVICE1).isEmpty());
+        assertEquals(2, metricNames(DEVICE2).size());
+    }
+
+    /**
+     * Tests that rules already on the device are not written again.
+     */
+    @Test
+    public void testReconcileUpToDate() throws TestUtilsException {
+        final List<FlowRule> desired = hostRules(DEVICE1, 3);
+        desired.forEach(r -> flowRuleService.entries.add(
+                entry(r, FlowEntryState.ADDED)));
+
+        reconcileFlowRules(DEVICE1, desired);
+        assertTrue(flowRuleService.applied.isEmpty());
+    }
+
+    /**
+     * Tests that missing rules are added, rules with a different action are
+     * modified and rules no longer desired are removed, in a single batch.
+     */
+    @Test
+    public void testReconcileDiff() throws TestUtilsException {
+        final MacAddress mac1 = MacAddress.valueOf(1L);
+        final MacAddress mac2 = MacAddress.valueOf(2L);
+        final MacAddress mac3 = MacAddress.valueOf(3L);
+        final PortNumber port1 = PortNumber.portNumber(1);
+        final PortNumber port2 = PortNumber.portNumber(2);
+
+        // mac1 up to date, mac2 moved from port 1 to 2, mac3 gone.
+        flowRuleService.entries.add(entry(hostRule(DEVICE1, mac1, port1),
+                                          FlowEntryState.ADDED));
+        flowRuleService.entries.add(entry(hostRule(DEVICE1, mac2, port1),
+                                          FlowEntryState.ADDED));
+        flowRuleService.entries.add(entry(hostRule(DEVICE1, mac3, port1),
+                                          FlowEntryState.ADDED));
+        // mac4 is new.
+        final FlowRule add = hostRule(DEVICE1, MacAddress.valueOf(4L), port2);
+        final FlowRule modify = hostRule(DEVICE1, mac2, port2);
+
+        reconcileFlowRules(DEVICE1, ImmutableList.of(
+                hostRule(DEVICE1, mac1, port1), modify, add));
+
+        assertEquals(1, flowRuleService.applied.size());
+        final List<FlowRuleOperation> ops = operations();
+        assertEquals(3, ops.size());
+        assertOperation(ops, FlowRuleOperation.Type.ADD, add);
+        assertOperation(ops, FlowRuleOperation.Type.MODIFY, modify);
+        assertOperation(ops, FlowRuleOperation.Type.REMOVE,
+                        hostRule(DEVICE1, mac3, port1));
+        final FlowRuleOperation modifyOp = ops.stream()
+                .filter(op -> op.type() == FlowRuleOperation.Type.MODIFY)
+                .findFirst().get();
+        assertEquals(modify.treatment(), modifyOp.rule().treatment());
+    }
+
+    /**
+     * Tests that desired rules whose entries are being removed are added
+     * again, and that those entries are not removed a second time.
+     */
+    @Test
+    public void testReconcileReAddsRemovedEntries() throws TestUtilsException {
+        final FlowRule pendingRemove = hostRule(
+                DEVICE1, MacAddress.valueOf(1L), PortNumber.portNumber(1));
+        final FlowRule removed = hostRule(
+                DEVICE1, MacAddress.valueOf(2L), PortNumber.portNumber(2));
+        final FlowRule notDesired = hostRule(
+                DEVICE1, MacAddress.valueOf(3L), PortNumber.portNumber(3));
+        flowRuleService.entries.add(entry(pendingRemove, FlowEntryState.PENDING_REMOVE));
+        flowRuleService.entries.add(entry(removed, FlowEntryState.REMOVED));
+        flowRuleService.entries.add(entry(notDesired, FlowEntryState.PENDING_REMOVE));
+
+        reconcileFlowRules(DEVICE1, ImmutableList.of(pendingRemove, removed));
+
+        final List<FlowRuleOperation> ops = operations();
+        assertEquals(2, ops.size());
+        assertOperation(ops, FlowRuleOperation.Type.ADD, pendingRemove);
+        assertOperation(ops, FlowRuleOperation.Type.ADD, removed);
+    }
+
+    /**
+     * Tests that entries of other apps and of other tables are left alone.
+     */
+    @Test
+    public void testReconcileIgnoresOtherEntries() throws TestUtilsException {
+        final PiCriterion criterion = PiCriterion.builder()
+                .matchExact(PiMatchFieldId.of("hdr.ethernet.dst_addr"),
+                            MacAddress.valueOf(1L).toBytes())
+                .build();
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.drop"))
+                .build();
+        flowRuleService.entries.add(entry(Utils.buildFlowRule(
+                DEVICE1, APP_ID, OTHER_TABLE, criterion, action), FlowEntryState.ADDED));
+        flowRuleService.entries.add(entry(Utils.buildFlowRule(
+                DEVICE1, OTHER_APP_ID, L2_EXACT_TABLE, criterion, action),
+                                          FlowEntryState.ADDED));
+
+        reconcileFlowRules(DEVICE1, ImmutableList.of());
+        assertTrue(flowRuleService.applied.isEmpty());
+    }
+
+    /**
+     * Tests that a new host gets its unicast and source MAC rules.
+     */
+    @Test
+    public void testHostAdded() throws TestUtilsException {
+        hostEvent(new HostEvent(HostEvent.Type.HOST_ADDED, host(DEVICE1, PORT1)));
+
+        final List<FlowRuleOperation> ops = operations();
+        assertEquals(2, ops.size());
+        assertOperation(ops, FlowRuleOperation.Type.ADD, hostRule(DEVICE1, MAC, PORT1));
+        assertOperation(ops, FlowRuleOperation.Type.ADD, smacRule(DEVICE1, MAC, PORT1));
+    }
+
+    /**
+     * Tests that a host moving to another port of the same device is a
+     * single modify of its unicast rule with the new port, and a swap of its
+     * source MAC rule, in one batch.
+     */
+    @Test
+    public void testHostMovedSameDevice() throws TestUtilsException {
+        final Host prevHost = host(DEVICE1, PORT1);
+        hostEvent(new HostEvent(HostEvent.Type.HOST_ADDED, prevHost));
+        flowRuleService.applied.clear();
+
+        hostEvent(new HostEvent(HostEvent.Type.HOST_MOVED, host(DEVICE1, PORT2), prevHost));
+
+        assertEquals(1, flowRuleService.applied.size());
+        final List<FlowRuleOperation> ops = operations();
+        assertEquals(3, ops.size());
+        final FlowRule expected = hostRule(DEVICE1, MAC, PORT2);
+        assertOperation(ops, FlowRuleOperation.Type.MODIFY, expected);
+        assertOperation(ops, FlowRuleOperation.Type.REMOVE, smacRule(DEVICE1, MAC, PORT1));
+        assertOperation(ops, FlowRuleOperation.Type.ADD, smacRule(DEVICE1, MAC, PORT2));
+        final FlowRuleOperation modifyOp = ops.stream()
+                .filter(op -> op.type() == FlowRuleOperation.Type.MODIFY)
+                .findFirst().get();
+        assertEquals(expected.treatment(), modifyOp.rule().treatment());
+    }
+
+    /**
+     * Tests that a host moving to another device has its rules removed from
+     * the old device and added to the new one.
+     */
+    @Test
+    public void testHostMovedOtherDevice() throws TestUtilsException {
+        final Host prevHost = host(DEVICE1, PORT1);
+        hostEvent(new HostEvent(HostEvent.Type.HOST_ADDED, prevHost));
+        flowRuleService.applied.clear();
+
+        hostEvent(new HostEvent(HostEvent.Type.HOST_MOVED, host(DEVICE2, PORT2), prevHost));
+
+        assertEquals(2, flowRuleService.applied.size());
+        final List<FlowRuleOperation> ops = operations();
+        assertEquals(4, ops.size());
+        assertOperation(ops, FlowRuleOperation.Type.REMOVE, hostRule(DEVICE1, MAC, PORT1));
+        assertOperation(ops, FlowRuleOperation.Type.REMOVE, smacRule(DEVICE1, MAC, PORT1));
+        assertOperation(ops, FlowRuleOperation.Type.ADD, hostRule(DEVICE2, MAC, PORT2));
+        assertOperation(ops, FlowRuleOperation.Type.ADD, smacRule(DEVICE2, MAC, PORT2));
+    }
+
+    /**
+     * Tests that the rules of a host moving to a device mastered by another
+     * instance are removed, and that the new device is left to its master.
+     */
+    @Test
+    public void testHostMovedToOtherMaster() throws TestUtilsException {
+        final Host prevHost = host(DEVICE1, PORT1);
+        hostEvent(new HostEvent(HostEvent.Type.HOST_ADDED, prevHost));
+        flowRuleService.applied.clear();
+        mastershipService.mastered.remove(DEVICE2);
+
+        hostEvent(new HostEvent(HostEvent.Type.HOST_MOVED, host(DEVICE2, PORT2), prevHost));
+
+        final List<FlowRuleOperation> ops = operations();
+        assertEquals(2, ops.size());
+        assertOperation(ops, FlowRuleOperation.Type.REMOVE, hostRule(DEVICE1, MAC, PORT1));
+        assertOperation(ops, FlowRuleOperation.Type.REMOVE, smacRule(DEVICE1, MAC, PORT1));
+    }
+
+    /**
+     * Tests that a removed host has its rules removed where they were
+     * installed.
+     */
+    @Test
+    public void testHostRemoved() throws TestUtilsException {
+        final Host host = host(DEVICE1, PORT1);
+        hostEvent(new HostEvent(HostEvent.Type.HOST_ADDED, host));
+        flowRuleService.applied.clear();
+
+        hostEvent(new HostEvent(HostEvent.Type.HOST_REMOVED, host));
+
+        final List<FlowRuleOperation> ops = operations();
+        assertEquals(2, ops.size());
+        assertOperation(ops, FlowRuleOperation.Type.REMOVE, hostRule(DEVICE1, MAC, PORT1));
+        assertOperation(ops, FlowRuleOperation.Type.REMOVE, smacRule(DEVICE1, MAC, PORT1));
+    }
+
+    /**
+     * Tests that updates keeping the location of the host, e.g. new IP
+     * addresses, do not touch its rule.
+     */
+    @Test
+    public void testHostUpdatedSameLocation() throws TestUtilsException {
+        final Host prevHost = host(DEVICE1, PORT1);
+        hostEvent(new HostEvent(HostEvent.Type.HOST_ADDED, prevHost));
+        flowRuleService.applied.clear();
+
+        final Host host = new DefaultHost(
+                PID, HOST_ID, MAC, VlanId.NONE, new HostLocation(DEVICE1, PORT1, 1),
+                ImmutableSet.of(IpAddress.valueOf("10.0.0.1")));
+        hostEvent(new HostEvent(HostEvent.Type.HOST_UPDATED, host, prevHost));
+
+        assertTrue(flowRuleService.applied.isEmpty());
+    }
+
+    /**
+     * Tests that a MAC learned by the data plane has its rules removed when
+     * forgotten on its device only.
+     */
+    @Test
+    public void testForgetLearnedHost() throws TestUtilsException {
+        final EventuallyConsistentMap<HostId, ConnectPoint> learnedHosts =
+                TestUtils.getField(component, "learnedHosts");
+        learnedHosts.put(HOST_ID, new ConnectPoint(DEVICE1, PORT1));
+
+        assertFalse(component.forgetLearnedHost(HOST_ID, DEVICE2));
+        assertTrue(flowRuleService.applied.isEmpty());
+
+        assertTrue(component.forgetLearnedHost(HOST_ID, DEVICE1));
+        final List<FlowRuleOperation> ops = operations();
+        assertEquals(2, ops.size());
+        assertOperation(ops, FlowRuleOperation.Type.REMOVE, hostRule(DEVICE1, MAC, PORT1));
+        assertOperation(ops, FlowRuleOperation.Type.REMOVE, smacRule(DEVICE1, MAC, PORT1));
+        assertTrue(learnedHosts.isEmpty());
+        assertFalse(component.forgetLearnedHost(HOST_ID, DEVICE1));
+    }
+
+    private void hostEvent(HostEvent event) throws TestUtilsException {
+        final HostListener listener = TestUtils.getField(component, "hostListener");
+        if (listener.isRelevant(event)) {
+            listener.event(event);
+        }
+    }
+
+    private static Host host(DeviceId deviceId, PortNumber port) {
+        return new DefaultHost(PID, HOST_ID, MAC, VlanId.NONE,
+                               new HostLocation(new ConnectPoint(deviceId, port), 0),
+                               ImmutableSet.of());
+    }
+
+    private void execute(DeviceId deviceId) throws TestUtilsException {
+        TestUtils.callMethod(component, "execute",
+                             new Class<?>[]{DeviceId.class, Runnable.class},
+                             deviceId, (Runnable) () -> { });
+    }
+
+    private Set<String> metricNames(DeviceId deviceId) {
+        return metricsService.getMetrics().keySet().stream()
+                .filter(name -> name.contains(deviceId + "."))
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Gives the component what it needs to build the desired rules of a
+     * device, with no host known to the host service.
+     */
+    private void setUpDesiredState() throws TestUtilsException {
+        final DeviceIdentityRegistry registry = new DeviceIdentityRegistry();
+        TestUtils.setField(registry, "storageService", new TestStorageService());
+        TestUtils.setField(registry, "deviceService", new DeviceServiceAdapter());
+        TestUtils.callMethod(registry, "activate", new Class<?>[]{});
+        TestUtils.setField(component, "deviceIdentityRegistry", registry);
+        TestUtils.setField(component, "hostService", new TestHostService());
+    }
+
+    /**
+     * Makes both devices ready to be set up: available, running the pipeconf
+     * of the app and with their pipeline verified.
+     */
+    private void setUpReadyDevices() throws TestUtilsException {
+        TestUtils.setField(component, "deviceService", deviceService);
+        TestUtils.setField(component, "pipeconfService", pipeconfService);
+        TestUtils.setField(component, "pipeconfWatchdogService", watchdogService);
+        TestUtils.setField(component, "groupService", groupService);
+        for (DeviceId deviceId : ImmutableList.of(DEVICE1, DEVICE2)) {
+            deviceService.available.add(deviceId);
+            pipeconfService.applied.put(deviceId, pipeconf);
+            watchdogService.ready.add(deviceId);
+        }
+    }
+
+    private void updateInterfacePort(PortNumber port, boolean hasInterfaces)
+            throws TestUtilsException {
+        TestUtils.callMethod(component, "updateInterfacePort",
+                             new Class<?>[]{ConnectPoint.class, boolean.class},
+                             new ConnectPoint(DEVICE1, port), hasInterfaces);
+    }
+
+    private static GroupBuckets buckets(PortNumber... ports) {
+        return new GroupBuckets(Stream.of(ports)
+                                        .map(Utils::buildMulticastGroupBucket)
+                                        .collect(Collectors.toList()));
+    }
+
+    private boolean isReadyForSetUp(DeviceId deviceId) throws TestUtilsException {
+        return TestUtils.callMethod(component, "isReadyForSetUp",
+                                    new Class<?>[]{DeviceId.class}, deviceId);
+    }
+
+    private static PiPipeconf buildPipeconf(PiPipeconfId id) throws P4InfoParserException {
+        return DefaultPiPipeconf.builder()
+                .withId(id)
+                .withPipelineModel(P4InfoParser.parse(
+                        PipeconfLoader.class.getResource("/p4info.txt")))
+                .build();
+    }
+
+    private List<FlowRule> buildDesiredFlowRules(DeviceId deviceId)
+            throws TestUtilsException {
+        return TestUtils.callMethod(component, "buildDesiredFlowRules",
+                                    new Class<?>[]{DeviceId.class}, deviceId);
+    }
+
+    private void reconcileFlowRules(DeviceId deviceId, Collection<FlowRule> rules)
+            throws TestUtilsException {
+        TestUtils.callMethod(component, "reconcileFlowRules",
+                             new Class<?>[]{DeviceId.class, Collection.class},
+                             deviceId, rules);
+    }
+
+    private void applyFlowRules(DeviceId deviceId, Collection<FlowRule> rules)
+            throws TestUtilsException {
+        TestUtils.callMethod(component, "applyFlowRules",
+                             new Class<?>[]{DeviceId.class, Collection.class},
+                             deviceId, rules);
+    }
+
+    /**
+     * Returns unicast rules for the given number of hosts, on ports 1 to n.
+     */
+    private static List<FlowRule> hostRules(DeviceId deviceId, int n) {
+        return IntStream.rangeClosed(1, n)
+                .mapToObj(i -> hostRule(deviceId, MacAddress.valueOf((long) i),
+                                        PortNumber.portNumber(i)))
+                .collect(Collectors.toList());
+    }
+
+    private static FlowRule hostRule(DeviceId deviceId, MacAddress mac, PortNumber port) {
+        final PiCriterion criterion = PiCriterion.builder()
+                .matchExact(PiMatchFieldId.of("hdr.ethernet.dst_addr"), mac.toBytes())
+                .build();
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.set_egress_port"))
+                .withParameter(new PiActionParam(PiActionParamId.of("port_num"),
+                                                 port.toLong()))
+                .build();
+        return Utils.buildFlowRule(deviceId, APP_ID, L2_EXACT_TABLE, criterion, action);
+    }
+
+    private static FlowRule smacRule(DeviceId deviceId, MacAddress mac, PortNumber port) {
+        final PiCriterion criterion = PiCriterion.builder()
+                .matchExact(PiMatchFieldId.of("hdr.ethernet.src_addr"), mac.toBytes())
+                .matchExact(PiMatchFieldId.of("standard_metadata.ingress_port"),
+                            port.toLong())
+                .build();
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of("NoAction"))
+                .build();
+        return Utils.buildFlowRule(deviceId, APP_ID, SMAC_TABLE, criterion, action);
+    }
+
+    private static FlowEntry entry(FlowRule rule, FlowEntryState state) {
+        return new DefaultFlowEntry(rule, state, 0, 0, 0);
+    }
+
+    /**
+     * Returns all the operations applied, in order.
+     */
+    private List<FlowRuleOperation> operations() {
+        return flowRuleService.applied.stream()
+                .flatMap(ops -> ops.stages().stream())
+                .flatMap(Collection::stream)
+                .collect(Collectors.toList());
+    }
+
+    private static void assertOperation(List<FlowRuleOperation> ops,
+                                        FlowRuleOperation.Type type, FlowRule rule) {
+        assertTrue(type + " " + rule.id() + " in " + ops, ops.stream().anyMatch(
+                op -> op.type() == type && op.rule().id().equals(rule.id()) &&
+                        op.rule().deviceId().equals(rule.deviceId())));
+    }
+
+    private static int size(FlowRuleOperations ops) {
+        return ops.stages().stream().mapToInt(Collection::size).sum();
+    }
+
+    /**
+     * Flow rule service recording the operations applied, and returning the
+     * given flow entries for any device.
+     */
+    private static class TestFlowRuleService extends FlowRuleServiceAdapter {
+        private final List<FlowRuleOperations> applied = Lists.newArrayList();
+        private final List<FlowEntry> entries = Lists.newArrayList();
+
+        @Override
+        public Iterable<FlowEntry> getFlowEntries(DeviceId deviceId) {
+            return entries;
+        }
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            applied.add(ops);
+        }
+    }
+
+    /**
+     * Device service where the given devices are available.
+     */
+    private static class TestDeviceService extends DeviceServiceAdapter {
+        private final Set<DeviceId> available = Sets.newConcurrentHashSet();
+
+        @Override
+        public boolean isAvailable(DeviceId deviceId) {
+            return available.contains(deviceId);
+        }
+    }
+
+    /**
+     * Pipeconf service with the pipeconf of the app registered, and the given
+     * pipeconfs applied to the devices.
+     */
+    private static class TestPipeconfService extends PiPipeconfServiceAdapter {
+        private final PiPipeconf pipeconf;
+        private final Map<DeviceId, PiPipeconf> applied = Maps.newConcurrentMap();
+
+        TestPipeconfService(PiPipeconf pipeconf) {
+            this.pipeconf = pipeconf;
+        }
+
+        @Override
+        public Optional<PiPipeconf> getPipeconf(PiPipeconfId id) {
+            return Optional.of(pipeconf).filter(p -> p.id().equals(id));
+        }
+
+        @Override
+        public Optional<PiPipeconf> getPipeconf(DeviceId deviceId) {
+            return Optional.ofNullable(applied.get(deviceId));
+        }
+    }
+
+    /**
+     * Pipeconf watchdog reporting the pipeline of the given devices ready.
+     */
+    private static class TestPipeconfWatchdogService implements PiPipeconfWatchdogService {
+        private final Set<DeviceId> ready = Sets.newConcurrentHashSet();
+
+        @Override
+        public void triggerProbe(DeviceId deviceId) {
+        }
+
+        @Override
+        public PipelineStatus getStatus(DeviceId deviceId) {
+            return ready.contains(deviceId) ? PipelineStatus.READY : PipelineStatus.UNKNOWN;
+        }
+
+        @Override
+        public void addListener(PiPipeconfWatchdogListener listener) {
+        }
+
+        @Override
+        public void removeListener(PiPipeconfWatchdogListener listener) {
+        }
+    }
+
+    /**
+     * Group service with an in-memory store, recording the groups and buckets
+     * added and removed.
+     */
+    private static class TestGroupService extends GroupServiceAdapter {
+        private final Map<GroupKey, Group> groups = Maps.newConcurrentMap();
+        private final List<GroupDescription> added = Lists.newArrayList();
+        private final List<GroupKey> removed = Lists.newArrayList();
+        private final List<GroupBuckets> addedBuckets = Lists.newArrayList();
+        private final List<GroupBuckets> removedBuckets = Lists.newArrayList();
+
+        @Override
+        public Group getGroup(DeviceId deviceId, GroupKey appCookie) {
+            return groups.get(appCookie);
+        }
+
+        @Override
+        public void addGroup(GroupDescription groupDesc) {
+            added.add(groupDesc);
+            store(groupDesc.appCookie(), groupDesc, groupDesc.buckets().buckets());
+        }
+
+        @Override
+        public void addBucketsToGroup(DeviceId deviceId, GroupKey oldCookie, GroupBuckets buckets,
+                                      GroupKey newCookie, ApplicationId appId) {
+            addedBuckets.add(buckets);
+            final Group group = groups.remove(oldCookie);
+            final List<GroupBucket> newBuckets = Lists.newArrayList(group.buckets().buckets());
+            newBuckets.addAll(buckets.buckets());
+            store(newCookie, group, newBuckets);
+        }
+
+        @Override
+        public void removeBucketsFromGroup(DeviceId deviceId, GroupKey oldCookie, GroupBuckets buckets,
+                                           GroupKey newCookie, ApplicationId appId) {
+            removedBuckets.add(buckets);
+            final Group group = groups.remove(oldCookie);
+            final List<GroupBucket> newBuckets = Lists.newArrayList(group.buckets().buckets());
+            newBuckets.removeAll(buckets.buckets());
+            store(newCookie, group, newBuckets);
+        }
+
+        @Override
+        public void removeGroup(DeviceId deviceId, GroupKey appCookie, ApplicationId appId) {
+            removed.add(appCookie);
+            groups.remove(appCookie);
+        }
+
+        private void store(GroupKey appCookie, GroupDescription groupDesc, List<GroupBucket> buckets) {
+            groups.put(appCookie, new DefaultGroup(
+                    GroupId.valueOf(groupDesc.givenGroupId()),
+                    new DefaultGroupDescription(groupDesc.deviceId(), groupDesc.type(),
+                                                new GroupBuckets(buckets), appCookie,
+                                                groupDesc.givenGroupId(), groupDesc.appId())));
+        }
+    }
+
+    /**
+     * Host service knowing no host.
+     */
+    private static class TestHostService extends HostServiceAdapter {
+
+        @Override
+        public Set<Host> getConnectedHosts(DeviceId deviceId) {
+            return ImmutableSet.of();
+        }
+
+        @Override
+        public Host getHost(HostId hostId) {
+            return null;
+        }
+    }
+
+    /**
+     * Mastership service where this instance masters the given devices.
+     */
+    private static class TestMastershipService extends MastershipServiceAdapter {
+        private final Set<DeviceId> mastered = Sets.newConcurrentHashSet();
+
+        @Override
+        public boolean isLocalMaster(DeviceId deviceId) {
+            return mastered.contains(deviceId);
+        }
+    }
+
+    /**
+     * Main component running tasks in the calling thread, and recording the
+     * devices they are dispatched for.
+     */
+    private static class TestMainComponent extends MainComponent {
+        private final List<DeviceId> executed = Lists.newCopyOnWriteArrayList();
+        private volatile CountDownLatch latch = new CountDownLatch(0);
+
+        @Override
+        public void execute(DeviceId deviceId, Runnable task) {
+            executed.add(deviceId);
+            task.run();
+            latch.countDown();
+        }
+
+        private void expect(int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        private boolean await() throws InterruptedException {
+            // Leaves time for an extra, unexpected dispatch to show up.
+            final boolean done = latch.await(10, TimeUnit.SECONDS);
+            Thread.sleep(2 * COALESCE_WINDOW);
+            return done;
+        }
+    }
+}
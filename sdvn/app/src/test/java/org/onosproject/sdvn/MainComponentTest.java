@@ -0,0 +1,355 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.junit.TestUtils;
+import org.onlab.junit.TestUtils.TestUtilsException;
+import org.onosproject.cfg.ComponentConfigAdapter;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.core.GroupId;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.group.DefaultGroup;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupListener;
+import org.onosproject.net.group.GroupServiceAdapter;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.sdvn.common.Utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Tests of the clean up of the flows and groups of the app, of the warm
+ * restart that skips it, and of the per-device executor.
+ */
+public class MainComponentTest {
+
+    private static final ApplicationId APP_ID =
+            new DefaultApplicationId(1, "org.onosproject.sdvn");
+    private static final ProviderId PID = new ProviderId("of", "foo");
+    private static final DeviceId DEVICE1 = DeviceId.deviceId("device:obu1");
+    private static final DeviceId DEVICE2 = DeviceId.deviceId("device:obu2");
+    private static final int GROUP_ID = 255;
+
+    private final TestFlowRuleService flowRuleService = new TestFlowRuleService();
+    private final TestGroupService groupService = new TestGroupService();
+    private final TestDeviceService deviceService = new TestDeviceService();
+    private MainComponent component;
+
+    @Before
+    public void setUp() throws TestUtilsException {
+        component = new MainComponent();
+        TestUtils.setField(component, "appId", APP_ID);
+        TestUtils.setField(component, "flowRuleService", flowRuleService);
+        TestUtils.setField(component, "groupService", groupService);
+        TestUtils.setField(component, "deviceService", deviceService);
+        groupService.addListener(TestUtils.getField(component, "groupListener"));
+        deviceService.devices.add(device(DEVICE1));
+        deviceService.devices.add(device(DEVICE2));
+    }
+
+    /**
+     * Tests that there is nothing to wait for when the app has neither flows
+     * nor groups.
+     */
+    @Test
+    public void testCleanUpNothing() throws TestUtilsException {
+        assertNull(cleanUp());
+        assertTrue(flowRuleService.applied.isEmpty());
+    }
+
+    /**
+     * Tests that flows are removed with one batch per device, that the groups
+     * of a device are removed only once its flows are gone, and that the
+     * clean up completes when the group store confirms the removal.
+     */
+    @Test
+    public void testCleanUpFlowsThenGroups() throws TestUtilsException {
+        flowRuleService.entries.add(flow(DEVICE1, 1));
+        flowRuleService.entries.add(flow(DEVICE1, 2));
+        flowRuleService.entries.add(flow(DEVICE2, 1));
+        groupService.add(group(DEVICE1));
+
+        final CompletableFuture<Void> future = cleanUp();
+
+        assertEquals(2, flowRuleService.applied.size());
+        final Map<DeviceId, List<FlowRuleOperation>> ops = flowRuleService.operations();
+        assertEquals(2, ops.get(DEVICE1).size());
+        assertEquals(1, ops.get(DEVICE2).size());
+        ops.values().forEach(l -> l.forEach(
+                op -> assertEquals(FlowRuleOperation.Type.REMOVE, op.type())));
+        assertTrue(groupService.removed.isEmpty());
+
+        flowRuleService.succeed(DEVICE2);
+        assertTrue(groupService.removed.isEmpty());
+        assertFalse(future.isDone());
+
+        flowRuleService.succeed(DEVICE1);
+        assertEquals(ImmutableList.of(DEVICE1), groupService.removed);
+        // Not yet removed from the store.
+        assertFalse(future.isDone());
+
+        groupService.confirmRemoval(DEVICE1);
+        assertTrue(future.isDone());
+    }
+
+    /**
+     * Tests that groups are removed even if the removal of the flows failed.
+     */
+    @Test
+    public void testCleanUpGroupsOnFlowError() throws TestUtilsException {
+        flowRuleService.entries.add(flow(DEVICE1, 1));
+        groupService.add(group(DEVICE1));
+
+        final CompletableFuture<Void> future = cleanUp();
+        flowRuleService.fail(DEVICE1);
+
+        assertEquals(ImmutableList.of(DEVICE1), groupService.removed);
+        groupService.confirmRemoval(DEVICE1);
+        assertTrue(future.isDone());
+    }
+
+    /**
+     * Tests that groups of devices without flows are removed right away.
+     */
+    @Test
+    public void testCleanUpGroupsOnly() throws TestUtilsException {
+        groupService.add(group(DEVICE2));
+
+        final CompletableFuture<Void> future = cleanUp();
+
+        assertTrue(flowRuleService.applied.isEmpty());
+        assertEquals(ImmutableList.of(DEVICE2), groupService.removed);
+        groupService.confirmRemoval(DEVICE2);
+        assertTrue(future.isDone());
+    }
+
+    /**
+     * Tests that with warmRestart enabled, deactivating the app leaves its
+     * flows and groups on the devices.
+     */
+    @Test
+    public void testWarmRestartKeepsFlowsAndGroups() throws TestUtilsException {
+        flowRuleService.entries.add(flow(DEVICE1, 1));
+        groupService.add(group(DEVICE1));
+        TestUtils.setField(component, "compCfgService", new ComponentConfigAdapter());
+        TestUtils.setField(component, "warmRestart", true);
+
+        TestUtils.callMethod(component, "deactivate", new Class<?>[]{});
+
+        assertTrue(flowRuleService.applied.isEmpty());
+        assertTrue(groupService.removed.isEmpty());
+    }
+
+    /**
+     * Tests that the queue depth of a device counts its tasks waiting in the
+     * executor, but not the running one.
+     */
+    @Test
+    public void testQueueDepthPerDevice() throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        component.execute(DEVICE1, () -> {
+            running.countDown();
+            Uninterruptibles.awaitUninterruptibly(release);
+            done.countDown();
+        });
+        component.execute(DEVICE1, done::countDown);
+        component.execute(DEVICE1, done::countDown);
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+
+        assertEquals(2, component.getQueueDepth(DEVICE1));
+        assertEquals(0, component.getQueueDepth(DEVICE2));
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, component.getQueueDepth(DEVICE1));
+    }
+
+    /**
+     * Tests that the queue depth of a removed device is forgotten.
+     */
+    @Test
+    public void testRemoveQueueDepth() throws InterruptedException, TestUtilsException {
+        final CountDownLatch done = new CountDownLatch(1);
+        component.execute(DEVICE1, done::countDown);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        final Map<DeviceId, ?> queuedTasks = TestUtils.getField(component, "queuedTasks");
+        assertTrue(queuedTasks.containsKey(DEVICE1));
+
+        component.removeQueueDepth(DEVICE1);
+
+        assertFalse(queuedTasks.containsKey(DEVICE1));
+        assertEquals(0, component.getQueueDepth(DEVICE1));
+    }
+
+    private CompletableFuture<Void> cleanUp() throws TestUtilsException {
+        return TestUtils.callMethod(component, "cleanUp", new Class<?>[]{});
+    }
+
+    private static Device device(DeviceId deviceId) {
+        return new DefaultDevice(PID, deviceId, Device.Type.SWITCH,
+                                 "m", "h", "s", "n", null);
+    }
+
+    private static FlowEntry flow(DeviceId deviceId, int i) {
+        final PiCriterion criterion = PiCriterion.builder()
+                .matchExact(PiMatchFieldId.of("hdr.ethernet.dst_addr"), i)
+                .build();
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.drop"))
+                .build();
+        return new DefaultFlowEntry(Utils.buildFlowRule(
+                deviceId, APP_ID, "IngressPipeImpl.l2_exact_table", criterion, action));
+    }
+
+    private static Group group(DeviceId deviceId) {
+        return new DefaultGroup(GroupId.valueOf(GROUP_ID), Utils.buildMulticastGroup(
+                APP_ID, deviceId, GROUP_ID, ImmutableSet.of(PortNumber.portNumber(1))));
+    }
+
+    /**
+     * Flow rule service returning the given flow entries, and recording the
+     * operations applied so that their outcome can be reported later.
+     */
+    private static class TestFlowRuleService extends FlowRuleServiceAdapter {
+        private final List<FlowEntry> entries = Lists.newArrayList();
+        private final List<FlowRuleOperations> applied = Lists.newArrayList();
+
+        @Override
+        public Iterable<FlowEntry> getFlowEntriesById(ApplicationId id) {
+            return entries;
+        }
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            applied.add(ops);
+        }
+
+        private Map<DeviceId, List<FlowRuleOperation>> operations() {
+            return applied.stream()
+                    .flatMap(ops -> ops.stages().stream())
+                    .flatMap(Collection::stream)
+                    .collect(Collectors.groupingBy(op -> op.rule().deviceId()));
+        }
+
+        private FlowRuleOperations applied(DeviceId deviceId) {
+            return applied.stream()
+                    .filter(ops -> ops.stages().get(0).iterator().next()
+                            .rule().deviceId().equals(deviceId))
+                    .findFirst().get();
+        }
+
+        private void succeed(DeviceId deviceId) {
+            final FlowRuleOperations ops = applied(deviceId);
+            ops.callback().onSuccess(ops);
+        }
+
+        private void fail(DeviceId deviceId) {
+            final FlowRuleOperations ops = applied(deviceId);
+            ops.callback().onError(ops);
+        }
+    }
+
+    /**
+     * Group service with an in-memory store, where removals are confirmed
+     * explicitly by the test.
+     */
+    private static class TestGroupService extends GroupServiceAdapter {
+        private final Map<DeviceId, List<Group>> groups = Maps.newHashMap();
+        private final List<DeviceId> removed = Lists.newArrayList();
+        private final List<GroupListener> listeners = Lists.newArrayList();
+
+        private void add(Group group) {
+            groups.computeIfAbsent(group.deviceId(), d -> Lists.newArrayList())
+                    .add(group);
+        }
+
+        @Override
+        public Iterable<Group> getGroups(DeviceId deviceId, ApplicationId appId) {
+            return ImmutableList.copyOf(
+                    groups.getOrDefault(deviceId, ImmutableList.of()));
+        }
+
+        @Override
+        public void removeGroup(DeviceId deviceId, GroupKey appCookie,
+                                ApplicationId appId) {
+            removed.add(deviceId);
+        }
+
+        @Override
+        public void addListener(GroupListener listener) {
+            listeners.add(listener);
+        }
+
+        private void confirmRemoval(DeviceId deviceId) {
+            final List<Group> deviceGroups = groups.remove(deviceId);
+            deviceGroups.forEach(g -> {
+                final GroupEvent event = new GroupEvent(GroupEvent.Type.GROUP_REMOVED, g);
+                listeners.stream()
+                        .filter(l -> l.isRelevant(event))
+                        .forEach(l -> l.event(event));
+            });
+        }
+    }
+
+    /**
+     * Device service returning the given devices as available.
+     */
+    private static class TestDeviceService extends DeviceServiceAdapter {
+        private final List<Device> devices = Lists.newArrayList();
+
+        @Override
+        public Iterable<Device> getAvailableDevices() {
+            return devices;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.common;
+
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.intf.Interface;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests of the index of ports with interfaces.
+ */
+public class InterfacePortIndexTest {
+
+    private static final DeviceId DEVICE1 = DeviceId.deviceId("device:1");
+    private static final DeviceId DEVICE2 = DeviceId.deviceId("device:2");
+    private static final PortNumber P1 = PortNumber.portNumber(1);
+    private static final PortNumber P2 = PortNumber.portNumber(2);
+    private static final PortNumber P3 = PortNumber.portNumber(3);
+
+    private InterfacePortIndex index;
+
+    @Before
+    public void setUp() {
+        index = new InterfacePortIndex();
+    }
+
+    /**
+     * Tests that a rebuild indexes the ports of all interfaces by device and
+     * drops the devices left without interfaces.
+     */
+    @Test
+    public void testRebuild() {
+        index.rebuild(ImmutableSet.of(
+                intf("i1", DEVICE1, P1), intf("i2", DEVICE1, P2), intf("i3", DEVICE2, P3)));
+        assertEquals(ImmutableSet.of(P1, P2), index.getPorts(DEVICE1));
+        assertEquals(ImmutableSet.of(P3), index.getPorts(DEVICE2));
+
+        index.rebuild(ImmutableSet.of(intf("i1", DEVICE1, P1)));
+        assertEquals(ImmutableSet.of(P1), index.getPorts(DEVICE1));
+        assertTrue(index.getPorts(DEVICE2).isEmpty());
+    }
+
+    /**
+     * Tests that interfaces sharing a port index it once.
+     */
+    @Test
+    public void testRebuildSharedPort() {
+        index.rebuild(ImmutableSet.of(intf("i1", DEVICE1, P1), intf("i2", DEVICE1, P1)));
+        assertEquals(ImmutableSet.of(P1), index.getPorts(DEVICE1));
+    }
+
+    /**
+     * Tests that ports are added once and removed, and that a device without
+     * ports left is removed.
+     */
+    @Test
+    public void testAddRemovePort() {
+        assertTrue(index.addPort(new ConnectPoint(DEVICE1, P1)));
+        assertFalse(index.addPort(new ConnectPoint(DEVICE1, P1)));
+        assertTrue(index.addPort(new ConnectPoint(DEVICE1, P2)));
+        assertEquals(ImmutableSet.of(P1, P2), index.getPorts(DEVICE1));
+
+        assertTrue(index.removePort(new ConnectPoint(DEVICE1, P1)));
+        assertFalse(index.removePort(new ConnectPoint(DEVICE1, P1)));
+        assertFalse(index.removePort(new ConnectPoint(DEVICE2, P1)));
+        assertEquals(ImmutableSet.of(P2), index.getPorts(DEVICE1));
+
+        assertTrue(index.removePort(new ConnectPoint(DEVICE1, P2)));
+        assertTrue(index.getPorts(DEVICE1).isEmpty());
+    }
+
+    /**
+     * Tests that the sets returned are snapshots, not changed by later
+     * updates.
+     */
+    @Test
+    public void testSnapshot() {
+        index.addPort(new ConnectPoint(DEVICE1, P1));
+        final Set<PortNumber> ports = index.getPorts(DEVICE1);
+        index.addPort(new ConnectPoint(DEVICE1, P2));
+        index.clear();
+        assertEquals(ImmutableSet.of(P1), ports);
+        assertTrue(index.getPorts(DEVICE1).isEmpty());
+    }
+
+    /**
+     * Tests that the sets returned cannot be modified.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        index.addPort(new ConnectPoint(DEVICE1, P1));
+        index.getPorts(DEVICE1).add(P2);
+    }
+
+    private static Interface intf(String name, DeviceId deviceId, PortNumber port) {
+        return new Interface(name, new ConnectPoint(deviceId, port), ImmutableList.of(),
+                             MacAddress.NONE, VlanId.NONE);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.common;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import static org.onosproject.sdvn.common.PiCounterReader.extractP4DeviceId;
+
+/**
+ * Tests of the P4Runtime device ID found in management addresses.
+ */
+public class PiCounterReaderTest {
+
+    /**
+     * Tests addresses with a device ID.
+     */
+    @Test
+    public void testDeviceId() {
+        assertEquals(1, extractP4DeviceId(URI.create("grpc://192.168.137.252:9559?device_id=1")));
+        assertEquals(7, extractP4DeviceId(URI.create("grpc://127.0.0.1:50001?foo=bar&device_id=7")));
+    }
+
+    /**
+     * Tests addresses without a valid device ID.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoDeviceId() {
+        extractP4DeviceId(URI.create("grpc://127.0.0.1:50001"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidDeviceId() {
+        extractP4DeviceId(URI.create("grpc://127.0.0.1:50001?device_id=one"));
+    }
+}
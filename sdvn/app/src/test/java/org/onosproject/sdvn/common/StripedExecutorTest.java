@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.common;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests of the striped executor.
+ */
+public class StripedExecutorTest {
+
+    private static final int NUM_STRIPES = 4;
+    private static final int NUM_TASKS = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private StripedExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new StripedExecutor(NUM_STRIPES, "sdvn-test", "stripe-%d", log);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Tests that a key is always associated with the same stripe.
+     */
+    @Test
+    public void testSameKeySameStripe() {
+        final DeviceId deviceId = DeviceId.deviceId("device:1");
+        final int stripe = executor.stripeOf(deviceId);
+        assertEquals(stripe, executor.stripeOf(DeviceId.deviceId("device:1")));
+        assertEquals(NUM_STRIPES, executor.size());
+        assertEquals(NUM_STRIPES, executor.queueDepths().size());
+    }
+
+    /**
+     * Tests that stripes are within range for any hash code, negative ones
+     * included, and that keys are spread on all stripes.
+     */
+    @Test
+    public void testStripeRange() {
+        for (int hash : new int[]{0, 1, -1, NUM_STRIPES, Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+            final int stripe = executor.stripeOf(new HashKey(hash));
+            assertTrue("stripe " + stripe + " of hash " + hash,
+                       stripe >= 0 && stripe < NUM_STRIPES);
+        }
+        final Set<Integer> stripes = IntStream.range(0, NUM_STRIPES)
+                .mapToObj(i -> executor.stripeOf(new HashKey(i)))
+                .collect(Collectors.toSet());
+        assertEquals(NUM_STRIPES, stripes.size());
+    }
+
+    /**
+     * Tests that tasks submitted with the same key run in submission order.
+     */
+    @Test
+    public void testSameKeyInOrder() throws InterruptedException {
+        final DeviceId deviceId = DeviceId.deviceId("device:1");
+        final List<Integer> executed = Lists.newArrayList();
+        final CountDownLatch done = new CountDownLatch(NUM_TASKS);
+        for (int i = 0; i < NUM_TASKS; i++) {
+            final int task = i;
+            executor.execute(deviceId, () -> {
+                // Stripes are single-thread, no synchronization needed.
+                executed.add(task);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(IntStream.range(0, NUM_TASKS).boxed().collect(Collectors.toList()),
+                     executed);
+    }
+
+    /**
+     * Tests that tasks with keys on different stripes run in parallel: a
+     * task blocked on one stripe does not hold the others.
+     */
+    @Test
+    public void testDifferentStripesInParallel() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new HashKey(0), () -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.execute(new HashKey(1), done::countDown);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    /**
+     * Tests that the number of stripes must be positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoStripes() {
+        new StripedExecutor(0, "sdvn-test", "stripe-%d", log);
+    }
+
+    /**
+     * Tests that the key is mandatory.
+     */
+    @Test(expected = NullPointerException.class)
+    public void testNullKey() {
+        executor.stripeOf(null);
+    }
+
+    /**
+     * Key with the given hash code.
+     */
+    private static final class HashKey {
+        private final int hash;
+
+        private HashKey(int hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof HashKey && ((HashKey) o).hash == hash;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.pipeconf;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.core.GroupId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultPort;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.driver.Behaviour;
+import org.onosproject.net.driver.Driver;
+import org.onosproject.net.driver.DriverData;
+import org.onosproject.net.driver.DriverHandler;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.group.DefaultGroup;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.group.GroupServiceAdapter;
+import org.onosproject.net.intf.Interface;
+import org.onosproject.net.intf.InterfaceService;
+import org.onosproject.net.intf.InterfaceServiceAdapter;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.OutboundPacket;
+import org.onosproject.net.pi.model.PiPacketMetadataId;
+import org.onosproject.net.pi.model.PiPipelineInterpreter.PiInterpreterException;
+import org.onosproject.net.pi.runtime.PiPacketMetadata;
+import org.onosproject.net.pi.runtime.PiPacketOperation;
+import static org.onosproject.sdvn.AppConstants.DEFAULT_BROADCAST_GROUP_ID;
+import org.onosproject.sdvn.common.Utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests of the packet-outs built by the pipeline interpreter.
+ */
+public class InterpreterImplTest {
+
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "sdvn");
+    private static final DeviceId DEVICE_ID = DeviceId.deviceId("device:1");
+    private static final PortNumber HOST_PORT1 = PortNumber.portNumber(1);
+    private static final PortNumber HOST_PORT2 = PortNumber.portNumber(2);
+    private static final PortNumber FABRIC_PORT = PortNumber.portNumber(3);
+
+    private static final PiPacketMetadataId EGRESS_PORT = PiPacketMetadataId.of("egress_port");
+    private static final PiPacketMetadataId MCAST_GRP = PiPacketMetadataId.of("mcast_grp");
+
+    private static final byte[] PAYLOAD = {1, 2, 3, 4};
+
+    private final TestGroupService groupService = new TestGroupService();
+    private InterpreterImpl interpreter;
+
+    @Before
+    public void setUp() {
+        final TestInterfaceService interfaceService = new TestInterfaceService();
+        interfaceService.add(HOST_PORT1);
+        interfaceService.add(HOST_PORT2);
+        interpreter = new InterpreterImpl();
+        interpreter.setHandler(new TestDriverHandler(ImmutableMap.of(
+                DeviceService.class, new TestDeviceService(),
+                GroupService.class, groupService,
+                InterfaceService.class, interfaceService)));
+    }
+
+    /**
+     * Tests that a packet flooded once the broadcast group is installed is
+     * sent in a single packet-out to the group.
+     */
+    @Test
+    public void testFloodWithBroadcastGroup() throws PiInterpreterException {
+        groupService.addBroadcastGroup(Group.GroupState.ADDED);
+
+        final Collection<PiPacketOperation> packetOuts = interpreter.mapOutboundPacket(
+                outboundPacket(PortNumber.FLOOD));
+
+        assertEquals(1, packetOuts.size());
+        final PiPacketOperation packetOut = packetOuts.iterator().next();
+        assertEquals(DEFAULT_BROADCAST_GROUP_ID, metadata(packetOut, MCAST_GRP));
+        assertEquals(0, metadata(packetOut, EGRESS_PORT));
+        assertEquals(ImmutableByteSequence.copyFrom(PAYLOAD), packetOut.data());
+    }
+
+    /**
+     * Tests that a packet flooded before the broadcast group is installed is
+     * sent to the same host facing ports, one packet-out per port.
+     */
+    @Test
+    public void testFloodWithoutBroadcastGroup() throws PiInterpreterException {
+        groupService.addBroadcastGroup(Group.GroupState.PENDING_ADD);
+
+        final Collection<PiPacketOperation> packetOuts = interpreter.mapOutboundPacket(
+                outboundPacket(PortNumber.FLOOD));
+
+        final Set<Long> ports = packetOuts.stream()
+                .map(p -> metadata(p, EGRESS_PORT))
+                .collect(Collectors.toSet());
+        assertEquals(ImmutableSet.of(HOST_PORT1.toLong(), HOST_PORT2.toLong()), ports);
+        assertTrue(packetOuts.stream().allMatch(p -> metadata(p, MCAST_GRP) == 0));
+    }
+
+    /**
+     * Tests that a packet output on a port is sent in a single packet-out,
+     * with the multicast group unset.
+     */
+    @Test
+    public void testOutput() throws PiInterpreterException {
+        final Collection<PiPacketOperation> packetOuts = interpreter.mapOutboundPacket(
+                outboundPacket(FABRIC_PORT));
+
+        assertEquals(1, packetOuts.size());
+        final PiPacketOperation packetOut = packetOuts.iterator().next();
+        assertEquals(FABRIC_PORT.toLong(), metadata(packetOut, EGRESS_PORT));
+        assertEquals(0, metadata(packetOut, MCAST_GRP));
+    }
+
+    /**
+     * Tests that the metadata are encoded with the bit widths of the P4Info,
+     * 9 bits for the egress port and 16 bits for the multicast group.
+     */
+    @Test
+    public void testMetadataBitWidth() throws PiInterpreterException {
+        groupService.addBroadcastGroup(Group.GroupState.ADDED);
+
+        final PiPacketOperation packetOut = interpreter.mapOutboundPacket(
+                outboundPacket(PortNumber.FLOOD)).iterator().next();
+
+        for (PiPacketMetadata meta : packetOut.metadatas()) {
+            assertEquals(2, meta.value().size());
+        }
+        assertEquals(2, packetOut.metadatas().size());
+    }
+
+    /**
+     * Tests that a port number over 9 bits is rejected.
+     */
+    @Test(expected = PiInterpreterException.class)
+    public void testPortTooBig() throws PiInterpreterException {
+        interpreter.mapOutboundPacket(outboundPacket(PortNumber.portNumber(512)));
+    }
+
+    private static OutboundPacket outboundPacket(PortNumber port) {
+        return new DefaultOutboundPacket(
+                DEVICE_ID, DefaultTrafficTreatment.builder().setOutput(port).build(),
+                ByteBuffer.wrap(PAYLOAD));
+    }
+
+    private static long metadata(PiPacketOperation packetOut, PiPacketMetadataId id) {
+        final PiPacketMetadata meta = packetOut.metadatas().stream()
+                .filter(m -> m.id().equals(id))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("Missing metadata " + id));
+        long value = 0;
+        for (byte b : meta.value().asArray()) {
+            value = (value << Byte.SIZE) | (b & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Driver handler returning the given services.
+     */
+    private static class TestDriverHandler implements DriverHandler {
+        private final Map<Class<?>, Object> services;
+
+        TestDriverHandler(Map<Class<?>, Object> services) {
+            this.services = services;
+        }
+
+        @Override
+        public Driver driver() {
+            return null;
+        }
+
+        @Override
+        public DriverData data() {
+            return null;
+        }
+
+        @Override
+        public <T extends Behaviour> T behaviour(Class<T> behaviourClass) {
+            return null;
+        }
+
+        @Override
+        public <T> T get(Class<T> serviceClass) {
+            return serviceClass.cast(services.get(serviceClass));
+        }
+    }
+
+    /**
+     * Device service returning the host facing ports and a fabric port.
+     */
+    private static class TestDeviceService extends DeviceServiceAdapter {
+        @Override
+        public List<Port> getPorts(DeviceId deviceId) {
+            return ImmutableList.of(new DefaultPort(null, HOST_PORT1, true),
+                                    new DefaultPort(null, HOST_PORT2, true),
+                                    new DefaultPort(null, FABRIC_PORT, true));
+        }
+    }
+
+    /**
+     * Interface service with interfaces configured on the given ports only.
+     */
+    private static class TestInterfaceService extends InterfaceServiceAdapter {
+        private final Map<ConnectPoint, Set<Interface>> interfaces = Maps.newHashMap();
+
+        @Override
+        public Set<Interface> getInterfacesByPort(ConnectPoint port) {
+            return interfaces.getOrDefault(port, ImmutableSet.of());
+        }
+
+        private void add(PortNumber port) {
+            final ConnectPoint connectPoint = new ConnectPoint(DEVICE_ID, port);
+            interfaces.put(connectPoint, ImmutableSet.of(new Interface(
+                    "host-" + port, connectPoint, ImmutableList.of(),
+                    MacAddress.NONE, VlanId.NONE)));
+        }
+    }
+
+    /**
+     * Group service with an in-memory store only changed by the test.
+     */
+    private static class TestGroupService extends GroupServiceAdapter {
+        private final Map<GroupKey, Group> groups = Maps.newHashMap();
+
+        @Override
+        public Group getGroup(DeviceId deviceId, GroupKey appCookie) {
+            return groups.get(appCookie);
+        }
+
+        private void addBroadcastGroup(Group.GroupState state) {
+            final DefaultGroup group = new DefaultGroup(
+                    GroupId.valueOf(DEFAULT_BROADCAST_GROUP_ID),
+                    Utils.buildMulticastGroup(APP_ID, DEVICE_ID, DEFAULT_BROADCAST_GROUP_ID,
+                                              ImmutableList.of(HOST_PORT1, HOST_PORT2)));
+            group.setState(state);
+            groups.put(group.appCookie(), group);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.pipeconf;
+
+import java.util.List;
+
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.sdvn.pipeconf.MacLearningQueue.LearnedMac;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests of the queue of MAC addresses learned by the data plane.
+ */
+public class MacLearningQueueTest {
+
+    private static final MacAddress MAC1 = MacAddress.valueOf("00:00:00:00:00:01");
+    private static final MacAddress MAC2 = MacAddress.valueOf("00:00:00:00:00:02");
+    private static final ConnectPoint CP1 =
+            new ConnectPoint(DeviceId.deviceId("device:1"), PortNumber.portNumber(1));
+    private static final ConnectPoint CP2 =
+            new ConnectPoint(DeviceId.deviceId("device:1"), PortNumber.portNumber(2));
+
+    @Before
+    public void setUp() {
+        MacLearningQueue.clear();
+    }
+
+    @After
+    public void tearDown() {
+        MacLearningQueue.clear();
+    }
+
+    /**
+     * Tests that the entries offered between two drains are returned together
+     * by the next drain, duplicates collapsed.
+     */
+    @Test
+    public void testBatching() {
+        assertTrue(MacLearningQueue.offer(MAC1, CP1));
+        assertFalse(MacLearningQueue.offer(MAC1, CP1));
+        assertTrue(MacLearningQueue.offer(MAC2, CP1));
+        // Same MAC on another port, a move.
+        assertTrue(MacLearningQueue.offer(MAC1, CP2));
+
+        final List<LearnedMac> drained = MacLearningQueue.drain();
+        assertEquals(3, drained.size());
+        assertEquals(ImmutableSet.of(MAC1, MAC2),
+                     drained.stream().map(LearnedMac::mac).collect(ImmutableSet.toImmutableSet()));
+        assertTrue(MacLearningQueue.drain().isEmpty());
+    }
+
+    /**
+     * Tests that an entry can be offered again once drained.
+     */
+    @Test
+    public void testOfferAfterDrain() {
+        assertTrue(MacLearningQueue.offer(MAC1, CP1));
+        assertEquals(1, MacLearningQueue.drain().size());
+        assertTrue(MacLearningQueue.offer(MAC1, CP1));
+        final List<LearnedMac> drained = MacLearningQueue.drain();
+        assertEquals(1, drained.size());
+        assertEquals(MAC1, drained.get(0).mac());
+        assertEquals(CP1, drained.get(0).location());
+    }
+
+    /**
+     * Tests that clearing the queue drops the pending entries.
+     */
+    @Test
+    public void testClear() {
+        MacLearningQueue.offer(MAC1, CP1);
+        MacLearningQueue.clear();
+        assertTrue(MacLearningQueue.drain().isEmpty());
+    }
+}
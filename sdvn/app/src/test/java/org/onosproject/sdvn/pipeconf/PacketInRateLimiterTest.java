@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.pipeconf;
+
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+
+/**
+ * Tests of the packet-in token buckets.
+ */
+public class PacketInRateLimiterTest {
+
+    private static final DeviceId DEVICE1 = DeviceId.deviceId("device:1");
+    private static final DeviceId DEVICE2 = DeviceId.deviceId("device:2");
+
+    // Low enough for no token to be refilled while a test runs.
+    private static final int SLOW_RATE = 1;
+    private static final int BURST = 5;
+
+    @Before
+    public void setUp() {
+        PacketInRateLimiter.clear();
+    }
+
+    @After
+    public void tearDown() {
+        // The limiter is shared by all pipeline interpreters.
+        PacketInRateLimiter.configure(0, BURST);
+        PacketInRateLimiter.clear();
+    }
+
+    /**
+     * Tests that packet-ins are not limited with a 0 rate.
+     */
+    @Test
+    public void testNoLimit() {
+        PacketInRateLimiter.configure(0, BURST);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(PacketInRateLimiter.tryAcquire(DEVICE1));
+        }
+        assertEquals(0, PacketInRateLimiter.drops(DEVICE1));
+    }
+
+    /**
+     * Tests that a burst is accepted and the packet-ins over it are dropped
+     * and counted.
+     */
+    @Test
+    public void testBurst() {
+        PacketInRateLimiter.configure(SLOW_RATE, BURST);
+        for (int i = 0; i < BURST; i++) {
+            assertTrue(PacketInRateLimiter.tryAcquire(DEVICE1));
+        }
+        assertFalse(PacketInRateLimiter.tryAcquire(DEVICE1));
+        assertFalse(PacketInRateLimiter.tryAcquire(DEVICE1));
+        assertEquals(2, PacketInRateLimiter.drops(DEVICE1));
+    }
+
+    /**
+     * Tests that each device has its own bucket.
+     */
+    @Test
+    public void testPerDevice() {
+        PacketInRateLimiter.configure(SLOW_RATE, 1);
+        assertTrue(PacketInRateLimiter.tryAcquire(DEVICE1));
+        assertFalse(PacketInRateLimiter.tryAcquire(DEVICE1));
+        assertTrue(PacketInRateLimiter.tryAcquire(DEVICE2));
+        assertEquals(1, PacketInRateLimiter.drops(DEVICE1));
+        assertEquals(0, PacketInRateLimiter.drops(DEVICE2));
+    }
+
+    /**
+     * Tests that tokens are refilled at the configured rate.
+     */
+    @Test
+    public void testRefill() throws InterruptedException {
+        PacketInRateLimiter.configure(1000, 1);
+        assertTrue(PacketInRateLimiter.tryAcquire(DEVICE1));
+        // One token every millisecond.
+        Thread.sleep(20);
+        assertTrue(PacketInRateLimiter.tryAcquire(DEVICE1));
+    }
+
+    /**
+     * Tests that configuring the limiter refills the buckets and keeps the
+     * drop counts, and that clearing it drops both.
+     */
+    @Test
+    public void testConfigureAndClear() {
+        PacketInRateLimiter.configure(SLOW_RATE, 1);
+        assertTrue(PacketInRateLimiter.tryAcquire(DEVICE1));
+        assertFalse(PacketInRateLimiter.tryAcquire(DEVICE1));
+
+        PacketInRateLimiter.configure(SLOW_RATE, 2);
+        assertTrue(PacketInRateLimiter.tryAcquire(DEVICE1));
+        assertTrue(PacketInRateLimiter.tryAcquire(DEVICE1));
+        assertFalse(PacketInRateLimiter.tryAcquire(DEVICE1));
+        assertEquals(2, PacketInRateLimiter.drops(DEVICE1));
+
+        PacketInRateLimiter.clear();
+        assertEquals(0, PacketInRateLimiter.drops(DEVICE1));
+        assertTrue(PacketInRateLimiter.tryAcquire(DEVICE1));
+    }
+}
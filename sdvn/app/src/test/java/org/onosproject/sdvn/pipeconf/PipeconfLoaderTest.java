@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.pipeconf;
+
+import java.io.IOException;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionModel;
+import org.onosproject.net.pi.model.PiCounterType;
+import org.onosproject.net.pi.model.PiPipelineModel;
+import org.onosproject.net.pi.model.PiTableModel;
+import org.onosproject.p4runtime.model.P4InfoParser;
+import org.onosproject.p4runtime.model.P4InfoParserException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Sets;
+
+/**
+ * Tests that the P4Info and the BMv2 JSON of the pipeconf declare the same
+ * tables, actions, counters and action profiles. Whether they implement
+ * main.p4 is only guaranteed by generating both with p4c, see the p4c
+ * profile of the POM.
+ */
+public class PipeconfLoaderTest {
+
+    // Tables and actions p4c synthesizes for statements outside of tables.
+    private static final String SYNTHESIZED_TABLE = "tbl_";
+    private static final String SYNTHESIZED_ACTION = "main";
+
+    private PiPipelineModel model;
+    private JsonNode bmv2Json;
+
+    @Before
+    public void setUp() throws P4InfoParserException, IOException {
+        model = P4InfoParser.parse(PipeconfLoader.class.getResource("/p4info.txt"));
+        bmv2Json = new ObjectMapper().readTree(PipeconfLoader.class.getResource("/bmv2.json"));
+    }
+
+    /**
+     * Tests that the tables of the P4Info are the ones of the BMv2 JSON.
+     */
+    @Test
+    public void testTables() {
+        final Set<String> tables = Sets.newHashSet();
+        bmv2Json.get("pipelines").forEach(p -> p.get("tables").forEach(t -> {
+            final String name = t.get("name").asText();
+            if (!name.startsWith(SYNTHESIZED_TABLE)) {
+                tables.add(name);
+            }
+        }));
+        final Set<String> p4InfoTables = Sets.newHashSet();
+        model.tables().forEach(t -> p4InfoTables.add(t.id().id()));
+        assertEquals(tables, p4InfoTables);
+    }
+
+    /**
+     * Tests that the actions of the P4Info tables are in the BMv2 JSON, with
+     * the same parameters.
+     */
+    @Test
+    public void testActions() {
+        final Set<String> actions = Sets.newHashSet();
+        bmv2Json.get("actions").forEach(a -> {
+            final StringBuilder action = new StringBuilder(a.get("name").asText());
+            a.get("runtime_data").forEach(d -> action.append(' ')
+                    .append(d.get("name").asText()).append(':')
+                    .append(d.get("bitwidth").asInt()));
+            actions.add(action.toString());
+        });
+        for (PiTableModel table : model.tables()) {
+            for (PiActionModel a : table.actions()) {
+                final StringBuilder action = new StringBuilder(a.id().id());
+                a.params().forEach(p -> action.append(' ')
+                        .append(p.id().id()).append(':').append(p.bitWidth()));
+                assertTrue(action + " of " + table.id() + " not in the BMv2 JSON",
+                           actions.contains(action.toString()));
+            }
+        }
+        bmv2Json.get("actions").forEach(a -> {
+            final String name = a.get("name").asText();
+            assertTrue(name + " not in the P4Info", name.startsWith(SYNTHESIZED_ACTION)
+                    || model.tables().stream().anyMatch(t -> t.action(PiActionId.of(name)).isPresent()));
+        });
+    }
+
+    /**
+     * Tests that the counters of the P4Info are the ones of the BMv2 JSON,
+     * with the same sizes for the indirect ones.
+     */
+    @Test
+    public void testCounters() {
+        final Set<String> counters = Sets.newHashSet();
+        bmv2Json.get("counter_arrays").forEach(c -> counters.add(c.get("is_direct").asBoolean()
+                ? c.get("name").asText() : c.get("name").asText() + ":" + c.get("size").asLong()));
+        final Set<String> p4InfoCounters = Sets.newHashSet();
+        model.counters().forEach(c -> p4InfoCounters.add(c.counterType() == PiCounterType.DIRECT
+                ? c.id().id() : c.id().id() + ":" + c.size()));
+        assertEquals(counters, p4InfoCounters);
+    }
+
+    /**
+     * Tests that the action profiles of the P4Info are the ones of the BMv2
+     * JSON.
+     */
+    @Test
+    public void testActionProfiles() {
+        final Set<String> profiles = Sets.newHashSet();
+        bmv2Json.get("pipelines").forEach(p -> p.get("action_profiles").forEach(
+                a -> profiles.add(a.get("name").asText() + ":" + a.get("max_size").asInt())));
+        final Set<String> p4InfoProfiles = Sets.newHashSet();
+        model.actionProfiles().forEach(a -> p4InfoProfiles.add(a.id().id() + ":" + a.size()));
+        assertEquals(profiles, p4InfoProfiles);
+    }
+}
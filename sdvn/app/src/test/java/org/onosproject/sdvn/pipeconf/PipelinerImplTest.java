@@ -0,0 +1,824 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.sdvn.pipeconf;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.junit.TestUtils;
+import org.onlab.junit.TestUtils.TestUtilsException;
+import org.onlab.osgi.ServiceDirectory;
+import org.onlab.packet.Ethernet;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.core.GroupId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.behaviour.NextGroup;
+import org.onosproject.net.behaviour.PipelinerContext;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.DefaultNextObjective;
+import org.onosproject.net.flowobjective.DefaultNextTreatment;
+import org.onosproject.net.flowobjective.FlowObjectiveStore;
+import org.onosproject.net.flowobjective.FlowObjectiveStoreDelegate;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.IdNextTreatment;
+import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.flowobjective.ObjectiveContext;
+import org.onosproject.net.flowobjective.ObjectiveError;
+import org.onosproject.net.group.DefaultGroup;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupListener;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.group.GroupServiceAdapter;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.sdvn.DeviceIdentityRegistry;
+import org.onosproject.sdvn.common.Utils;
+import org.onosproject.store.service.TestStorageService;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests of the pipeliner, with the flow rules and groups it writes captured
+ * instead of installed.
+ */
+public class PipelinerImplTest {
+
+    private static final ApplicationId APP_ID =
+            new DefaultApplicationId(1, "org.onosproject.sdvn");
+    private static final ApplicationId OTHER_APP_ID =
+            new DefaultApplicationId(2, "org.onosproject.other");
+    private static final DeviceId DEVICE1 = DeviceId.deviceId("device:obu1");
+    private static final int BATCH_WINDOW = 50;
+    private static final int NEXT_ID = 1000;
+    private static final PortNumber PORT1 = PortNumber.portNumber(1);
+    private static final PortNumber PORT2 = PortNumber.portNumber(2);
+    private static final PortNumber PORT3 = PortNumber.portNumber(3);
+
+    private final TestFlowRuleService flowRuleService = new TestFlowRuleService();
+    private final TestGroupService groupService = new TestGroupService();
+    private final PipeconfLoader pipeconfLoader = new PipeconfLoader();
+    private final TestFlowObjectiveStore objectiveStore = new TestFlowObjectiveStore();
+    private DeviceIdentityRegistry registry;
+    private int cloneSessionId;
+    private PipelinerImpl pipeliner;
+
+    @Before
+    public void setUp() throws TestUtilsException {
+        registry = new DeviceIdentityRegistry();
+        TestUtils.setField(registry, "storageService", new TestStorageService());
+        TestUtils.setField(registry, "deviceService", new DeviceServiceAdapter());
+        TestUtils.callMethod(registry, "activate", new Class<?>[]{});
+        cloneSessionId = registry.cloneSessionId(DEVICE1);
+        // Objectives are written right away unless a test sets a window.
+        setBatchWindow(0);
+        pipeliner = newPipeliner();
+    }
+
+    private void setBatchWindow(int window) throws TestUtilsException {
+        TestUtils.setField(pipeconfLoader, "objectiveBatchWindow", window);
+    }
+
+    private PipelinerImpl newPipeliner() {
+        final PipelinerImpl newPipeliner = new PipelinerImpl();
+        newPipeliner.init(DEVICE1, new TestPipelinerContext(ImmutableMap.of(
+                FlowRuleService.class, flowRuleService,
+                GroupService.class, groupService,
+                PipeconfLoader.class, pipeconfLoader,
+                DeviceIdentityRegistry.class, registry), objectiveStore));
+        return newPipeliner;
+    }
+
+    /**
+     * Tests that the clone group is written with the first objective only.
+     */
+    @Test
+    public void testCloneGroupAddedOnce() {
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_LLDP));
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_BSN));
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_ARP));
+
+        assertEquals(3, flowRuleService.operations().size());
+        assertEquals(1, groupService.added.size());
+        assertEquals(DEVICE1, groupService.added.get(0).deviceId());
+        assertEquals(Utils.buildReplicationGroupKey(cloneSessionId),
+                     groupService.added.get(0).appCookie());
+    }
+
+    /**
+     * Tests that the clone group is not written when already in the store.
+     */
+    @Test
+    public void testCloneGroupAlreadyInStore() {
+        groupService.store(Utils.buildCloneGroup(
+                APP_ID, DEVICE1, cloneSessionId,
+                Collections.singleton(PortNumber.CONTROLLER)));
+
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_LLDP));
+        assertEquals(0, groupService.added.size());
+    }
+
+    /**
+     * Tests that the clone group is written again once the store reports it
+     * removed.
+     */
+    @Test
+    public void testCloneGroupReAddedAfterRemoval() {
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_LLDP));
+        assertEquals(1, groupService.added.size());
+
+        groupService.remove(groupService.added.get(0));
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_BSN));
+        assertEquals(2, groupService.added.size());
+    }
+
+    /**
+     * Tests that the group listener of the previous pipeliner of the device
+     * is removed when a new one is initialized.
+     */
+    @Test
+    public void testGroupListenerReplaced() {
+        assertEquals(1, groupService.listeners.size());
+        final PipelinerImpl newPipeliner = newPipeliner();
+        assertEquals(1, groupService.listeners.size());
+
+        // Only the new pipeliner forgets the clone group once removed.
+        newPipeliner.forward(cloneToCpu(Ethernet.TYPE_LLDP));
+        groupService.remove(groupService.added.get(0));
+        newPipeliner.forward(cloneToCpu(Ethernet.TYPE_BSN));
+        assertEquals(2, groupService.added.size());
+    }
+
+    /**
+     * Tests that the group listener of the pipeliner of a device is removed
+     * with the device.
+     */
+    @Test
+    public void testGroupListenerRemoved() {
+        assertEquals(1, groupService.listeners.size());
+        PipelinerImpl.removeGroupListener(DEVICE1);
+        assertTrue(groupService.listeners.isEmpty());
+
+        // Nothing left to remove.
+        PipelinerImpl.removeGroupListener(DEVICE1);
+        assertTrue(groupService.listeners.isEmpty());
+    }
+
+    /**
+     * Tests that objectives received within the batch window are written as
+     * a single batch, and that their contexts are notified only once the
+     * batch succeeded.
+     */
+    @Test
+    public void testForwardBatched() throws InterruptedException, TestUtilsException {
+        setBatchWindow(BATCH_WINDOW);
+        final TestObjectiveContext context = new TestObjectiveContext();
+        flowRuleService.expect(1);
+
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_LLDP, context));
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_BSN, context));
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_ARP, context));
+        assertTrue(flowRuleService.applied.isEmpty());
+
+        assertTrue(flowRuleService.await());
+        assertEquals(1, flowRuleService.applied.size());
+        final List<FlowRuleOperation> ops = flowRuleService.operations();
+        assertEquals(3, ops.size());
+        ops.forEach(op -> {
+            assertEquals(FlowRuleOperation.Type.ADD, op.type());
+            assertEquals(DEVICE1, op.rule().deviceId());
+        });
+        assertTrue(context.succeeded.isEmpty());
+
+        flowRuleService.succeed();
+        assertEquals(3, context.succeeded.size());
+        assertTrue(context.failed.isEmpty());
+    }
+
+    /**
+     * Tests that all objectives of a failed batch are reported failed.
+     */
+    @Test
+    public void testForwardBatchFailed() throws InterruptedException, TestUtilsException {
+        setBatchWindow(BATCH_WINDOW);
+        final TestObjectiveContext context = new TestObjectiveContext();
+        flowRuleService.expect(1);
+
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_LLDP, context));
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_BSN, context));
+        assertTrue(flowRuleService.await());
+
+        flowRuleService.fail();
+        assertTrue(context.succeeded.isEmpty());
+        assertEquals(ImmutableList.of(ObjectiveError.FLOWINSTALLATIONFAILED,
+                                      ObjectiveError.FLOWINSTALLATIONFAILED),
+                     ImmutableList.copyOf(context.failed.values()));
+    }
+
+    /**
+     * Tests that operations on the same rule within a batch are written in
+     * separate stages, in the order the objectives were received.
+     */
+    @Test
+    public void testForwardSameRuleNewStage() throws InterruptedException, TestUtilsException {
+        setBatchWindow(BATCH_WINDOW);
+        flowRuleService.expect(1);
+
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_LLDP, null));
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_BSN, null));
+        pipeliner.forward(remove(Ethernet.TYPE_LLDP));
+        assertTrue(flowRuleService.await());
+
+        final List<Collection<FlowRuleOperation>> stages = ImmutableList.copyOf(
+                flowRuleService.applied.get(0).stages());
+        assertEquals(2, stages.size());
+        assertEquals(2, stages.get(0).size());
+        assertEquals(1, stages.get(1).size());
+        assertEquals(FlowRuleOperation.Type.REMOVE,
+                     stages.get(1).iterator().next().type());
+    }
+
+    /**
+     * Tests that objectives without output to the controller are refused
+     * without writing anything.
+     */
+    @Test
+    public void testForwardUnsupported() {
+        final TestObjectiveContext context = new TestObjectiveContext();
+        pipeliner.forward(DefaultForwardingObjective.builder()
+                                  .withSelector(DefaultTrafficSelector.builder()
+                                                        .matchEthType(Ethernet.TYPE_IPV4)
+                                                        .build())
+                                  .withTreatment(DefaultTrafficTreatment.builder()
+                                                         .setOutput(PortNumber.portNumber(1))
+                                                         .build())
+                                  .withFlag(ForwardingObjective.Flag.VERSATILE)
+                                  .withPriority(40000)
+                                  .fromApp(APP_ID)
+                                  .makePermanent()
+                                  .add(context));
+
+        assertTrue(flowRuleService.applied.isEmpty());
+        assertEquals(ImmutableList.of(ObjectiveError.UNSUPPORTED),
+                     ImmutableList.copyOf(context.failed.values()));
+    }
+
+    /**
+     * Tests that purging an app removes its ACL rules in a single batch, then
+     * its groups except the clone group still used by other apps.
+     */
+    @Test
+    public void testPurgeAllKeepsSharedCloneGroup() {
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_LLDP));
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_BSN));
+        pipeliner.forward(cloneToCpuBuilder(Ethernet.TYPE_ARP).fromApp(OTHER_APP_ID).add());
+        groupService.store(groupService.added.get(0));
+        flowRuleService.applied.clear();
+
+        pipeliner.purgeAll(APP_ID);
+
+        assertEquals(1, flowRuleService.applied.size());
+        final List<FlowRuleOperation> ops = flowRuleService.operations();
+        assertEquals(2, ops.size());
+        ops.forEach(op -> {
+            assertEquals(FlowRuleOperation.Type.REMOVE, op.type());
+            assertEquals(APP_ID.id(), op.rule().appId());
+        });
+        // Groups are removed once the rules are gone.
+        assertTrue(groupService.removed.isEmpty());
+        flowRuleService.succeed();
+        assertTrue(groupService.removed.isEmpty());
+    }
+
+    /**
+     * Tests that the clone group is removed with the last app using it.
+     */
+    @Test
+    public void testPurgeAllRemovesCloneGroup() {
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_LLDP));
+        groupService.store(groupService.added.get(0));
+        flowRuleService.applied.clear();
+
+        pipeliner.purgeAll(APP_ID);
+        assertEquals(1, flowRuleService.operations().size());
+        flowRuleService.succeed();
+        assertEquals(ImmutableList.of(Utils.buildReplicationGroupKey(cloneSessionId)),
+                     groupService.removed);
+    }
+
+    /**
+     * Tests that the rules of a failed batch are not indexed, hence not
+     * purged.
+     */
+    @Test
+    public void testForwardFailedNotIndexed() {
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_LLDP));
+        flowRuleService.fail();
+        flowRuleService.applied.clear();
+
+        pipeliner.purgeAll(APP_ID);
+        assertTrue(flowRuleService.operations().isEmpty());
+    }
+
+    /**
+     * Tests that the rules that could not be purged stay indexed, and that
+     * the groups no rule points to anymore are purged anyway.
+     */
+    @Test
+    public void testPurgeAllFailed() {
+        pipeliner.next(hashedNext(PORT1, PORT2).add());
+        pipeliner.forward(uplink(Ethernet.TYPE_IPV4));
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_LLDP));
+        groupService.added.forEach(groupService::store);
+        final List<FlowRuleOperation> written = flowRuleService.operations();
+        final FlowRule aclRule = written.get(1).rule();
+        flowRuleService.applied.clear();
+
+        pipeliner.purgeAll(APP_ID);
+        assertEquals(2, flowRuleService.operations().size());
+        flowRuleService.fail(aclRule);
+        // The uplink group is not used anymore, the clone group still is.
+        assertEquals(1, groupService.removed.size());
+        assertEquals(groupService.added.get(0).appCookie(), groupService.removed.get(0));
+
+        flowRuleService.applied.clear();
+        pipeliner.purgeAll(APP_ID);
+        final List<FlowRuleOperation> ops = flowRuleService.operations();
+        assertEquals(1, ops.size());
+        assertEquals(aclRule.id(), ops.get(0).rule().id());
+    }
+
+    /**
+     * Tests that the rules already in the flow store when the pipeliner is
+     * created are purged too.
+     */
+    @Test
+    public void testPurgeAllRulesFromStore() {
+        final FlowRule rule = DefaultFlowRule.builder()
+                .forTable(PiTableId.of("IngressPipeImpl.acl_table"))
+                .forDevice(DEVICE1)
+                .withSelector(DefaultTrafficSelector.builder()
+                                      .matchEthType(Ethernet.TYPE_LLDP).build())
+                .withTreatment(DefaultTrafficTreatment.emptyTreatment())
+                .fromApp(APP_ID)
+                .withPriority(40000)
+                .makePermanent()
+                .build();
+        flowRuleService.entries.add(new DefaultFlowEntry(rule));
+
+        newPipeliner().purgeAll(APP_ID);
+
+        final List<FlowRuleOperation> ops = flowRuleService.operations();
+        assertEquals(1, ops.size());
+        assertEquals(FlowRuleOperation.Type.REMOVE, ops.get(0).type());
+        assertEquals(rule.id(), ops.get(0).rule().id());
+    }
+
+    /**
+     * Tests that the objectives of a pending batch are written before the
+     * purge, which then removes their rules too.
+     */
+    @Test
+    public void testPurgeAllFlushesPendingBatch() throws TestUtilsException {
+        setBatchWindow(BATCH_WINDOW);
+        pipeliner.forward(cloneToCpu(Ethernet.TYPE_LLDP));
+
+        pipeliner.purgeAll(APP_ID);
+
+        assertEquals(2, flowRuleService.applied.size());
+        final List<FlowRuleOperation> ops = flowRuleService.operations();
+        assertEquals(FlowRuleOperation.Type.ADD, ops.get(0).type());
+        assertEquals(FlowRuleOperation.Type.REMOVE, ops.get(1).type());
+        assertEquals(ops.get(0).rule().id(), ops.get(1).rule().id());
+    }
+
+    /**
+     * Tests that the uplink rules pointing to the same next objective share
+     * their treatment.
+     */
+    @Test
+    public void testUplinkTreatmentShared() {
+        pipeliner.next(hashedNext(PORT1, PORT2).add());
+        pipeliner.forward(uplink(Ethernet.TYPE_IPV4));
+        pipeliner.forward(uplink(Ethernet.TYPE_ARP));
+
+        final List<FlowRuleOperation> ops = flowRuleService.operations();
+        assertEquals(2, ops.size());
+        assertNotEquals(ops.get(0).rule().id(), ops.get(1).rule().id());
+        assertSame(ops.get(0).rule().treatment(), ops.get(1).rule().treatment());
+    }
+
+    /**
+     * Tests that a hashed next objective becomes a select group with one
+     * member per port, notified once the group store confirms it.
+     */
+    @Test
+    public void testNextHashedAdd() {
+        final TestObjectiveContext context = new TestObjectiveContext();
+        final NextObjective obj = hashedNext(PORT1, PORT2).add(context);
+        pipeliner.next(obj);
+
+        assertEquals(1, groupService.added.size());
+        final GroupDescription group = groupService.added.get(0);
+        assertEquals(GroupDescription.Type.SELECT, group.type());
+        assertEquals(NEXT_ID, group.givenGroupId().intValue());
+        assertEquals(2, group.buckets().buckets().size());
+        assertEquals(ImmutableList.of("port 1", "port 2"), pipeliner.getNextMappings(
+                objectiveStore.getNextGroup(NEXT_ID)));
+        assertTrue(context.succeeded.isEmpty());
+
+        groupService.notify(GroupEvent.Type.GROUP_ADDED, group);
+        assertEquals(ImmutableList.of(obj), context.succeeded);
+    }
+
+    /**
+     * Tests that a failed group add is reported to the next objective, and
+     * that the next group is forgotten.
+     */
+    @Test
+    public void testNextHashedAddFailed() {
+        final TestObjectiveContext context = new TestObjectiveContext();
+        pipeliner.next(hashedNext(PORT1).add(context));
+
+        groupService.notify(GroupEvent.Type.GROUP_ADD_FAILED, groupService.added.get(0));
+        assertEquals(ImmutableList.of(ObjectiveError.GROUPINSTALLATIONFAILED),
+                     ImmutableList.copyOf(context.failed.values()));
+        assertNull(objectiveStore.getNextGroup(NEXT_ID));
+    }
+
+    /**
+     * Tests that ports are added to and removed from an existing next group.
+     */
+    @Test
+    public void testNextHashedUpdate() {
+        pipeliner.next(hashedNext(PORT1, PORT2).add());
+
+        pipeliner.next(hashedNext(PORT3).addToExisting());
+        assertEquals(ImmutableList.of("port 1", "port 2", "port 3"),
+                     pipeliner.getNextMappings(objectiveStore.getNextGroup(NEXT_ID)));
+
+        pipeliner.next(hashedNext(PORT1).removeFromExisting());
+        assertEquals(ImmutableList.of("port 2", "port 3"),
+                     pipeliner.getNextMappings(objectiveStore.getNextGroup(NEXT_ID)));
+    }
+
+    /**
+     * Tests that updates of unknown next objectives and non hashed next
+     * objectives are refused.
+     */
+    @Test
+    public void testNextRefused() {
+        final TestObjectiveContext context = new TestObjectiveContext();
+        pipeliner.next(hashedNext(PORT1).addToExisting(context));
+        pipeliner.next(DefaultNextObjective.builder()
+                               .withId(NEXT_ID + 1)
+                               .withType(NextObjective.Type.SIMPLE)
+                               .addTreatment(DefaultNextTreatment.of(
+                                       DefaultTrafficTreatment.builder().setOutput(PORT1).build()))
+                               .fromApp(APP_ID)
+                               .add(context));
+
+        assertTrue(groupService.added.isEmpty());
+        assertEquals(2, context.failed.size());
+        assertTrue(context.failed.containsValue(ObjectiveError.GROUPMISSING));
+        assertTrue(context.failed.containsValue(ObjectiveError.UNSUPPORTED));
+    }
+
+    /**
+     * Tests that hashed next objectives with a member referring to another
+     * next objective are refused.
+     */
+    @Test
+    public void testNextIdTreatmentRefused() {
+        final TestObjectiveContext context = new TestObjectiveContext();
+        pipeliner.next(hashedNext(PORT1)
+                               .addTreatment(IdNextTreatment.of(NEXT_ID + 1))
+                               .add(context));
+
+        assertTrue(groupService.added.isEmpty());
+        assertEquals(ImmutableList.of(ObjectiveError.BADPARAMS),
+                     ImmutableList.copyOf(context.failed.values()));
+    }
+
+    /**
+     * Tests that forwarding objectives pointing to an unknown next objective
+     * are refused.
+     */
+    @Test
+    public void testForwardNextMissing() {
+        final TestObjectiveContext context = new TestObjectiveContext();
+        pipeliner.forward(DefaultForwardingObjective.builder()
+                                  .withSelector(DefaultTrafficSelector.builder()
+                                                        .matchEthType(Ethernet.TYPE_IPV4)
+                                                        .build())
+                                  .nextStep(NEXT_ID)
+                                  .withFlag(ForwardingObjective.Flag.VERSATILE)
+                                  .withPriority(40000)
+                                  .fromApp(APP_ID)
+                                  .makePermanent()
+                                  .add(context));
+
+        assertTrue(flowRuleService.applied.isEmpty());
+        assertEquals(ImmutableList.of(ObjectiveError.GROUPMISSING),
+                     ImmutableList.copyOf(context.failed.values()));
+    }
+
+    private static NextObjective.Builder hashedNext(PortNumber... ports) {
+        final NextObjective.Builder builder = DefaultNextObjective.builder()
+                .withId(NEXT_ID)
+                .withType(NextObjective.Type.HASHED)
+                .fromApp(APP_ID);
+        for (PortNumber port : ports) {
+            builder.addTreatment(DefaultNextTreatment.of(
+                    DefaultTrafficTreatment.builder().setOutput(port).build()));
+        }
+        return builder;
+    }
+
+    private static ForwardingObjective uplink(short ethType) {
+        return DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                                      .matchEthType(ethType).build())
+                .nextStep(NEXT_ID)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .withPriority(40000)
+                .fromApp(APP_ID)
+                .makePermanent()
+                .add();
+    }
+
+    private static ForwardingObjective cloneToCpu(short ethType) {
+        return cloneToCpu(ethType, null);
+    }
+
+    private static ForwardingObjective cloneToCpu(short ethType, ObjectiveContext context) {
+        final ForwardingObjective.Builder builder = cloneToCpuBuilder(ethType);
+        return context == null ? builder.add() : builder.add(context);
+    }
+
+    private static ForwardingObjective remove(short ethType) {
+        return cloneToCpuBuilder(ethType).remove();
+    }
+
+    private static ForwardingObjective.Builder cloneToCpuBuilder(short ethType) {
+        return DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                                      .matchEthType(ethType).build())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                                       .setOutput(PortNumber.CONTROLLER).build())
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .withPriority(40000)
+                .fromApp(APP_ID)
+                .makePermanent();
+    }
+
+    /**
+     * Pipeliner context returning the given services and objective store.
+     */
+    private static class TestPipelinerContext implements PipelinerContext {
+        private final Map<Class<?>, Object> services;
+        private final FlowObjectiveStore store;
+
+        TestPipelinerContext(Map<Class<?>, Object> services, FlowObjectiveStore store) {
+            this.services = services;
+            this.store = store;
+        }
+
+        @Override
+        public ServiceDirectory directory() {
+            return new ServiceDirectory() {
+                @Override
+                public <T> T get(Class<T> serviceClass) {
+                    return serviceClass.cast(services.get(serviceClass));
+                }
+            };
+        }
+
+        @Override
+        public FlowObjectiveStore store() {
+            return store;
+        }
+    }
+
+    /**
+     * Flow objective store keeping next groups in memory.
+     */
+    private static class TestFlowObjectiveStore implements FlowObjectiveStore {
+        private final Map<Integer, NextGroup> nextGroups = Maps.newConcurrentMap();
+
+        @Override
+        public void putNextGroup(Integer nextId, NextGroup group) {
+            nextGroups.put(nextId, group);
+        }
+
+        @Override
+        public NextGroup getNextGroup(Integer nextId) {
+            return nextGroups.get(nextId);
+        }
+
+        @Override
+        public NextGroup removeNextGroup(Integer nextId) {
+            return nextGroups.remove(nextId);
+        }
+
+        @Override
+        public Map<Integer, NextGroup> getAllGroups() {
+            return ImmutableMap.copyOf(nextGroups);
+        }
+
+        @Override
+        public int allocateNextId() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setDelegate(FlowObjectiveStoreDelegate delegate) {
+        }
+
+        @Override
+        public void unsetDelegate(FlowObjectiveStoreDelegate delegate) {
+        }
+
+        @Override
+        public boolean hasDelegate() {
+            return false;
+        }
+    }
+
+    /**
+     * Flow rule service returning the given flow entries, and recording the
+     * operations applied so that their outcome can be reported later.
+     */
+    private static class TestFlowRuleService extends FlowRuleServiceAdapter {
+        private final List<FlowEntry> entries = Lists.newArrayList();
+        private final List<FlowRuleOperations> applied = Lists.newCopyOnWriteArrayList();
+
+        @Override
+        public Iterable<FlowEntry> getFlowEntries(DeviceId deviceId) {
+            return entries;
+        }
+        private volatile CountDownLatch latch = new CountDownLatch(0);
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            applied.add(ops);
+            latch.countDown();
+        }
+
+        private void expect(int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        private boolean await() throws InterruptedException {
+            return latch.await(10, TimeUnit.SECONDS);
+        }
+
+        private List<FlowRuleOperation> operations() {
+            return applied.stream()
+                    .flatMap(ops -> ops.stages().stream())
+                    .flatMap(Collection::stream)
+                    .collect(Collectors.toList());
+        }
+
+        private void succeed() {
+            applied.forEach(ops -> ops.callback().onSuccess(ops));
+        }
+
+        private void fail() {
+            applied.forEach(ops -> ops.callback().onError(ops));
+        }
+
+        private void fail(FlowRule... failedRules) {
+            // Only the failed rules are given to the context.
+            final FlowRuleOperations.Builder failed = FlowRuleOperations.builder();
+            for (FlowRule rule : failedRules) {
+                failed.add(rule);
+            }
+            applied.forEach(ops -> ops.callback().onError(failed.build()));
+        }
+    }
+
+    /**
+     * Objective context recording the outcome of each objective.
+     */
+    private static class TestObjectiveContext implements ObjectiveContext {
+        private final List<Objective> succeeded = Lists.newCopyOnWriteArrayList();
+        private final Map<Objective, ObjectiveError> failed = Maps.newConcurrentMap();
+
+        @Override
+        public void onSuccess(Objective objective) {
+            succeeded.add(objective);
+        }
+
+        @Override
+        public void onError(Objective objective, ObjectiveError error) {
+            failed.put(objective, error);
+        }
+    }
+
+    /**
+     * Group service recording the groups added and removed, with an
+     * in-memory store only changed by the test.
+     */
+    private static class TestGroupService extends GroupServiceAdapter {
+        private final List<GroupDescription> added = Lists.newArrayList();
+        private final List<GroupKey> removed = Lists.newArrayList();
+        private final Map<GroupKey, Group> groups = Maps.newHashMap();
+        private final List<GroupListener> listeners = Lists.newArrayList();
+
+        @Override
+        public void addGroup(GroupDescription groupDesc) {
+            added.add(groupDesc);
+        }
+
+        @Override
+        public Group getGroup(DeviceId deviceId, GroupKey appCookie) {
+            return groups.get(appCookie);
+        }
+
+        @Override
+        public Iterable<Group> getGroups(DeviceId deviceId, ApplicationId appId) {
+            return groups.values().stream()
+                    .filter(g -> g.appId().equals(appId))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public void removeGroup(DeviceId deviceId, GroupKey appCookie,
+                                ApplicationId appId) {
+            removed.add(appCookie);
+        }
+
+        @Override
+        public void addListener(GroupListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(GroupListener listener) {
+            listeners.remove(listener);
+        }
+
+        private void store(GroupDescription groupDesc) {
+            groups.put(groupDesc.appCookie(),
+                       new DefaultGroup(GroupId.valueOf(groupDesc.givenGroupId()), groupDesc));
+        }
+
+        private void remove(GroupDescription groupDesc) {
+            groups.remove(groupDesc.appCookie());
+            notify(GroupEvent.Type.GROUP_REMOVED, groupDesc);
+        }
+
+        private void notify(GroupEvent.Type type, GroupDescription groupDesc) {
+            final GroupEvent event = new GroupEvent(
+                    type, new DefaultGroup(GroupId.valueOf(groupDesc.givenGroupId()), groupDesc));
+            listeners.stream()
+                    .filter(l -> l.isRelevant(event))
+                    .forEach(l -> l.event(event));
+        }
+    }
+}